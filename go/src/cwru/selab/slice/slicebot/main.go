@@ -490,15 +490,15 @@ func (self *LoadedState) Command(cmd string, rest []byte) State {
             }
         }
     case "NODE":
-        i, err := strconv.Atoi(string(rest))
+        // uids are method hashes (see Graph.range in jpdg), not indices
+        id, err := strconv.ParseInt(string(rest), 10, 64)
         if err != nil {
             self.HandleError(err)
         } else {
-            if i < 0 || i >= len(self.G.V) {
+            node, ok := self.G.V[id]
+            if !ok {
                 self.HandleError(fmt.Errorf("No Node"))
-
             } else {
-                node := self.G.V[int64(i)]
                 bytes, err := json.Marshal(node.Rest)
                 if err != nil {
                     self.HandleError(err)
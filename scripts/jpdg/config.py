@@ -96,20 +96,31 @@ class Configuration(conf.BaseConfig):
             targets.append(subject['target'])
         else:
             targets.extend(subject['targets'])
-        subject['jpdg_cmd'] = [
-            'java',
-            '-Xmx8g',
-            '-jar',
-            self.jpdg_jar,
+        # the arguments to jpdg, less the label type
+        subject['jpdg_args'] = [
             '-c', subject['soot_classpath'],
-            '-l', 'op',
         ]
         for t in targets:
-            subject['jpdg_cmd'] += ['-d', t]
+            subject['jpdg_args'] += ['-d', t]
         for ex_dir in subject['exclude_pkgs']:
-            subject['jpdg_cmd'] += ['-e', ex_dir]
+            subject['jpdg_args'] += ['-e', ex_dir]
+        subject['jpdg_cmd'] = (
+            self.jpdg_java + subject['jpdg_args'] + ['-l', 'op'])
         return subject
 
+    @property
+    def jpdg_java(self):
+        return [
+            'java',
+            '-Xmx8g',
+            '-jar',
+            self.jpdg_jar,
+        ]
+
+    @property
+    def jpdg_server_cmd(self):
+        return self.jpdg_java + ['--server', '-']
+
     @property
     def jpdg_jar(self):
         return os.path.join(self._d['jpdg_root'], 'target', 'jpdg-git-master.jar')
@@ -75,11 +75,35 @@ def build_slicer(conf):
     print >>sys.stderr, '>', ' '.join(cmd)
     subprocess.check_call(cmd)
 
-def run_jpdg(conf, name, subject, output, no_build=False, jpdg_logs=False):
+def run_jpdg(conf, name, subject, output, no_build=False, jpdg_logs=False,
+        extra=None, label_type=None, server=None):
+    '''
+    runs jpdg on the subject, in the warm jvm of server (see jpdg.server) when
+    given and otherwise in a jvm of its own.
+    '''
     if not no_build:
         build_jpdg(conf)
-    cmd = list(subject.jpdg_cmd)
+    start = time.time()
+    if server is not None or label_type is not None:
+        args = list(subject.jpdg_args) + ['-l', label_type or 'op']
+        cmd = list(conf.jpdg_java) + args
+    else:
+        cmd = list(subject.jpdg_cmd)
     cmd += ['-o', output]
+    if extra is not None:
+        cmd += extra
+    if server is not None:
+        args = cmd[len(conf.jpdg_java):]
+        print >>sys.stderr, '> server', ' '.join(args)
+        try:
+            stats = server.job(args)
+        except Exception, e:
+            print >>sys.stderr, e
+            print >>sys.stderr, "Calling jpdg failed"
+            sys.exit(error_codes['jpdg'])
+        print >>sys.stderr, 'jpdg took %.1fs, a cold jpdg about %.1fs' % (
+            stats['job_ms']/1000.0, stats['cold_cli_estimate_ms']/1000.0)
+        return
     print >>sys.stderr, '>', ' '.join(cmd)
     if not jpdg_logs:
         p = subprocess.Popen(cmd,
@@ -96,6 +120,7 @@ def run_jpdg(conf, name, subject, output, no_build=False, jpdg_logs=False):
             print >>sys.stderr, arg, '\\'
         print >>sys.stderr, cmd[-1]
         sys.exit(error_codes['jpdg'])
+    print >>sys.stderr, 'jpdg took %.1fs' % (time.time() - start)
 
 def run_parsemis(conf, dotty_output, swap, parsemis_output, no_build=False,
         parsemis_logs=False, pattern_min='50%', extra=None):
@@ -212,26 +237,21 @@ def partition_patterns(conf, name, subject, output, slicer,
     if not no_build:
         build_jpdg(conf)
         #build_parsemis(conf)
+    # jpdg writes the partitions as parsemis transactions itself, along with
+    # the uids of their vertices
     jpdg_output = os.path.join(output, 'graph.pdg')
-    run_jpdg(conf, name, subject, jpdg_output, True, jpdg_logs)
-
-    slicer.load(jpdg_output)
-    print 'loaded'
-    partition = slicer.partition('method_name', filtered_edges=[])
-    print 'parted'
-    memfile = StringIO(partition)
-    dotty_output = os.path.join(output, 'partition.dot')
-    print 'dotty'
-    with open(dotty_output, 'w') as f:
-        dotty(memfile, f, html=False)
+    run_jpdg(conf, name, subject, jpdg_output, True, jpdg_logs,
+        ['--parsemis', 'method_name'])
+    dotty_output = jpdg_output + '.parsemis'
     if os.stat(dotty_output).st_size == 0:
         os.unlink(dotty_output)
         return list()
 
-    print 'dottied'
+    slicer.load(jpdg_output)
+    print 'loaded'
     parsemis_output = os.path.join(output, "parsemis_patterns.dot")
     swap_file = os.path.join(output, "parsemis_swap")
-    run_parsemis(
+    ok = run_parsemis(
         conf,
         dotty_output,
         swap_file,
@@ -251,10 +271,20 @@ def partition_patterns(conf, name, subject, output, slicer,
     else:
         run_graphviz(parsemis_output)
         patterns += build_patterns(
-            parsemis_output, dotty_output, None, slicer)
+            parsemis_output, dotty_output, None, slicer,
+            load_ids(dotty_output + '.ids'))
 
     return patterns
 
+def load_ids(path):
+    '''the uids of the vertices of each transaction, see Parsemis.java'''
+    ids = dict()
+    with open(path) as f:
+        for line in f:
+            name, uids = line.rstrip('\n').split('\t', 1)
+            ids[name] = [int(uid) for uid in uids.split()]
+    return ids
+
 
 def graphviz_patterns(patterns, output):
     for i, p in enumerate(patterns):
@@ -55,7 +55,7 @@ class Pattern(object):
         return header + '\n' + s + footer
 
 
-def build_patterns(pattern_file, slice_file, label, slicer):
+def build_patterns(pattern_file, slice_file, label, slicer, ids=None):
 
     def get_slices():
         with open(slice_file) as f:
@@ -81,18 +81,21 @@ def build_patterns(pattern_file, slice_file, label, slicer):
                             for l in labels)
                ):
                 subgraphs.append((sg,
-                    [slices[e] for e in parse_examples(comment)]))
+                    [(e, slices[e]) for e in parse_examples(comment)]))
         return subgraphs
 
     def map_subgraphs(subgraphs):
         maps = list()
         for pattern, examples in subgraphs:
             ex_maps = list()
-            for ex in examples:
+            for name, ex in examples:
                 for m in match(label, pattern, ex):
                     pdg_map = dict()
                     for pn, sn in m.iteritems():
                         sn = int(sn.replace('n', ''))
+                        if ids is not None:
+                            # the vertices are numbered within the graph
+                            sn = ids[name][sn]
                         pdg_map[pn] = slicer.node(sn)
                     ex_maps.append(pdg_map)
             maps.append((pattern, ex_maps))
@@ -0,0 +1,120 @@
+#!/usr/bin/env python
+# -*- coding: utf-8 -*-
+
+# Tim Henderson (tadh@case.edu)
+#
+# This file is part of jpdg a library to generate Program Dependence Graphs
+# from JVM bytecode.
+#
+# Copyright (c) 2014, Tim Henderson, Case Western Reserve University
+#   Cleveland, Ohio 44106
+#   All Rights Reserved.
+#
+# This library is free software; you can redistribute it and/or
+# modify it under the terms of the GNU Lesser General Public
+# License as published by the Free Software Foundation; either
+# version 2.1 of the License, or (at your option) any later version.
+#
+# This library is distributed in the hope that it will be useful,
+# but WITHOUT ANY WARRANTY; without even the implied warranty of
+# MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+# Lesser General Public License for more details.
+#
+# You should have received a copy of the GNU Lesser General Public
+# License along with this library; if not, write to the Free Software
+# Foundation, Inc.,
+#   51 Franklin Street, Fifth Floor,
+#   Boston, MA  02110-1301
+#   USA
+# or retrieve version 2.1 at their website:
+#   http://www.gnu.org/licenses/lgpl-2.1.html
+
+import sys, subprocess, json
+
+class Server(object):
+    '''
+    Runs jpdg jobs in one warm jvm, see Server.java. A job is a jpdg command
+    line (less the java -jar jpdg.jar), jobs run one at a time.
+    '''
+
+    def __init__(self, cmd, debug=False):
+        self.debug = debug
+        self.p = subprocess.Popen(cmd,
+            stdin=subprocess.PIPE,
+            stdout=subprocess.PIPE,
+        )
+        self.closed = False
+
+    def __enter__(self):
+        return self
+
+    def __exit__(self, exc_type, exc_value, traceback):
+        self.close()
+
+    def close(self):
+        if self.closed:
+            return
+        self.closed = True
+        try:
+            self.send('QUIT', '')
+            self.get_line()
+        except Exception, e:
+            if self.debug:
+                print >>sys.stderr, e
+        self.p.stdin.close()
+        self.p.wait()
+
+    def job(self, argv, out=None):
+        '''
+        runs jpdg with argv and returns the stats of the run (see
+        Server.stats). with -o - the graph is written to out as it comes.
+        '''
+        self.send('JOB', json.dumps(argv))
+        while True:
+            cmd, data = self.get_line()
+            if cmd == "VEG":
+                if out is not None:
+                    out.write(data)
+            elif cmd == "DONE":
+                return json.loads(data)
+            elif cmd == "ERROR":
+                raise Exception(data)
+            else:
+                raise Exception, "bad command recieved %s %s" % (cmd, data)
+
+    def pdg(self, signature):
+        '''
+        the VEG of the pDG of the method with the given signature, eg.
+        <p.A: int f(int)>. only for a server started with --query (see
+        Query.java), which caches the recent ones.
+        '''
+        self.send('PDG', signature)
+        cmd, data = self.get_line()
+        if cmd == "PDG":
+            return data
+        elif cmd == "ERROR":
+            raise Exception(data)
+        raise Exception, "bad command recieved %s %s" % (cmd, data)
+
+    def stats(self):
+        self.send('STATS', '')
+        cmd, data = self.get_line()
+        if cmd != "STATS":
+            raise Exception, "bad command recieved %s %s" % (cmd, data)
+        return json.loads(data)
+
+    def send(self, cmd, data):
+        msg = cmd + " " + data.encode('base64').replace('\n', '') + '\n'
+        self.p.stdin.write(msg)
+        self.p.stdin.flush()
+
+    def get_line(self):
+        line = self.p.stdout.readline()
+        if not line:
+            raise Exception, "jpdg server closed the connection"
+        split = line.rstrip('\n').split(' ', 1)
+        command = split[0]
+        rest = None
+        if len(split) > 1:
+            rest = split[1].decode('base64')
+        return command, rest
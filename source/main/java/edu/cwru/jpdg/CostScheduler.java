@@ -0,0 +1,112 @@
+package edu.cwru.jpdg;
+
+/* Tim Henderson (tadh@case.edu)
+ *
+ * This file is part of jpdg a library to generate Program Dependence Graphs
+ * from JVM bytecode.
+ *
+ * Copyright (c) 2014, Tim Henderson, Case Western Reserve University
+ *   Cleveland, Ohio 44106
+ *   All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc.,
+ *   51 Franklin Street, Fifth Floor,
+ *   Boston, MA  02110-1301
+ *   USA
+ * or retrieve version 2.1 at their website:
+ *   http://www.gnu.org/licenses/lgpl-2.1.html
+ */
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A thread pool which runs the most expensive of its queued jobs first. The
+ * cost of a per method pDG job is predicted from the size of the body (see
+ * cost) so the few huge methods a program usually has (generated parsers,
+ * giant switch tables) are started as soon as they are seen rather than
+ * leaving one thread grinding on them at the end of the run.
+ */
+public class CostScheduler extends ThreadPoolExecutor {
+
+    // Weights of the cost model. The unit graph and the dataflow analyses
+    // are roughly linear in the number of units. Each trap adds edges to
+    // the cfg, and so to every analysis over it. Tune these against the
+    // log written by PDG_Builder (see --cost-log).
+    public static final long UNIT_COST = 1;
+    public static final long TRAP_COST = 16;
+
+    private final AtomicLong seq = new AtomicLong();
+
+    public CostScheduler(int threads) {
+        super(threads, threads, 0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>());
+    }
+
+    /**
+     * The predicted cost of building the pDG of a body with the given number
+     * of units and traps.
+     */
+    public static long cost(int units, int traps) {
+        return UNIT_COST*units + TRAP_COST*traps;
+    }
+
+    /**
+     * Queues a job with the given predicted cost. Jobs with a higher cost
+     * run first. Jobs of equal cost run in the order they were submitted.
+     */
+    public <T> Future<T> submit(Callable<T> job, long cost) {
+        Job<T> j = new Job<T>(job, cost, seq.getAndIncrement());
+        execute(j);
+        return j;
+    }
+
+    @Override
+    protected <T> RunnableFuture<T> newTaskFor(Callable<T> job) {
+        return new Job<T>(job, 0, seq.getAndIncrement());
+    }
+
+    @Override
+    protected <T> RunnableFuture<T> newTaskFor(Runnable job, T value) {
+        return new Job<T>(Executors.callable(job, value), 0, seq.getAndIncrement());
+    }
+
+    private static class Job<T> extends FutureTask<T> implements Comparable<Job<?>> {
+        final long cost;
+        final long seq;
+
+        Job(Callable<T> job, long cost, long seq) {
+            super(job);
+            this.cost = cost;
+            this.seq = seq;
+        }
+
+        public int compareTo(Job<?> o) {
+            if (cost != o.cost) {
+                return cost > o.cost ? -1 : 1;
+            }
+            if (seq != o.seq) {
+                return seq < o.seq ? -1 : 1;
+            }
+            return 0;
+        }
+    }
+}
@@ -31,7 +31,10 @@ package edu.cwru.jpdg;
 
 import java.util.*;
 import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
+import java.util.zip.GZIPInputStream;
 
 
 import org.apache.commons.cli.CommandLine;
@@ -68,7 +71,16 @@ import soot.jimple.DefinitionStmt;
 import soot.jimple.internal.JimpleLocal;
 import soot.jimple.internal.JimpleLocalBox;
 
+import edu.cwru.jpdg.graph.BlockGzipOutputStream;
+import edu.cwru.jpdg.graph.Checkpoint;
 import edu.cwru.jpdg.graph.Graph;
+import edu.cwru.jpdg.graph.GraphReader;
+import edu.cwru.jpdg.graph.MethodCache;
+import edu.cwru.jpdg.graph.MethodIndex;
+import edu.cwru.jpdg.graph.Parsemis;
+import edu.cwru.jpdg.graph.PartitionedOutput;
+import edu.cwru.jpdg.graph.EdgeKind;
+import edu.cwru.jpdg.graph.VegWriter;
 import edu.cwru.jpdg.label.LabelMaker;
 import edu.cwru.jpdg.label.ExpressionTreeLabels;
 import edu.cwru.jpdg.label.InstructionLabels;
@@ -76,13 +88,55 @@ import edu.cwru.jpdg.label.OpLabels;
 
 public class JPDG {
 
+    // the output path meaning stdout
+    public static final String STDOUT = "-";
+    // where - goes instead of stdout when set, see Server
+    static OutputStream stdout = null;
+
     public static void main(String[] argv) throws pDG_Builder.Error {
+        try {
+            run(argv);
+        } catch (final ParseException e) {
+            System.exit(1);
+        } catch (final IOException e) {
+            System.err.println(e);
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Runs jpdg with the command line argv. A bad command line is reported
+     * (with the usage where that helps) and thrown rather than exiting, so
+     * a Server can run many of them in one JVM. So is a failure to write
+     * the output, which must not look like a finished run.
+     */
+    static void run(String[] argv) throws ParseException, pDG_Builder.Error, IOException {
         final Option helpOpt = new Option("h", "help", false, "print this message");
-        final Option outputOpt = new Option("o", "output", true, "output file location");
+        final Option outputOpt = new Option("o", "output", true, "output file location, gzipped in parallel blocks indexed by method (and so grouped by method) when it ends with .gz. - writes to stdout, which like a named pipe implies --stream and is flushed after every method");
         final Option baseOpt = new Option("d", "dirs", true, "base directories to analyze");
         final Option excludeOpt = new Option("e", "exclude", true, "exclude these directories");
         final Option classOpt = new Option("c", "classpath", true, "classpath for soot");
         final Option labelOpt = new Option("l", "label-type", true, "label type, valid choices are: expr-tree, inst");
+        final Option threadsOpt = new Option("t", "threads", true, "number of threads to build method PDGs with (default 1)");
+        final Option streamOpt = new Option("s", "stream", false, "write each method's PDG as soon as it is built");
+        final Option shardOpt = new Option("S", "shard", true, "only build shard i/N of the classes, eg. 0/4. merge the parts with --merge");
+        final Option lookaheadOpt = new Option("L", "lookahead", true, "number of methods to load ahead when using threads, the biggest loaded method is built first (default 4 per thread)");
+        final Option costLogOpt = new Option(null, "cost-log", true, "log the predicted and actual cost of each method to this file (threads or stream only)");
+        final Option mergeOpt = new Option("m", "merge", false, "merge the part files given as arguments (see --shard) into the output");
+        final Option kindsOpt = new Option(null, "edge-kinds", true, "only output these kinds of edges, eg. cdg,ddg. valid choices are: cdg, ddg, call, cfg");
+        final Option indexOpt = new Option(null, "index", false, "group the output by method and write a sorted index of where each method is to OUTPUT.idx (see MethodIndex)");
+        final Option partitionOpt = new Option(null, "partition", true, "write the output as a directory (-o) of partitions, one per package or per this many classes, with a manifest (see PartitionedOutput). implies --stream");
+        final Option normalizedOpt = new Option(null, "normalized", false, "write the label tables once and refer to labels by number (see Graph.writeNormalized, Normalized expands it back)");
+        final Option parsemisOpt = new Option(null, "parsemis", true, "also write the graph as parsemis transactions to OUTPUT.parsemis (and their vertex uids to OUTPUT.parsemis.ids), a transaction per method or per value of this vertex attribute, eg. method_name");
+        final Option parsemisLabelOpt = new Option(null, "parsemis-label", true, "the vertex attribute labelling parsemis vertices (default label)");
+        final Option parsemisHtmlOpt = new Option(null, "parsemis-html", false, "give parsemis vertices html table labels, as dotty.py does by default");
+        final Option checkpointOpt = new Option(null, "checkpoint", true, "keep finished classes in this directory and, when it already holds some, resume from them (see Checkpoint)");
+        final Option cacheOpt = new Option(null, "cache", true, "read the pDGs of classes whose class files have not changed from this directory and keep the others there (see MethodCache)");
+        final Option watchOpt = new Option(null, "watch", false, "keep running, rebuilding the classes in the -d directories which change and rewriting the output (only the changed packages' partitions with --partition package, see Watch)");
+        final Option serverOpt = new Option(null, "server", true, "serve jobs (jpdg command lines) on this local port, or on stdin and stdout for -, in one warm JVM (see Server)");
+        final Option queryOpt = new Option(null, "query", true, "serve the PDGs of single methods, asked for by signature, on this local port or on stdin and stdout for -. only resolves the classes asked for (see Query)");
+        final Option queryCacheOpt = new Option(null, "query-cache", true, "megabytes of method PDGs --query keeps cached (default 64)");
+        final Option mappedOpt = new Option(null, "mapped", true, "keep the graph in memory mapped files in this directory instead of on the heap");
         final org.apache.commons.cli.Options options = new org.apache.commons.cli.Options();
 
         options.addOption(helpOpt);
@@ -91,12 +145,49 @@ public class JPDG {
         options.addOption(classOpt);
         options.addOption(labelOpt);
         options.addOption(excludeOpt);
+        options.addOption(threadsOpt);
+        options.addOption(streamOpt);
+        options.addOption(shardOpt);
+        options.addOption(mergeOpt);
+        options.addOption(lookaheadOpt);
+        options.addOption(costLogOpt);
+        options.addOption(mappedOpt);
+        options.addOption(kindsOpt);
+        options.addOption(indexOpt);
+        options.addOption(partitionOpt);
+        options.addOption(normalizedOpt);
+        options.addOption(parsemisOpt);
+        options.addOption(parsemisLabelOpt);
+        options.addOption(parsemisHtmlOpt);
+        options.addOption(checkpointOpt);
+        options.addOption(cacheOpt);
+        options.addOption(watchOpt);
+        options.addOption(serverOpt);
+        options.addOption(queryOpt);
+        options.addOption(queryCacheOpt);
 
         String cp = null;
         List<String> dirs = new ArrayList<String>();
         String label_type = "expr-tree";
         String output_file = null;
         List<String> excluded = new ArrayList<String>();
+        int threads = 1;
+        boolean stream = false;
+        int[] shard = new int[]{0, 1};
+        List<String> parts = null;
+        int lookahead = 0;
+        String cost_log_file = null;
+        String mapped_dir = null;
+        Set<EdgeKind> kinds = EnumSet.allOf(EdgeKind.class);
+        MethodIndex.Builder index = null;
+        int partition = -1;
+        boolean normalized = false;
+        String[] parsemis = null;
+        String checkpoint_dir = null;
+        String cache_dir = null;
+        boolean watch = false;
+        String query_addr = null;
+        long query_cache = Query.PDG_BYTES;
 
         try {
             GnuParser parser = new GnuParser();
@@ -105,6 +196,14 @@ public class JPDG {
             if (line.hasOption(helpOpt.getLongOpt())) {
                 Usage(options);
             }
+            if (line.hasOption(serverOpt.getLongOpt())) {
+                try {
+                    Server.serve(line.getOptionValue(serverOpt.getLongOpt()));
+                } catch (IOException e) {
+                    System.err.println(e);
+                }
+                return;
+            }
 
             cp = line.getOptionValue(classOpt.getLongOpt());
             String[] dir_arr = line.getOptionValues(baseOpt.getLongOpt());
@@ -117,32 +216,249 @@ public class JPDG {
             if (dir_arr != null) {
                 dirs = Arrays.asList(dir_arr);
             }
+            if (line.hasOption(threadsOpt.getLongOpt())) {
+                threads = parse_positive("threads", line.getOptionValue(threadsOpt.getLongOpt()));
+            }
+            stream = line.hasOption(streamOpt.getLongOpt()) || isPipe(output_file);
+            if (line.hasOption(shardOpt.getLongOpt())) {
+                shard = parse_shard(line.getOptionValue(shardOpt.getLongOpt()));
+            }
+            if (line.hasOption(lookaheadOpt.getLongOpt())) {
+                lookahead = parse_positive("lookahead", line.getOptionValue(lookaheadOpt.getLongOpt()));
+            }
+            cost_log_file = line.getOptionValue(costLogOpt.getLongOpt());
+            mapped_dir = line.getOptionValue(mappedOpt.getLongOpt());
+            if (line.hasOption(kindsOpt.getLongOpt())) {
+                try {
+                    kinds = EdgeKind.parseSet(line.getOptionValue(kindsOpt.getLongOpt()));
+                } catch (IllegalArgumentException e) {
+                    throw new ParseException(e.getMessage());
+                }
+            }
+            if (line.hasOption(indexOpt.getLongOpt())) {
+                if (output_file == null || output_file.endsWith(".gz") || isPipe(output_file)) {
+                    throw new ParseException("--index needs an uncompressed output file, not a pipe");
+                }
+                index = new MethodIndex.Builder();
+            }
+            if (line.hasOption(partitionOpt.getLongOpt())) {
+                String p = line.getOptionValue(partitionOpt.getLongOpt());
+                partition = p.equals("package") ? 0 : parse_positive("partition", p);
+                if (output_file == null || index != null) {
+                    throw new ParseException("--partition needs an output directory and can not be used with --index");
+                }
+            }
+            normalized = line.hasOption(normalizedOpt.getLongOpt());
+            if (normalized && (stream || index != null || partition >= 0 || shard[1] > 1)) {
+                // --merge reads parts with GraphReader, which only knows the usual format
+                throw new ParseException("--normalized can not be used with --stream, --index, --partition or --shard");
+            }
+            if (line.hasOption(parsemisOpt.getLongOpt())) {
+                if (stream || partition >= 0) {
+                    throw new ParseException("--parsemis can not be used with --stream or --partition");
+                }
+                parsemis = new String[]{
+                    line.getOptionValue(parsemisOpt.getLongOpt()),
+                    line.getOptionValue(parsemisLabelOpt.getLongOpt(), "label"),
+                    line.hasOption(parsemisHtmlOpt.getLongOpt()) ? "html" : "plain",
+                };
+            }
+            checkpoint_dir = line.getOptionValue(checkpointOpt.getLongOpt());
+            if (checkpoint_dir != null && (stream || partition >= 0)) {
+                throw new ParseException("--checkpoint can not be used with --stream or --partition");
+            }
+            cache_dir = line.getOptionValue(cacheOpt.getLongOpt());
+            if (cache_dir != null && (stream || partition >= 0)) {
+                throw new ParseException("--cache can not be used with --stream or --partition");
+            }
+            watch = line.hasOption(watchOpt.getLongOpt());
+            if (watch && (output_file == null || stream || index != null || partition > 0 || checkpoint_dir != null || cache_dir != null || parsemis != null || shard[1] > 1 || mapped_dir != null || line.hasOption(mergeOpt.getLongOpt()))) {
+                throw new ParseException("--watch needs an output file (or --partition package) and can not be used with --stream, --index, --checkpoint, --cache, --parsemis, --shard, --mapped or --merge");
+            }
+            if (line.hasOption(mergeOpt.getLongOpt())) {
+                parts = new ArrayList<String>();
+                for (String arg : line.getArgs()) {
+                    parts.add(arg);
+                }
+            }
+            query_addr = line.getOptionValue(queryOpt.getLongOpt());
+            if (query_addr != null && cp == null) {
+                throw new ParseException("--query needs a classpath (-c)");
+            }
+            if (line.hasOption(queryCacheOpt.getLongOpt())) {
+                query_cache = (long)parse_positive("query-cache", line.getOptionValue(queryCacheOpt.getLongOpt())) << 20;
+            }
         } catch (final MissingOptionException e) {
             System.err.println(e.getMessage());
-            Usage(options);
+            printUsage(options);
+            throw e;
         } catch (final UnrecognizedOptionException e) {
             System.err.println(e.getMessage());
-            Usage(options);
+            printUsage(options);
+            throw e;
         } catch (final ParseException e) {
             System.err.println(e.getMessage());
-            System.exit(1);
+            throw e;
+        }
+
+        if (query_addr != null) {
+            String query_cp = cp;
+            for (String dir : dirs) {
+                query_cp = dir + File.pathSeparator + query_cp;
+            }
+            // soot's messages must not reach a client on stdout, see Server
+            System.setOut(System.err);
+            Query query = new Query(query_cp, label_type == null ? "expr-tree" : label_type, query_cache, Query.BODY_UNITS);
+            try {
+                Server.serve(query_addr, query);
+            } catch (IOException e) {
+                System.err.println(e);
+            }
+            return;
+        }
+
+        if (STDOUT.equals(output_file)) {
+            // keep the progress messages (ours and soot's) out of the graph
+            System.setOut(System.err);
+        }
+
+        if (parts != null) {
+            Graph g = newGraph(mapped_dir);
+            try {
+                g.writeKinds(kinds);
+                g.writeIndex(index);
+                g.writeNormalized(normalized);
+                g.writeGrouped(output_file.endsWith(".gz"));
+                writeGraph(mergeParts(g, parts), output_file);
+                writeIndex(index, output_file);
+                writeParsemis(g, output_file, parsemis);
+            } finally {
+                closeGraph(g);
+            }
+            return;
         }
 
-        soot.Scene S = runSoot(cp, dirs, excluded);
-        writeGraph(build_PDG(S, excluded, label_type), output_file);
+        // with a cache only the classes which miss need their bodies
+        soot.Scene S = runSoot(cp, dirs, excluded, cache_dir == null);
+        PDG_Builder builder = builder(S, excluded, label_type);
+        builder.tag_lines = cache_dir != null;
+        builder.threads = threads;
+        builder.shard = shard[0];
+        builder.shards = shard[1];
+        builder.lookahead = lookahead;
+        builder.g = newGraph(mapped_dir);
+        builder.g.writeKinds(kinds);
+        builder.g.writeIndex(index);
+        builder.g.writeNormalized(normalized);
+        builder.g.writeGrouped(output_file != null && output_file.endsWith(".gz"));
+        PrintStream cost_log = null;
+        try {
+            if (checkpoint_dir != null) {
+                String run = Checkpoint.run(label_type, dirs, excluded, kinds, shard[0], shard[1]);
+                builder.checkpoint = new Checkpoint(new File(checkpoint_dir), builder.g, run);
+            }
+            if (cache_dir != null) {
+                builder.cache = new MethodCache(new File(cache_dir), builder.g, label_type, dirs);
+            }
+            if (cost_log_file != null) {
+                cost_log = new PrintStream(new FileOutputStream(cost_log_file));
+                cost_log.println("method\tunits\ttraps\tpredicted\tnanos");
+                builder.cost_log = cost_log;
+            }
+            if (watch) {
+                Watch.watch(S, builder, dirs, output_file, partition == 0);
+            } else if (partition >= 0) {
+                builder.parts = new PartitionedOutput(new File(output_file), builder.g, partition);
+                builder.run();
+            } else if (stream) {
+                streamGraph(builder, output_file);
+            } else {
+                Graph g = builder.run();
+                writeGraph(g, output_file);
+                writeParsemis(g, output_file, parsemis);
+            }
+            writeIndex(index, output_file);
+        } finally {
+            if (cost_log != null) {
+                cost_log.close();
+            }
+            closeGraph(builder.g);
+        }
+    }
+
+    static int[] parse_shard(String s) throws ParseException {
+        String[] split = s.split("/");
+        if (split.length != 2) {
+            throw new ParseException("shard must be of the form i/N, got " + s);
+        }
+        int i, n;
+        try {
+            i = Integer.parseInt(split[0]);
+            n = Integer.parseInt(split[1]);
+        } catch (NumberFormatException e) {
+            throw new ParseException("shard must be of the form i/N, got " + s);
+        }
+        if (n < 1 || i < 0 || i >= n) {
+            throw new ParseException("shard must satisfy 0 <= i < N, got " + s);
+        }
+        return new int[]{i, n};
+    }
+
+    static int parse_positive(String name, String s) throws ParseException {
+        int n;
+        try {
+            n = Integer.parseInt(s);
+        } catch (NumberFormatException e) {
+            throw new ParseException(name + " must be a number, got " + s);
+        }
+        if (n < 1) {
+            throw new ParseException(name + " must be at least 1, got " + s);
+        }
+        return n;
+    }
+
+    static Graph newGraph(String mapped_dir) {
+        if (mapped_dir == null) {
+            return new Graph();
+        }
+        return Graph.mapped(new java.io.File(mapped_dir));
+    }
+
+    static void closeGraph(Graph g) {
+        try {
+            g.close();
+        } catch (IOException ex) {
+            System.err.println(ex);
+        }
     }
 
     public static void Usage(org.apache.commons.cli.Options options) {
-        new HelpFormatter().printHelp("jpdg", "", options, "");
+        printUsage(options);
         System.exit(1);
     }
 
+    static void printUsage(org.apache.commons.cli.Options options) {
+        new HelpFormatter().printHelp("jpdg", "", options, "");
+    }
+
     public static soot.Scene runSoot(String cp, List<String> dirs, List<String> excluded) {
+        return runSoot(cp, dirs, excluded, true);
+    }
+
+    /**
+     * Without packs soot only loads the classes: it builds no bodies and
+     * tags no lines, which is left to whoever needs them (see add_lines and
+     * PDG_Builder.tag_lines).
+     */
+    public static soot.Scene runSoot(String cp, List<String> dirs, List<String> excluded, boolean packs) {
         soot.G.reset();
         addPacks();
         soot.Scene S = soot.Scene.v();
         Options O = Options.v();
-        configure_and_run_soot(S, O, cp, dirs, excluded);
+        configure_soot(S, O, cp, dirs, excluded);
+        if (packs) {
+            soot.PackManager.v().runPacks();
+        }
 
         // System.out.println();
         // S.getCallGraph();
@@ -151,6 +467,12 @@ public class JPDG {
     }
 
     public static void configure_and_run_soot(soot.Scene S, Options O, String cp, List<String> dirs, List<String> excluded) {
+        configure_soot(S, O, cp, dirs, excluded);
+        soot.PackManager.v().runPacks();
+    }
+
+    // sets soot up for dirs and loads their classes
+    static void configure_soot(soot.Scene S, Options O, String cp, List<String> dirs, List<String> excluded) {
         O.set_soot_classpath(cp);
         O.set_process_dir(dirs);
         // O.set_exclude(excluded);
@@ -180,7 +502,77 @@ public class JPDG {
         // O.set_app(true);
 
         S.loadNecessaryClasses();
-        soot.PackManager.v().runPacks();
+    }
+
+    /**
+     * Tags the methods of c with their line the way soot's LineNumberAdder
+     * does when runSoot runs the packs: the line before the first statement
+     * after the identity statements, or that statement's own line when
+     * another method of c starts on the line before. A class loaded after
+     * runSoot (see Watch and Query) needs this for the entries of its
+     * methods to get the lines of a whole program build. It retrieves the
+     * bodies of all the methods of c, call it before anything asks a method
+     * for its line.
+     */
+    public static void add_lines(soot.SootClass c) {
+        Map<soot.SootMethod,Integer> first = new LinkedHashMap<soot.SootMethod,Integer>();
+        for (soot.SootMethod m : c.getMethods()) {
+            if (!m.isConcrete()) {
+                continue;
+            }
+            soot.Body body;
+            try {
+                body = m.retrieveActiveBody();
+            } catch (RuntimeException e) {
+                System.err.println(e);
+                continue;
+            }
+            for (soot.Unit u : body.getUnits()) {
+                if (u instanceof soot.jimple.IdentityStmt) {
+                    continue;
+                }
+                if (u.hasTag("LineNumberTag")) {
+                    first.put(m, ((soot.tagkit.LineNumberTag)u.getTag("LineNumberTag")).getLineNumber());
+                }
+                break;
+            }
+        }
+        Set<Integer> lines = new HashSet<Integer>(first.values());
+        for (Map.Entry<soot.SootMethod,Integer> e : first.entrySet()) {
+            int line = e.getValue() - 1;
+            if (lines.contains(line)) {
+                line++;
+            }
+            e.getKey().addTag(new soot.tagkit.LineNumberTag(line));
+        }
+    }
+
+    /**
+     * Does to c what runSoot's packs do to each application class after
+     * tagging the lines (see add_lines, which goes first): the constant
+     * initializers of its static fields become tags, and its bodies get
+     * the transformations of soot's body packs for jimple output. Like
+     * add_lines it is for classes loaded without the packs.
+     */
+    public static void body_packs(soot.SootClass c) {
+        if (!c.isPhantom()) {
+            soot.toolkits.scalar.ConstantInitializerToTagTransformer.v().transformClass(c, true);
+        }
+        soot.PackManager P = soot.PackManager.v();
+        for (soot.SootMethod m : c.getMethods()) {
+            if (!m.isConcrete() || !m.hasActiveBody()) {
+                continue;
+            }
+            soot.Body body = m.getActiveBody();
+            soot.jimple.toolkits.scalar.CopyPropagator.v().transform(body);
+            soot.jimple.toolkits.scalar.ConditionalBranchFolder.v().transform(body);
+            soot.jimple.toolkits.scalar.UnreachableCodeEliminator.v().transform(body);
+            soot.jimple.toolkits.scalar.DeadAssignmentEliminator.v().transform(body);
+            soot.toolkits.scalar.UnusedLocalEliminator.v().transform(body);
+            P.getPack("jtp").apply(body);
+            P.getPack("jop").apply(body);
+            P.getPack("jap").apply(body);
+        }
     }
 
     public static void addPacks() {
@@ -194,6 +586,44 @@ public class JPDG {
     }
 
     public static Graph build_PDG(soot.Scene S, List<String> excluded, String label_type) throws pDG_Builder.Error {
+        return build_PDG(S, excluded, label_type, 1);
+    }
+
+    public static Graph build_PDG(soot.Scene S, List<String> excluded, String label_type, int threads) throws pDG_Builder.Error {
+        PDG_Builder builder = builder(S, excluded, label_type);
+        builder.threads = threads;
+        return builder.run();
+    }
+
+    static PDG_Builder builder(soot.Scene S, List<String> excluded, String label_type) {
+        LabelMaker lm = label_maker(label_type);
+        soot.util.Chain<soot.SootClass> classes = S.getApplicationClasses();
+        CallGraph cg = null;
+        if (false) {
+            cg = S.getCallGraph();
+        }
+        return PDG_Builder.instance(cg, lm, classes, excluded);
+    }
+
+    /**
+     * Runs the builder writing the PDG to path as it goes (see
+     * PDG_Builder.stream) rather than building it all and then writing it.
+     */
+    public static void streamGraph(PDG_Builder builder, String path) throws pDG_Builder.Error, IOException {
+        OutputStream s = null;
+        try {
+            s = openOutput(path);
+            builder.out = s;
+            builder.flush_methods = isPipe(path);
+            builder.run();
+        } finally {
+            if (s != null) {
+                s.close();
+            }
+        }
+    }
+
+    static LabelMaker label_maker(String label_type) {
         LabelMaker lm = null;
         if (label_type.equals("inst")) {
             lm = new InstructionLabels();
@@ -205,23 +635,125 @@ public class JPDG {
             throw new RuntimeException("uknown label type: " + label_type);
         }
         System.out.println("LABEL TYPE " + label_type + " " + lm);
-        soot.util.Chain<soot.SootClass> classes = S.getApplicationClasses();
-        CallGraph cg = null;
-        if (false) {
-            cg = S.getCallGraph();
+        return lm;
+    }
+
+    /**
+     * Reads the part files of a sharded run into one graph. The parts all
+     * carry the method entries, which are merged into one node each, so call
+     * edges between parts end up pointing at the same entry.
+     */
+    public static Graph mergeParts(List<String> paths) {
+        return mergeParts(new Graph(), paths);
+    }
+
+    public static Graph mergeParts(Graph g, List<String> paths) {
+        for (String path : paths) {
+            if (!path.endsWith(".gz")) {
+                try {
+                    GraphReader.read(new File(path), g);
+                } catch (IOException ex) {
+                    throw new RuntimeException(path + ": " + ex);
+                }
+                continue;
+            }
+            InputStream s = null;
+            try {
+                s = new GZIPInputStream(new FileInputStream(path), 1 << 16);
+                g.Read(s);
+            } catch (IOException ex) {
+                throw new RuntimeException(path + ": " + ex);
+            } finally {
+               try {s.close();} catch (Exception ex) {}
+            }
         }
-        return PDG_Builder.build(cg, lm, classes, excluded);
+        return g;
     }
 
-    public static void writeGraph(Graph g, String path) {
-        FileOutputStream s = null;
+    /**
+     * Opens path for writing, gzipped in parallel blocks (see
+     * BlockGzipOutputStream) when it ends with .gz.
+     */
+    public static OutputStream openOutput(String path) throws IOException {
+        if (path.equals(STDOUT) && stdout != null) {
+            return stdout;
+        } else if (path.equals(STDOUT)) {
+            return new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16);
+        } else if (path.endsWith(".gz")) {
+            return new BlockGzipOutputStream(new FileOutputStream(path));
+        }
+        return new BufferedOutputStream(new FileOutputStream(path));
+    }
+
+    /**
+     * Is path stdout (-) or a named pipe? Either one is read as it is
+     * written, so the output goes there method by method (see
+     * PDG_Builder.flush_methods).
+     */
+    public static boolean isPipe(String path) {
+        if (path == null) {
+            return false;
+        } else if (path.equals(STDOUT)) {
+            return true;
+        }
+        File f = new File(path);
+        return f.exists() && !f.isFile() && !f.isDirectory();
+    }
+
+    static void writeIndex(MethodIndex.Builder index, String output_file) throws IOException {
+        if (index == null) {
+            return;
+        }
+        index.write(new File(output_file + ".idx"));
+    }
+
+    // parsemis is {by, label, "html" or "plain"}, see Parsemis
+    static void writeParsemis(Graph g, String output_file, String[] parsemis) throws IOException {
+        if (parsemis == null) {
+            return;
+        }
+        Writer out = null;
+        Writer ids = null;
         try {
-            s = new FileOutputStream(path);
-            g.Write(s);
-        } catch (IOException ex) {
-            System.err.println(ex);
+            out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(output_file + ".parsemis"), "UTF-8"), 1 << 16);
+            ids = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(output_file + ".parsemis.ids"), "UTF-8"), 1 << 16);
+            Parsemis.write(g, out, ids, parsemis[0], parsemis[1], parsemis[2].equals("html"));
         } finally {
-           try {s.close();} catch (Exception ex) {}
+            try {
+                if (out != null) {
+                    out.close();
+                }
+            } finally {
+                if (ids != null) {
+                    ids.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes g to path (see openOutput). A failed write is thrown, what was
+     * written of path by then is not a graph.
+     */
+    public static void writeGraph(Graph g, String path) throws IOException {
+        OutputStream s = null;
+        try {
+            WritableByteChannel c;
+            if (path.endsWith(".gz") || path.equals(STDOUT)) {
+                s = openOutput(path);
+                c = Channels.newChannel(s);
+            } else {
+                FileOutputStream f = new FileOutputStream(path);
+                s = f;
+                c = f.getChannel();
+            }
+            VegWriter w = new VegWriter(c, 1 << 20);
+            g.Write(w);
+            w.flush();
+        } finally {
+            if (s != null) {
+                s.close();
+            }
         }
     }
 }
@@ -0,0 +1,133 @@
+package edu.cwru.jpdg;
+
+/* Tim Henderson (tadh@case.edu)
+ *
+ * This file is part of jpdg a library to generate Program Dependence Graphs
+ * from JVM bytecode.
+ *
+ * Copyright (c) 2014, Tim Henderson, Case Western Reserve University
+ *   Cleveland, Ohio 44106
+ *   All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc.,
+ *   51 Franklin Street, Fifth Floor,
+ *   Boston, MA  02110-1301
+ *   USA
+ * or retrieve version 2.1 at their website:
+ *   http://www.gnu.org/licenses/lgpl-2.1.html
+ */
+
+
+import java.util.*;
+
+/**
+ * A map keeping its most recently used entries up to a total weight (what
+ * weigh says an entry costs, eg. its bytes). Putting past the limit drops
+ * the least recently used entries, and an entry heavier than the whole
+ * limit is not kept at all. An entry is weighed once, when it is put, so
+ * a value which changes afterwards (a soot body) still takes away what it
+ * added. It counts hits, misses and evictions for the stats of the cache
+ * using it (see Query).
+ */
+abstract class Lru<K,V> {
+
+    static class Entry<V> {
+        final V value;
+        final long weight;
+
+        Entry(V value, long weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    final long limit;
+    final LinkedHashMap<K,Entry<V>> map = new LinkedHashMap<K,Entry<V>>(16, 0.75f, true);
+    long weight = 0;
+    long hits = 0;
+    long misses = 0;
+    long evictions = 0;
+
+    Lru(long limit) {
+        this.limit = limit;
+    }
+
+    protected abstract long weigh(V value);
+
+    /** Called for every value dropped, eg. to release what it holds. */
+    protected void evicted(K key, V value) {}
+
+    public synchronized V get(K key) {
+        Entry<V> e = map.get(key);
+        if (e != null) {
+            hits++;
+            return e.value;
+        }
+        misses++;
+        return null;
+    }
+
+    public synchronized void put(K key, V value) {
+        long w = weigh(value);
+        Entry<V> old = map.remove(key);
+        if (old != null) {
+            weight -= old.weight;
+            if (old.value != value) {
+                evicted(key, old.value);
+            }
+        }
+        if (w > limit) {
+            evictions++;
+            evicted(key, value);
+            return;
+        }
+        map.put(key, new Entry<V>(value, w));
+        weight += w;
+        Iterator<Map.Entry<K,Entry<V>>> it = map.entrySet().iterator();
+        while (weight > limit) {
+            Map.Entry<K,Entry<V>> e = it.next();
+            it.remove();
+            weight -= e.getValue().weight;
+            evictions++;
+            evicted(e.getKey(), e.getValue().value);
+        }
+    }
+
+    public synchronized boolean contains(K key) {
+        return map.containsKey(key);
+    }
+
+    public synchronized int size() {
+        return map.size();
+    }
+
+    public synchronized long weight() {
+        return weight;
+    }
+
+    /** The counters and the current size, for a stats response. */
+    public synchronized Map<String,Object> stats() {
+        Map<String,Object> m = new LinkedHashMap<String,Object>();
+        m.put("entries", map.size());
+        m.put("weight", weight);
+        m.put("limit", limit);
+        m.put("hits", hits);
+        m.put("misses", misses);
+        m.put("evictions", evictions);
+        long lookups = hits + misses;
+        m.put("hit_rate", lookups > 0 ? (double)hits / lookups : null);
+        return m;
+    }
+}
@@ -30,6 +30,13 @@ package edu.cwru.jpdg;
  */ 
 
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import java.io.OutputStream;
 
 import soot.util.Chain;
 
@@ -40,7 +47,11 @@ import soot.toolkits.graph.pdg.EnhancedBlockGraph;
 import soot.toolkits.graph.ExpandedBlockGraph;
 import soot.toolkits.graph.UnitBlockGraph;
 
+import edu.cwru.jpdg.graph.Checkpoint;
 import edu.cwru.jpdg.graph.Graph;
+import edu.cwru.jpdg.graph.MethodCache;
+import edu.cwru.jpdg.graph.PartitionedOutput;
+import edu.cwru.jpdg.graph.VegWriter;
 import edu.cwru.jpdg.label.LabelMaker;
 
 public class PDG_Builder {
@@ -50,91 +61,357 @@ public class PDG_Builder {
     CallGraph cg;
     Chain<soot.SootClass> classes;
     List<String> excluded;
+    int threads;
+    int shard = 0;
+    int shards = 1;
+    // how many methods may be loaded ahead of the one being merged, 0 picks
+    // a few per thread. A longer lookahead lets the scheduler start a big
+    // method earlier at the cost of holding more bodies and shards.
+    int lookahead = 0;
+    // when set the predicted and actual cost of each method is logged here
+    java.io.PrintStream cost_log;
+    OutputStream out;
+    // when set out is flushed after the entries and after every method, so
+    // a reader on the other end of a pipe gets each method as it is built
+    boolean flush_methods = false;
+    // when set the shards are written to these partitions instead of out
+    PartitionedOutput parts;
+    // when set finished classes are kept here and skipped when resuming
+    Checkpoint checkpoint;
+    // when set unchanged classes are read from here instead of being built
+    MethodCache cache;
+    // set when soot did not run its packs (see JPDG.runSoot), the lines of
+    // the methods are then tagged by tag_lines
+    boolean tag_lines = false;
+    // the entry of every method and the methods of every class built, for
+    // rebuild
+    Map<String,Long> method_entries = new HashMap<String,Long>();
+    Map<String,List<soot.SootMethod>> class_methods = new HashMap<String,List<soot.SootMethod>>();
 
     public static Graph build(CallGraph cg, LabelMaker lm, Chain<soot.SootClass> classes, List<String> excluded) throws pDG_Builder.Error {
-        PDG_Builder self = new PDG_Builder(cg, lm, classes, excluded);
+        return build(cg, lm, classes, excluded, 1);
+    }
+
+    /**
+     * Builds the PDG of every allowed class. When threads > 1 the per method
+     * pDGs are built concurrently (see process_classes). The result is
+     * identical to the single threaded build.
+     */
+    public static Graph build(CallGraph cg, LabelMaker lm, Chain<soot.SootClass> classes, List<String> excluded, int threads) throws pDG_Builder.Error {
+        return build(cg, lm, classes, excluded, threads, 0, 1);
+    }
+
+    /**
+     * Builds part shard (of shards) of the PDG. Classes are split between
+     * the shards by in_shard. Every part still holds the entry of every
+     * method so call edges into other parts can be resolved when the parts
+     * are merged (see Graph.Read).
+     */
+    public static Graph build(CallGraph cg, LabelMaker lm, Chain<soot.SootClass> classes, List<String> excluded, int threads, int shard, int shards) throws pDG_Builder.Error {
+        PDG_Builder self = new PDG_Builder(cg, lm, classes, excluded, threads);
+        self.shard = shard;
+        self.shards = shards;
         self.build_PDG();
         return self.g;
     }
 
-    private PDG_Builder(CallGraph cg, LabelMaker lm, Chain<soot.SootClass> classes, List<String> excluded) {
+    /**
+     * Like build, but writes each method's pDG to out as soon as it is built
+     * instead of keeping the whole graph in memory. The vertices of the
+     * method entries come first, followed by the vertices and edges of each
+     * method in turn. The returned graph only holds the method entries.
+     */
+    public static Graph stream(CallGraph cg, LabelMaker lm, Chain<soot.SootClass> classes, List<String> excluded, int threads, OutputStream out) throws pDG_Builder.Error {
+        PDG_Builder self = new PDG_Builder(cg, lm, classes, excluded, threads);
+        self.out = out;
+        self.build_PDG();
+        return self.g;
+    }
+
+    /**
+     * An unstarted builder, for callers in this package which want to set
+     * more than the static build methods allow. Call run to build.
+     */
+    static PDG_Builder instance(CallGraph cg, LabelMaker lm, Chain<soot.SootClass> classes, List<String> excluded) {
+        return new PDG_Builder(cg, lm, classes, excluded, 1);
+    }
+
+    Graph run() throws pDG_Builder.Error {
+        build_PDG();
+        return g;
+    }
+
+    private PDG_Builder(CallGraph cg, LabelMaker lm, Chain<soot.SootClass> classes, List<String> excluded, int threads) {
         this.cg = cg;
         this.lm = lm;
         this.classes = classes;
         this.excluded = excluded;
+        this.threads = threads;
+    }
+
+    /**
+     * Is the class in the given shard (of shards)? The split only depends on
+     * the class name so every run agrees on it.
+     */
+    public static boolean in_shard(soot.SootClass c, int shard, int shards) {
+        return (c.getName().hashCode() & 0x7fffffff) % shards == shard;
+    }
+
+    // is the class not excluded?
+    boolean use(soot.SootClass c) {
+        String pkg_name = c.getPackageName();
+        String cls_name = c.getName();
+        for (String exclude : excluded) {
+            if (exclude.startsWith("*") && exclude.endsWith("*")) {
+                exclude = exclude.substring(1, exclude.length()-1);
+                if (pkg_name.contains(exclude) || cls_name.contains(exclude)) {
+                    return false;
+                }
+            } else if (exclude.startsWith("*")) {
+                exclude = exclude.substring(1);
+                if (pkg_name.endsWith(exclude) || cls_name.contains(exclude)) {
+                    return false;
+                }
+            } else {
+                if (pkg_name.startsWith(exclude)) {
+                    return false;
+                }
+            }
+        }
+        return true;
     }
 
     void build_PDG() throws pDG_Builder.Error {
         System.out.println(classes);
         List<soot.SootClass> allowed = new ArrayList<soot.SootClass>();
         for (soot.SootClass c : classes) {
-            String pkg_name = c.getPackageName();
-            String cls_name = c.getName();
-            boolean use = true;
-            for (String exclude : excluded) {
-                if (exclude.startsWith("*") && exclude.endsWith("*")) {
-                    exclude = exclude.substring(1, exclude.length()-1);
-                    if (pkg_name.contains(exclude) || cls_name.contains(exclude)) {
-                        use = false;
-                        break;
-                    }
-                } else if (exclude.startsWith("*")) {
-                    exclude = exclude.substring(1);
-                    if (pkg_name.endsWith(exclude) || cls_name.contains(exclude)) {
-                        use = false;
-                        break;
+            if (use(c)) {
+                allowed.add(c);
+            }
+        }
+        // every run reserves the uid ranges of all the allowed methods, in
+        // the same order, so the uids do not depend on the shard or on the
+        // order the methods get built in.
+        List<String> signatures = new ArrayList<String>();
+        for (soot.SootClass c : allowed) {
+            try {
+                for (soot.SootMethod m : c.getMethods()) {
+                    signatures.add(m.getSignature());
+                }
+            } catch (java.lang.Exception e) {
+                continue;
+            }
+        }
+        g.reserve(signatures);
+        List<soot.SootClass> untagged = new ArrayList<soot.SootClass>();
+        for (soot.SootClass c : allowed) {
+            if (tag_lines && !tag_lines(c)) {
+                untagged.add(c);
+            }
+            add_entries(c);
+        }
+        // like soot's packs, which build all the bodies before transforming
+        // any of them
+        for (soot.SootClass c : untagged) {
+            JPDG.body_packs(c);
+        }
+        if (shards > 1) {
+            List<soot.SootClass> mine = new ArrayList<soot.SootClass>();
+            for (soot.SootClass c : allowed) {
+                if (in_shard(c, shard, shards)) {
+                    mine.add(c);
+                }
+            }
+            allowed = mine;
+        }
+        if (checkpoint != null) {
+            Set<String> done;
+            try {
+                done = checkpoint.resume();
+            } catch (java.io.IOException e) {
+                throw new RuntimeException(e);
+            }
+            List<soot.SootClass> todo = new ArrayList<soot.SootClass>();
+            for (soot.SootClass c : allowed) {
+                if (!done.contains(c.getName())) {
+                    todo.add(c);
+                }
+            }
+            allowed = todo;
+        }
+        if (cache != null) {
+            List<soot.SootClass> todo = new ArrayList<soot.SootClass>();
+            for (soot.SootClass c : allowed) {
+                List<String> names = new ArrayList<String>();
+                try {
+                    for (soot.SootMethod m : c.getMethods()) {
+                        names.add(m.getSignature());
                     }
-                } else {
-                    if (pkg_name.startsWith(exclude)) {
-                        use = false;
-                        break;
+                } catch (java.lang.Exception e) {
+                    todo.add(c);
+                    continue;
+                }
+                try {
+                    if (!cache.load(c.getName(), names, method_entries)) {
+                        todo.add(c);
                     }
+                } catch (java.io.IOException e) {
+                    throw new RuntimeException(e);
                 }
             }
-            if (use) {
-                allowed.add(c);
-            }
+            allowed = todo;
+        }
+        if (parts != null && parts.byPackage()) {
+            // a package's partition is closed once the next package starts
+            Collections.sort(allowed, new Comparator<soot.SootClass>() {
+                public int compare(soot.SootClass a, soot.SootClass b) {
+                    int c = a.getPackageName().compareTo(b.getPackageName());
+                    return c != 0 ? c : a.getName().compareTo(b.getName());
+                }
+            });
+        }
+        if (threads > 1 || out != null || parts != null || checkpoint != null || cache != null) {
+            process_classes(method_entries, allowed);
+            return;
         }
-        Map<String,Integer> method_entries = new HashMap<String,Integer>();
         for (soot.SootClass c : allowed) {
-            String source = "";
             try {
-                source = new String(c.getTag("SourceFileTag").getValue(), "UTF-8");
-            } catch (java.io.UnsupportedEncodingException e) {
-                throw new RuntimeException(e.toString());
-            } catch (java.lang.Exception e) {
-                source = "unknown";
+                process_class(method_entries, c);
+            } catch (Exception e) {
+                System.err.println(e);
             }
-            List<soot.SootMethod> methods = null;
+        }
+    }
+
+    /**
+     * Tags the methods of c with their entry lines from the cache and
+     * returns true, or when it misses from their bodies (JPDG.add_lines),
+     * keeping the lines for the cache. So only the classes which miss have
+     * their bodies built, they still need JPDG.body_packs.
+     */
+    boolean tag_lines(soot.SootClass c) {
+        List<soot.SootMethod> methods = null;
+        try {
+            methods = c.getMethods();
+        } catch (java.lang.Exception e) {
+            return true;
+        }
+        List<String> names = new ArrayList<String>();
+        for (soot.SootMethod m : methods) {
+            names.add(m.getSignature());
+        }
+        Map<String,Integer> lines = null;
+        if (cache != null) {
             try {
-              methods = c.getMethods();
-            } catch (java.lang.Exception e) {
-              continue;
+                lines = cache.lines(c.getName(), names);
+            } catch (java.io.IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        if (lines != null) {
+            for (soot.SootMethod m : methods) {
+                Integer line = lines.get(m.getSignature());
+                if (line != null && line >= 0) {
+                    m.addTag(new soot.tagkit.LineNumberTag(line));
+                }
             }
+            return true;
+        }
+        JPDG.add_lines(c);
+        if (cache != null) {
+            lines = new HashMap<String,Integer>();
             for (soot.SootMethod m : methods) {
-                String name = pDG_Builder.method_name(m);
-                int entry_uid = g.addNode(
-                    name, "",
-                    c.getPackageName(), c.getName(), source, m.getSignature(),
-                    "entry",
-                    m.getJavaSourceStartLineNumber(),
-                    m.getJavaSourceStartColumnNumber(),
-                    m.getJavaSourceStartLineNumber(),
-                    m.getJavaSourceStartColumnNumber()
-                );
-                method_entries.put(name, entry_uid);
+                lines.put(m.getSignature(), m.getJavaSourceStartLineNumber());
             }
+            cache.keep_lines(c.getName(), lines);
         }
-        for (soot.SootClass c : allowed) {
+        return false;
+    }
+
+    // adds the entries of the methods of c to g and method_entries
+    void add_entries(soot.SootClass c) {
+        String source = source_file(c);
+        List<soot.SootMethod> methods = null;
+        try {
+          methods = c.getMethods();
+        } catch (java.lang.Exception e) {
+          return;
+        }
+        class_methods.put(c.getName(), new ArrayList<soot.SootMethod>(methods));
+        for (soot.SootMethod m : methods) {
+            add_entry(g, method_entries, c, source, m);
+        }
+    }
+
+    static String source_file(soot.SootClass c) {
+        try {
+            return new String(c.getTag("SourceFileTag").getValue(), "UTF-8");
+        } catch (java.io.UnsupportedEncodingException e) {
+            throw new RuntimeException(e.toString());
+        } catch (java.lang.Exception e) {
+            return "unknown";
+        }
+    }
+
+    // adds the entry of m to g and method_entries, see Query
+    static long add_entry(Graph g, Map<String,Long> method_entries, soot.SootClass c, String source, soot.SootMethod m) {
+        String name = pDG_Builder.method_name(m);
+        long entry_uid = g.addNode(
+            name, "",
+            c.getPackageName(), c.getName(), source, m.getSignature(),
+            "entry",
+            m.getJavaSourceStartLineNumber(),
+            m.getJavaSourceStartColumnNumber(),
+            m.getJavaSourceStartLineNumber(),
+            m.getJavaSourceStartColumnNumber()
+        );
+        method_entries.put(name, entry_uid);
+        return entry_uid;
+    }
+
+    /**
+     * Builds the given classes again, which soot has reloaded (or dropped,
+     * for classes which are gone), leaving the pDGs of the other classes be:
+     * the vertices of the classes' old methods are taken out of g (see
+     * Graph.without) and the classes are built into what is left. Returns
+     * the new g, call after run. The packages of other methods which lost
+     * edges (calls into methods which are gone) are added to touched.
+     */
+    Graph rebuild(Collection<String> class_names, Set<String> touched) throws pDG_Builder.Error {
+        Set<String> stale = new HashSet<String>();
+        for (String name : class_names) {
+            List<soot.SootMethod> old = class_methods.remove(name);
+            if (old == null) {
+                continue;
+            }
+            for (soot.SootMethod m : old) {
+                stale.add(m.getSignature());
+                method_entries.remove(pDG_Builder.method_name(m));
+            }
+        }
+        List<edu.cwru.jpdg.graph.Edge> dangling = new ArrayList<edu.cwru.jpdg.graph.Edge>();
+        g = g.without(stale, dangling);
+        List<soot.SootClass> rebuilt = new ArrayList<soot.SootClass>();
+        for (soot.SootClass c : classes) {
+            if (class_names.contains(c.getName()) && use(c)) {
+                add_entries(c);
+                rebuilt.add(c);
+            }
+        }
+        for (soot.SootClass c : rebuilt) {
             try {
                 process_class(method_entries, c);
             } catch (Exception e) {
                 System.err.println(e);
             }
         }
+        for (edu.cwru.jpdg.graph.Edge e : g.restore(dangling)) {
+            touched.add(g.node(e.src).package_name);
+        }
+        return g;
     }
 
-    void process_class(Map<String,Integer> method_entries, soot.SootClass c) throws pDG_Builder.Error {
+    void process_class(Map<String,Long> method_entries, soot.SootClass c) throws pDG_Builder.Error {
         System.out.println(c);
         for (soot.SootMethod m : c.getMethods()) {
             System.out.println(String.format("   %s", m));
@@ -154,4 +431,262 @@ public class PDG_Builder {
             }
         }
     }
+
+    /**
+     * The multi-threaded version of process_class. It is a three stage
+     * pipeline connected by a bounded queue:
+     *
+     *  1. a loader thread retrieves the bodies and block graphs. Soot is not
+     *     thread safe so this is the only thread which loads anything.
+     *  2. a pool of workers builds the pDG of each method into its own
+     *     shard of g (method_entries is only read while they run).
+     *  3. this thread takes the finished shards in the order process_class
+     *     would have built them and either merges them into g or, when
+     *     streaming, writes them to out (or to parts) and drops them.
+     *
+     * The loader blocks once lookahead jobs are outstanding so the bodies
+     * and shards in flight stay bounded. Within that window the workers take
+     * the most expensive method first (see CostScheduler).
+     */
+    void process_classes(Map<String,Long> method_entries, List<soot.SootClass> allowed) throws pDG_Builder.Error {
+        CostScheduler pool = new CostScheduler(threads);
+        BlockingQueue<MethodJob> jobs = new ArrayBlockingQueue<MethodJob>(lookahead > 0 ? lookahead : 4*threads);
+        Loader loader = new Loader(method_entries, allowed, pool, jobs);
+        Set<soot.SootClass> failed = new HashSet<soot.SootClass>();
+        Thread t = new Thread(loader, "jpdg-loader");
+        t.setDaemon(true);
+        VegWriter veg = out != null ? new VegWriter(out) : null;
+        try {
+            if (out != null) {
+                g.Write(veg);
+                flush_method(veg);
+            } else if (parts != null) {
+                parts.writeEntries();
+            }
+            t.start();
+            while (true) {
+                MethodJob job = jobs.take();
+                if (job == MethodJob.END) {
+                    break;
+                }
+                if (checkpoint != null) {
+                    checkpoint.start(job.klass.getName());
+                }
+                if (cache != null) {
+                    cache.start(job.klass.getName());
+                }
+                MethodTask task = finish(job, failed);
+                if (task == null) {
+                    continue;
+                } else if (out != null) {
+                    g.WriteShard(task.shard, veg);
+                    flush_method(veg);
+                } else if (parts != null) {
+                    parts.write(job.klass.getPackageName(), job.klass.getName(), task.shard);
+                } else {
+                    if (checkpoint != null) {
+                        checkpoint.add(job.klass.getName(), task.shard);
+                    }
+                    if (cache != null) {
+                        cache.add(job.klass.getName(), task.shard);
+                    }
+                    g.merge(task.shard);
+                }
+            }
+            if (out != null) {
+                veg.flush();
+            } else if (parts != null) {
+                parts.close();
+            } else if (checkpoint != null && loader.error == null) {
+                checkpoint.close();
+            }
+            if (cache != null && loader.error == null) {
+                cache.close();
+            }
+            if (loader.error != null) {
+                throw new RuntimeException(loader.error);
+            }
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch (java.io.IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            t.interrupt();
+            pool.shutdownNow();
+        }
+    }
+
+    private void flush_method(VegWriter veg) throws java.io.IOException {
+        if (flush_methods) {
+            veg.flush();
+            out.flush();
+        }
+    }
+
+    /**
+     * The first stage of process_classes.
+     */
+    private class Loader implements Runnable {
+        Map<String,Long> method_entries;
+        List<soot.SootClass> allowed;
+        CostScheduler pool;
+        BlockingQueue<MethodJob> jobs;
+        // the method shards are made from this one, which never changes
+        Graph entries;
+        Throwable error;
+
+        Loader(Map<String,Long> method_entries, List<soot.SootClass> allowed, CostScheduler pool, BlockingQueue<MethodJob> jobs) {
+            this.method_entries = method_entries;
+            this.allowed = allowed;
+            this.pool = pool;
+            this.jobs = jobs;
+            this.entries = g.shard();
+        }
+
+        public void run() {
+            try {
+                load();
+            } catch (InterruptedException e) {
+                return;
+            } catch (Throwable e) {
+                error = e;
+            }
+            try {
+                jobs.put(MethodJob.END);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+
+        void load() throws InterruptedException {
+            for (soot.SootClass c : allowed) {
+                System.out.println(c);
+                List<soot.SootMethod> methods = null;
+                try {
+                    methods = c.getMethods();
+                } catch (Exception e) {
+                    System.err.println(e);
+                    continue;
+                }
+                for (soot.SootMethod m : methods) {
+                    System.out.println(String.format("   %s", m));
+                    soot.Body body = null;
+                    BlockGraph ebg = null;
+                    try {
+                        body = m.retrieveActiveBody();
+                    } catch (RuntimeException e) {
+                        System.err.println(e);
+                        continue;
+                    }
+                    try {
+                        ebg = new UnitBlockGraph(body);
+                    } catch (RuntimeException e) {
+                        jobs.put(new MethodJob(c, m, e));
+                        continue;
+                    }
+                    MethodJob job = new MethodJob(c, m, null);
+                    MethodTask task = new MethodTask(method_entries, entries.shard(), c, m, body, ebg);
+                    job.result = pool.submit(task, task.predicted);
+                    jobs.put(job);
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits for a job to finish. Errors are reported the same way
+     * process_class reports them: a soot error skips the method, anything
+     * else skips the rest of the class. Returns null if there is nothing to
+     * add to the graph.
+     */
+    private MethodTask finish(MethodJob job, Set<soot.SootClass> failed) {
+        if (failed.contains(job.klass)) {
+            if (job.result != null) {
+                job.result.cancel(true);
+            }
+            return null;
+        }
+        if (job.error != null) {
+            failed.add(job.klass);
+            System.err.println(job.error);
+            return null;
+        }
+        MethodTask task = null;
+        try {
+            task = job.result.get();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+        if (cost_log != null) {
+            cost_log.println(String.format("%s\t%d\t%d\t%d\t%d",
+                job.method.getSignature(), task.units, task.traps, task.predicted, task.nanos));
+        }
+        if (out != null || parts != null) {
+            // nothing refers to the body once the pDG is written
+            job.method.releaseActiveBody();
+        }
+        if (task.error instanceof pDG_Builder.SootError) {
+            System.err.println(String.format("soot error for method %s\n%s", job.method, task.error));
+        } else if (task.error != null) {
+            failed.add(job.klass);
+            System.err.println(task.error);
+        }
+        return task;
+    }
+
+    private static class MethodJob {
+        static final MethodJob END = new MethodJob(null, null, null);
+
+        soot.SootClass klass;
+        soot.SootMethod method;
+        RuntimeException error;
+        Future<MethodTask> result;
+
+        MethodJob(soot.SootClass klass, soot.SootMethod method, RuntimeException error) {
+            this.klass = klass;
+            this.method = method;
+            this.error = error;
+        }
+    }
+
+    private class MethodTask implements Callable<MethodTask> {
+        Map<String,Long> method_entries;
+        Graph shard;
+        soot.SootClass klass;
+        soot.SootMethod method;
+        soot.Body body;
+        BlockGraph cfg;
+        Exception error;
+        int units;
+        int traps;
+        long predicted;
+        long nanos;
+
+        MethodTask(Map<String,Long> method_entries, Graph shard, soot.SootClass c, soot.SootMethod m, soot.Body body, BlockGraph cfg) {
+            this.method_entries = method_entries;
+            this.shard = shard;
+            this.klass = c;
+            this.method = m;
+            this.body = body;
+            this.cfg = cfg;
+            this.units = body.getUnits().size();
+            this.traps = body.getTraps().size();
+            this.predicted = CostScheduler.cost(units, traps);
+        }
+
+        public MethodTask call() {
+            long start = System.nanoTime();
+            try {
+                pDG_Builder.build(cg, method_entries, lm, shard, klass, method, body, cfg);
+            } catch (Exception e) {
+                // the partially built shard is still merged, just as the
+                // nodes added before a failure stay in g in process_class.
+                error = e;
+            }
+            nanos = System.nanoTime() - start;
+            return this;
+        }
+    }
 }
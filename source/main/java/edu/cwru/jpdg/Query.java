@@ -0,0 +1,250 @@
+package edu.cwru.jpdg;
+
+/* Tim Henderson (tadh@case.edu)
+ *
+ * This file is part of jpdg a library to generate Program Dependence Graphs
+ * from JVM bytecode.
+ *
+ * Copyright (c) 2014, Tim Henderson, Case Western Reserve University
+ *   Cleveland, Ohio 44106
+ *   All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc.,
+ *   51 Franklin Street, Fifth Floor,
+ *   Boston, MA  02110-1301
+ *   USA
+ * or retrieve version 2.1 at their website:
+ *   http://www.gnu.org/licenses/lgpl-2.1.html
+ */
+
+
+import java.util.*;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import soot.options.Options;
+import soot.toolkits.graph.UnitBlockGraph;
+
+import edu.cwru.jpdg.graph.Graph;
+import edu.cwru.jpdg.graph.GraphReader;
+import edu.cwru.jpdg.label.LabelMaker;
+
+/**
+ * Builds the pDG of one method at a time, for tools (an IDE, see
+ * JPDG --query and Server) which want a method's graph right away rather
+ * than a dump of the whole program. Soot is set up once on the classpath
+ * and a query only resolves the class of the method asked for. The pDG is
+ * built by pDG_Builder.build into a graph holding just the method and its
+ * entry, so its uids are those of a whole program build (short of a range
+ * collision, see Graph.range). It has no call edges, as in JPDG.
+ *
+ * Two caches keep recent work: the VEG of the pDGs, weighed in bytes, and
+ * the soot bodies, weighed in units. A body dropped from the second one is
+ * released from its method too, so soot does not keep it alive. Soot only
+ * builds a method's body once, so the method's class is loaded again when
+ * a released body is asked for (see reload).
+ */
+public class Query {
+
+    public static final long PDG_BYTES = 64L << 20;
+    public static final long BODY_UNITS = 1L << 20;
+
+    final soot.Scene S;
+    final LabelMaker lm;
+    final Lru<String,byte[]> pdgs;
+    final Lru<String,soot.Body> bodies;
+    // the classes add_lines has been through
+    final Set<String> lined = new HashSet<String>();
+    long hits = 0;
+    long hit_ns = 0;
+    long built = 0;
+    long build_ns = 0;
+    long errors = 0;
+
+    public Query(String cp, String label_type) {
+        this(cp, label_type, PDG_BYTES, BODY_UNITS);
+    }
+
+    public Query(String cp, String label_type, long pdg_bytes, long body_units) {
+        soot.G.reset();
+        S = soot.Scene.v();
+        Options O = Options.v();
+        O.set_soot_classpath(cp);
+        O.set_keep_line_number(true);
+        O.set_allow_phantom_refs(true);
+        O.set_keep_offset(true);
+        O.set_ignore_resolution_errors(true);
+        O.set_verbose(false);
+        S.loadBasicClasses();
+        lm = JPDG.label_maker(label_type);
+        pdgs = new Lru<String,byte[]>(pdg_bytes) {
+            protected long weigh(byte[] veg) {
+                return veg.length;
+            }
+        };
+        bodies = new Lru<String,soot.Body>(body_units) {
+            protected long weigh(soot.Body body) {
+                return body.getUnits().size();
+            }
+            protected void evicted(String signature, soot.Body body) {
+                soot.SootMethod m = body.getMethod();
+                if (m.hasActiveBody() && m.getActiveBody() == body) {
+                    m.releaseActiveBody();
+                }
+            }
+        };
+    }
+
+    /**
+     * The pDG of the method with the given signature (eg. <p.A: int f(int)>,
+     * or its entry's label) as VEG, from the cache when it is there.
+     */
+    public synchronized byte[] veg(String signature) throws pDG_Builder.Error {
+        long start = System.nanoTime();
+        if (signature.startsWith("method ")) {
+            signature = signature.substring("method ".length());
+        }
+        byte[] veg = pdgs.get(signature);
+        if (veg != null) {
+            hits++;
+            hit_ns += System.nanoTime() - start;
+            return veg;
+        }
+        try {
+            veg = build(signature);
+        } catch (pDG_Builder.Error e) {
+            errors++;
+            throw e;
+        } catch (RuntimeException e) {
+            errors++;
+            throw e;
+        }
+        pdgs.put(signature, veg);
+        built++;
+        build_ns += System.nanoTime() - start;
+        return veg;
+    }
+
+    /** Like veg, but read back into a graph. */
+    public Graph pdg(String signature) throws pDG_Builder.Error {
+        Graph g = new Graph();
+        try {
+            GraphReader.read(veg(signature), signature, g);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return g;
+    }
+
+    byte[] build(String signature) throws pDG_Builder.Error {
+        soot.Body body = body(method(signature));
+        // the method may have been reloaded for its body
+        soot.SootMethod m = body.getMethod();
+        soot.SootClass c = m.getDeclaringClass();
+        Graph g = new Graph();
+        Map<String,Long> method_entries = new HashMap<String,Long>();
+        PDG_Builder.add_entry(g, method_entries, c, PDG_Builder.source_file(c), m);
+        pDG_Builder.build(null, method_entries, lm, g, c, m, body, new UnitBlockGraph(body));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            g.Write(out);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return out.toByteArray();
+    }
+
+    // resolves the class of the method, and only that class, to bodies
+    soot.SootMethod method(String signature) throws pDG_Builder.Error {
+        if (!signature.startsWith("<") || !signature.endsWith(">") || signature.indexOf(": ") < 0) {
+            throw new pDG_Builder.Error("not a method signature (eg. <p.A: int f(int)>): " + signature);
+        }
+        String class_name = S.signatureToClass(signature);
+        soot.SootClass c = S.forceResolve(class_name, soot.SootClass.BODIES);
+        if (c.isPhantom()) {
+            throw new pDG_Builder.Error("class not on the classpath: " + class_name);
+        }
+        c.setApplicationClass();
+        if (lined.add(class_name)) {
+            add_lines(c);
+        }
+        soot.SootMethod m = c.getMethodUnsafe(S.signatureToSubsignature(signature));
+        if (m == null) {
+            throw new pDG_Builder.Error("no such method: " + signature);
+        } else if (!m.isConcrete()) {
+            throw new pDG_Builder.Error("method has no body: " + signature);
+        }
+        return m;
+    }
+
+    /**
+     * Tags the lines of c's methods (see JPDG.add_lines) so the entries get
+     * the lines they have in a whole program build. That retrieves all the
+     * bodies of c, which go into the cache for the queries to come.
+     */
+    void add_lines(soot.SootClass c) {
+        JPDG.add_lines(c);
+        for (soot.SootMethod m : c.getMethods()) {
+            if (m.hasActiveBody()) {
+                bodies.put(m.getSignature(), m.getActiveBody());
+            }
+        }
+    }
+
+    soot.Body body(soot.SootMethod m) throws pDG_Builder.Error {
+        soot.Body body = bodies.get(m.getSignature());
+        if (body != null && m.hasActiveBody() && m.getActiveBody() == body) {
+            return body;
+        } else if (!m.hasActiveBody() && m.getSource() == null) {
+            m = reload(m.getDeclaringClass()).getMethod(m.getSubSignature());
+        }
+        try {
+            body = m.retrieveActiveBody();
+        } catch (RuntimeException e) {
+            throw pDG_Builder.SootError.create(e);
+        }
+        bodies.put(m.getSignature(), body);
+        return body;
+    }
+
+    /**
+     * Replaces c in the scene with a fresh copy, whose methods can build
+     * their bodies again. They get the line tags add_lines gave c's.
+     */
+    soot.SootClass reload(soot.SootClass c) {
+        S.removeClass(c);
+        soot.SootClass n = S.forceResolve(c.getName(), soot.SootClass.BODIES);
+        n.setApplicationClass();
+        for (soot.SootMethod m : n.getMethods()) {
+            soot.SootMethod old = c.getMethodUnsafe(m.getSubSignature());
+            if (old != null && old.hasTag("LineNumberTag")) {
+                m.addTag(old.getTag("LineNumberTag"));
+            }
+        }
+        return n;
+    }
+
+    /** The hits and misses of both caches and the time queries took. */
+    public synchronized Map<String,Object> stats() {
+        Map<String,Object> m = new LinkedHashMap<String,Object>();
+        m.put("queries", hits + built + errors);
+        m.put("errors", errors);
+        m.put("mean_hit_us", hits > 0 ? hit_ns / hits / 1000 : null);
+        m.put("mean_build_ms", built > 0 ? (double)build_ns / built / 1e6 : null);
+        m.put("pdgs", pdgs.stats());
+        m.put("bodies", bodies.stats());
+        return m;
+    }
+}
@@ -0,0 +1,306 @@
+package edu.cwru.jpdg;
+
+/* Tim Henderson (tadh@case.edu)
+ *
+ * This file is part of jpdg a library to generate Program Dependence Graphs
+ * from JVM bytecode.
+ *
+ * Copyright (c) 2014, Tim Henderson, Case Western Reserve University
+ *   Cleveland, Ohio 44106
+ *   All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc.,
+ *   51 Franklin Street, Fifth Floor,
+ *   Boston, MA  02110-1301
+ *   USA
+ * or retrieve version 2.1 at their website:
+ *   http://www.gnu.org/licenses/lgpl-2.1.html
+ */
+
+
+import java.util.*;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonParser;
+
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * Runs jpdg jobs in one warm JVM (JPDG --server), so a script analysing
+ * many subjects (see scripts/jpdg/server.py) pays for starting the JVM
+ * and warming up the JIT once instead of once per run. It speaks the line
+ * protocol of the slicer's slicebot: a request or response is a command,
+ * a space and its base64 encoded payload on one line.
+ *
+ *   JOB [argv...]  runs jpdg with the JSON array argv, just like the
+ *                  command line. With -o - the graph comes back in VEG
+ *                  responses (whole lines, a method at a time) instead of
+ *                  going to stdout. Ends with DONE {stats} or ERROR msg.
+ *   PDG signature  PDG with the VEG of the method's pDG, or ERROR msg. Only
+ *                  when serving a Query (JPDG --query), which then takes
+ *                  the place of jobs as they would reset its soot.
+ *   STATS          STATS {stats} of all the jobs so far (and the query's).
+ *   QUIT           OK, and the connection is closed.
+ *
+ * The stats give each job's latency next to an estimate of what the cold
+ * command line would have taken: the time this JVM took to get ready to
+ * serve plus the latency of its first job, which paid for the warm up.
+ *
+ * Jobs run one at a time, soot is a singleton. Soot is still reset for
+ * every job (see JPDG.runSoot): its scene belongs to one classpath, so the
+ * library classes are resolved again each time, only faster once warm.
+ */
+public class Server {
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+    // VEG responses carry about this much of the graph
+    public static final int CHUNK_SIZE = 1 << 20;
+
+    final long ready_ms;
+    final List<Long> job_ms = new ArrayList<Long>();
+    final Query query;
+
+    Server(long ready_ms, Query query) {
+        this.ready_ms = ready_ms;
+        this.query = query;
+    }
+
+    public static void serve(String addr) throws IOException {
+        serve(addr, null);
+    }
+
+    /**
+     * Serves stdin and stdout when addr is - and otherwise connections to
+     * the port addr on the loopback interface, one after the other. With a
+     * query it answers PDG requests instead of running jobs.
+     */
+    public static void serve(String addr, Query query) throws IOException {
+        // soot and the jobs log to stdout, which may be the connection
+        OutputStream stdout = new FileOutputStream(FileDescriptor.out);
+        System.setOut(System.err);
+        long ready = System.currentTimeMillis() - ManagementFactory.getRuntimeMXBean().getStartTime();
+        Server server = new Server(ready, query);
+        if (addr.equals(JPDG.STDOUT)) {
+            server.connection(new FileInputStream(FileDescriptor.in), stdout);
+            return;
+        }
+        ServerSocket socket = new ServerSocket(Integer.parseInt(addr), 1, InetAddress.getLoopbackAddress());
+        System.err.println(String.format("SERVER listening on %s, ready after %d ms", socket.getLocalSocketAddress(), ready));
+        while (true) {
+            Socket conn = socket.accept();
+            try {
+                server.connection(conn.getInputStream(), conn.getOutputStream());
+            } catch (IOException e) {
+                System.err.println(e);
+            } finally {
+                conn.close();
+            }
+        }
+    }
+
+    void connection(InputStream in, OutputStream out) throws IOException {
+        BufferedReader r = new BufferedReader(new InputStreamReader(in, UTF8));
+        String line;
+        while ((line = r.readLine()) != null) {
+            int space = line.indexOf(' ');
+            String cmd = space < 0 ? line : line.substring(0, space);
+            byte[] payload = space < 0 ? new byte[0] : Base64.decodeBase64(line.substring(space + 1).getBytes(UTF8));
+            if (cmd.equals("JOB") && query != null) {
+                send(out, "ERROR", "this server answers PDG queries, a job would reset soot under them");
+            } else if (cmd.equals("JOB")) {
+                job(new String(payload, UTF8), out);
+            } else if (cmd.equals("PDG") && query == null) {
+                send(out, "ERROR", "start the server with --query to ask for PDGs");
+            } else if (cmd.equals("PDG")) {
+                pdg(new String(payload, UTF8), out);
+            } else if (cmd.equals("STATS")) {
+                send(out, "STATS", stats(null));
+            } else if (cmd.equals("QUIT")) {
+                send(out, "OK", "");
+                return;
+            } else {
+                send(out, "ERROR", "unexpected command, '" + cmd + "'");
+            }
+        }
+    }
+
+    void job(String json, OutputStream out) throws IOException {
+        List<String> argv = new ArrayList<String>();
+        try {
+            JsonArray a = new JsonParser().parse(json).getAsJsonArray();
+            for (int i = 0; i < a.size(); i++) {
+                argv.add(a.get(i).getAsString());
+            }
+        } catch (RuntimeException e) {
+            send(out, "ERROR", "a job is a JSON array of jpdg arguments: " + e.getMessage());
+            return;
+        }
+        for (String arg : argv) {
+            if (arg.equals("-h") || arg.equals("--help") || arg.equals("--server") || arg.equals("--query") || arg.equals("--watch")) {
+                send(out, "ERROR", arg + " can not be used in a job");
+                return;
+            }
+        }
+        System.err.println("SERVER job " + argv);
+        Responses veg = new Responses(out, "VEG");
+        JPDG.stdout = veg;
+        long start = System.nanoTime();
+        try {
+            JPDG.run(argv.toArray(new String[argv.size()]));
+            veg.close();
+        } catch (ParseException e) {
+            send(out, "ERROR", e.getMessage());
+            return;
+        } catch (Exception e) {
+            send(out, "ERROR", e.toString());
+            return;
+        } finally {
+            JPDG.stdout = null;
+        }
+        long ms = (System.nanoTime() - start) / 1000000;
+        job_ms.add(ms);
+        send(out, "DONE", stats(ms));
+    }
+
+    void pdg(String signature, OutputStream out) throws IOException {
+        byte[] veg;
+        try {
+            veg = query.veg(signature);
+        } catch (pDG_Builder.Error e) {
+            send(out, "ERROR", e.getMessage());
+            return;
+        } catch (RuntimeException e) {
+            send(out, "ERROR", e.toString());
+            return;
+        }
+        send(out, "PDG", veg, veg.length);
+    }
+
+    // the stats of the jobs so far, and of the one which took ms when it
+    // is not null
+    String stats(Long ms) {
+        Map<String,Object> m = new LinkedHashMap<String,Object>();
+        m.put("ready_ms", ready_ms);
+        m.put("jobs", job_ms.size());
+        if (!job_ms.isEmpty()) {
+            long cold = ready_ms + job_ms.get(0);
+            long warm = 0;
+            for (int i = 1; i < job_ms.size(); i++) {
+                warm += job_ms.get(i);
+            }
+            m.put("first_job_ms", job_ms.get(0));
+            if (job_ms.size() > 1) {
+                m.put("warm_mean_ms", warm / (job_ms.size() - 1));
+            }
+            m.put("cold_cli_estimate_ms", cold);
+            if (ms != null) {
+                m.put("job_ms", ms);
+                m.put("speedup", ms > 0 ? (double)cold / ms : null);
+            }
+        }
+        if (query != null) {
+            m.put("query", query.stats());
+        }
+        return new Gson().toJson(m);
+    }
+
+    static void send(OutputStream out, String cmd, String payload) throws IOException {
+        byte[] b = payload.getBytes(UTF8);
+        send(out, cmd, b, b.length);
+    }
+
+    static synchronized void send(OutputStream out, String cmd, byte[] payload, int length) throws IOException {
+        byte[] b = payload;
+        if (length != payload.length) {
+            b = Arrays.copyOf(payload, length);
+        }
+        // not encodeBase64String, which breaks the line every 76 characters
+        // in commons-codec 1.4
+        out.write((cmd + " ").getBytes(UTF8));
+        out.write(Base64.encodeBase64(b));
+        out.write('\n');
+        out.flush();
+    }
+
+    /**
+     * Sends what is written to it as responses of one command, each holding
+     * whole lines. Flushing sends the complete lines written so far (the
+     * builder flushes after every method when writing to -, see
+     * PDG_Builder.flush_methods) and closing sends the rest, but leaves the
+     * connection open.
+     */
+    static class Responses extends OutputStream {
+        final OutputStream out;
+        final String cmd;
+        final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+
+        Responses(OutputStream out, String cmd) {
+            this.out = out;
+            this.cmd = cmd;
+        }
+
+        public void write(int b) throws IOException {
+            buf.write(b);
+            if (buf.size() >= CHUNK_SIZE) {
+                flush();
+            }
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            buf.write(b, off, len);
+            if (buf.size() >= CHUNK_SIZE) {
+                flush();
+            }
+        }
+
+        public void flush() throws IOException {
+            byte[] b = buf.toByteArray();
+            int end = b.length;
+            while (end > 0 && b[end - 1] != '\n') {
+                end--;
+            }
+            if (end == 0) {
+                return;
+            }
+            send(out, cmd, b, end);
+            buf.reset();
+            buf.write(b, end, b.length - end);
+        }
+
+        public void close() throws IOException {
+            flush();
+            if (buf.size() > 0) {
+                send(out, cmd, buf.toByteArray(), buf.size());
+                buf.reset();
+            }
+        }
+    }
+}
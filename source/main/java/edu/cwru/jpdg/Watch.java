@@ -0,0 +1,256 @@
+package edu.cwru.jpdg;
+
+/* Tim Henderson (tadh@case.edu)
+ *
+ * This file is part of jpdg a library to generate Program Dependence Graphs
+ * from JVM bytecode.
+ *
+ * Copyright (c) 2014, Tim Henderson, Case Western Reserve University
+ *   Cleveland, Ohio 44106
+ *   All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc.,
+ *   51 Franklin Street, Fifth Floor,
+ *   Boston, MA  02110-1301
+ *   USA
+ * or retrieve version 2.1 at their website:
+ *   http://www.gnu.org/licenses/lgpl-2.1.html
+ */
+
+
+import java.util.*;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.TimeUnit;
+
+import edu.cwru.jpdg.graph.Graph;
+import edu.cwru.jpdg.graph.PartitionedOutput;
+
+/**
+ * Keeps the PDG of the class directories (-d) up to date while they change
+ * (JPDG --watch). Soot is set up and the whole graph is built once. After
+ * that a WatchService on the directories, and every directory under them,
+ * reports the class files which are written or deleted. Once nothing has
+ * changed for QUIET ms the changed classes are reloaded into the scene
+ * (no soot.G.reset, their lines are tagged by JPDG.add_lines as the packs
+ * would have), rebuilt in the graph (see PDG_Builder.rebuild) and
+ * the output is written again: the whole file, by writing a temporary file
+ * and renaming it, or with --partition package only the partitions of the
+ * packages which changed (see PartitionedOutput.rewrite).
+ *
+ * Jars given as -d are analysed but not watched.
+ */
+public class Watch {
+
+    public static final long QUIET = 200;
+
+    final soot.Scene S;
+    final PDG_Builder builder;
+    final List<Path> roots = new ArrayList<Path>();
+    final String output;
+    final PartitionedOutput parts;
+    final WatchService ws;
+    final Map<WatchKey,Path> keys = new HashMap<WatchKey,Path>();
+
+    Watch(soot.Scene S, PDG_Builder builder, List<String> dirs, String output, boolean partition) throws IOException {
+        this.S = S;
+        this.builder = builder;
+        this.output = output;
+        this.parts = partition ? new PartitionedOutput(new File(output), builder.g, 0) : null;
+        this.ws = java.nio.file.FileSystems.getDefault().newWatchService();
+        for (String d : dirs) {
+            Path root = new File(d).toPath().toAbsolutePath().normalize();
+            if (Files.isDirectory(root)) {
+                roots.add(root);
+                register(root, null);
+            } else {
+                System.err.println("WATCH not watching " + d + ", it is not a directory");
+            }
+        }
+    }
+
+    /**
+     * Builds the graph, writes it to output and then keeps it up to date
+     * until interrupted.
+     */
+    public static void watch(soot.Scene S, PDG_Builder builder, List<String> dirs, String output, boolean partition) throws IOException, pDG_Builder.Error {
+        Watch w = new Watch(S, builder, dirs, output, partition);
+        Graph g = builder.run();
+        Set<String> packages = new HashSet<String>();
+        for (String name : builder.class_methods.keySet()) {
+            packages.add(package_name(name));
+        }
+        w.write(g, packages);
+        System.out.println(String.format("WATCH watching %d directories", w.keys.size()));
+        w.loop();
+    }
+
+    void loop() throws IOException, pDG_Builder.Error {
+        while (true) {
+            WatchKey key;
+            try {
+                key = ws.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            // a compiler writes many class files, wait for it to finish
+            Set<String> changed = new TreeSet<String>();
+            while (key != null) {
+                events(key, changed);
+                try {
+                    key = ws.poll(QUIET, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            if (!changed.isEmpty()) {
+                update(changed);
+            }
+        }
+    }
+
+    private void events(WatchKey key, Set<String> changed) throws IOException {
+        Path dir = keys.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                System.err.println("WATCH missed events, rescanning");
+                for (Path root : roots) {
+                    register(root, changed);
+                }
+                for (String name : builder.class_methods.keySet()) {
+                    changed.add(name);
+                }
+                continue;
+            }
+            Path child = dir.resolve((Path)event.context());
+            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(child)) {
+                // its class files may have been written before it was watched
+                register(child, changed);
+            } else if (child.toString().endsWith(".class")) {
+                changed.add(class_name(child));
+            }
+        }
+        if (!key.reset()) {
+            keys.remove(key);
+        }
+    }
+
+    // watches dir and the directories under it, adding the classes in them
+    // to changed when it is not null
+    private void register(Path dir, final Set<String> changed) throws IOException {
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) throws IOException {
+                WatchKey key = d.register(ws,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+                keys.put(key, d);
+                return FileVisitResult.CONTINUE;
+            }
+
+            public FileVisitResult visitFile(Path f, BasicFileAttributes attrs) {
+                if (changed != null && f.toString().endsWith(".class")) {
+                    changed.add(class_name(f));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Reloads the changed classes, rebuilds them and writes what changed.
+     */
+    void update(Set<String> changed) throws IOException, pDG_Builder.Error {
+        long start = System.nanoTime();
+        Set<String> packages = new HashSet<String>();
+        for (String name : changed) {
+            packages.add(package_name(name));
+            if (S.containsClass(name)) {
+                S.removeClass(S.getSootClass(name));
+            }
+        }
+        for (String name : changed) {
+            if (!exists(name)) {
+                continue;
+            }
+            try {
+                soot.SootClass c = S.forceResolve(name, soot.SootClass.BODIES);
+                c.setApplicationClass();
+                // the packs, which tag the methods' lines, ran before it
+                JPDG.add_lines(c);
+            } catch (RuntimeException e) {
+                System.err.println(String.format("WATCH could not load %s: %s", name, e));
+            }
+        }
+        Graph g = builder.rebuild(changed, packages);
+        write(g, packages);
+        System.out.println(String.format("WATCH rebuilt %d classes in %d ms", changed.size(), (System.nanoTime() - start) / 1000000));
+    }
+
+    private void write(Graph g, Set<String> packages) throws IOException {
+        if (parts != null) {
+            parts.rewrite(g, packages);
+            return;
+        }
+        File out = new File(output);
+        // the same name with a dot in front, so the extension still says
+        // whether to gzip
+        File tmp = new File(out.getAbsoluteFile().getParentFile(), "." + out.getName());
+        try {
+            JPDG.writeGraph(g, tmp.getPath());
+        } catch (IOException e) {
+            // the output written last stays
+            tmp.delete();
+            throw e;
+        }
+        if (!tmp.renameTo(out)) {
+            throw new IOException("could not rename " + tmp);
+        }
+    }
+
+    private boolean exists(String class_name) {
+        for (Path root : roots) {
+            if (Files.isRegularFile(root.resolve(class_name.replace('.', '/') + ".class"))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // the name of the class of a class file under one of the roots
+    private String class_name(Path f) {
+        for (Path root : roots) {
+            if (f.startsWith(root)) {
+                String rel = root.relativize(f).toString().replace(File.separatorChar, '.');
+                return rel.substring(0, rel.length() - ".class".length());
+            }
+        }
+        throw new IllegalArgumentException(f + " is not under a watched directory");
+    }
+
+    static String package_name(String class_name) {
+        int dot = class_name.lastIndexOf('.');
+        return dot < 0 ? "" : class_name.substring(0, dot);
+    }
+}
@@ -0,0 +1,406 @@
+package edu.cwru.jpdg.graph;
+
+/* Tim Henderson (tadh@case.edu)
+ *
+ * This file is part of jpdg a library to generate Program Dependence Graphs
+ * from JVM bytecode.
+ *
+ * Copyright (c) 2014, Tim Henderson, Case Western Reserve University
+ *   Cleveland, Ohio 44106
+ *   All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc.,
+ *   51 Franklin Street, Fifth Floor,
+ *   Boston, MA  02110-1301
+ *   USA
+ * or retrieve version 2.1 at their website:
+ *   http://www.gnu.org/licenses/lgpl-2.1.html
+ */
+
+
+import java.util.*;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * A compact binary alternative to the veg lines of Graph.Write. A file is
+ *
+ *     "JPDGGRPH" version:u32
+ *     section*
+ *     directory
+ *     directory offset:u64
+ *
+ * where u32 and u64 are big endian and every other number is a LEB128
+ * varint (signed ones zigzag encoded first). Each section starts with its
+ * id byte, the sections are in id order:
+ *
+ *  1. strings: count, then the distinct strings sorted, front coded: the
+ *     length of the prefix shared with the previous string (0 for every
+ *     RESTART'th string), the length of the rest in bytes and the rest as
+ *     UTF-8. String 0 is null, string i+1 is the i'th string stored.
+ *  2. nodes: count, then per node in uid order: the uid as a delta from
+ *     the previous uid (the first is the uid), the strings label, current
+ *     label (see Graph.setLabel), extra, package_name, class_name,
+ *     source_file, method_name and type, then signed start_line,
+ *     start_column, end_line and end_column.
+ *  3. edges: the number of edge types, then per type (in the order Write
+ *     writes them): kind (EdgeKind ordinal), the string label, the number
+ *     of edges and per edge the source (the position of the node in the
+ *     nodes section) as a delta from the previous source and the target.
+ *
+ * The directory is the number of sections and per section its id, offset
+ * and length (u64s). A stream can be read front to back without it, a
+ * file reader can use it to skip to a section.
+ */
+public class BinaryFormat {
+
+    public static final byte[] MAGIC = "JPDGGRPH".getBytes(Charset.forName("UTF-8"));
+    public static final int VERSION = 1;
+    public static final int STRINGS = 1;
+    public static final int NODES = 2;
+    public static final int EDGES = 3;
+    static final int RESTART = 16;
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Writes g. The edges are limited to the kinds Write writes (see
+     * Graph.writeKinds).
+     */
+    public static void write(Graph g, OutputStream fout) throws IOException {
+        if (g.parent != null) {
+            throw new IllegalArgumentException("can not write a shard");
+        }
+        Out out = new Out(fout);
+        out.bytes(MAGIC);
+        out.u32(VERSION);
+        long[] offsets = new long[4];
+        long[] lengths = new long[4];
+
+        // the string table, null is 0
+        TreeSet<String> distinct = new TreeSet<String>();
+        for (String s : g.labels) {
+            distinct.add(s);
+        }
+        for (String s : g.nodes.strings) {
+            if (s != null) {
+                distinct.add(s);
+            }
+        }
+        for (String s : g.edge_labels) {
+            distinct.add(s);
+        }
+        HashMap<String,Integer> ids = new HashMap<String,Integer>();
+        offsets[STRINGS] = out.count;
+        out.u8(STRINGS);
+        out.varint(distinct.size());
+        byte[] prev = new byte[0];
+        for (String s : distinct) {
+            byte[] b = s.getBytes(UTF8);
+            int shared = 0;
+            if (ids.size() % RESTART != 0) {
+                int max = Math.min(prev.length, b.length);
+                while (shared < max && prev[shared] == b[shared]) {
+                    shared++;
+                }
+            }
+            out.varint(shared);
+            out.varint(b.length - shared);
+            out.bytes(b, shared, b.length - shared);
+            ids.put(s, ids.size() + 1);
+            prev = b;
+        }
+        lengths[STRINGS] = out.count - offsets[STRINGS];
+
+        // the string ids of the node attribute strings and the labels
+        int[] sids = new int[g.nodes.strings.size()];
+        for (int i = 0; i < sids.length; i++) {
+            String s = g.nodes.strings.get(i);
+            sids[i] = s == null ? 0 : ids.get(s);
+        }
+        int[] lids = new int[g.labels.size()];
+        for (int i = 0; i < lids.length; i++) {
+            lids[i] = ids.get(g.labels.get(i));
+        }
+
+        int[] order = g.order();
+        int[] rank = g.rank;
+        offsets[NODES] = out.count;
+        out.u8(NODES);
+        out.varint(order.length);
+        Nodes N = g.nodes;
+        long last = 0;
+        for (int i : order) {
+            long uid = g.uids.get(i);
+            out.varint(uid - last);
+            last = uid;
+            out.varint(lids[N.label.get(i)]);
+            out.varint(lids[g.node_labels.get(i)]);
+            out.varint(sids[N.extra.get(i)]);
+            out.varint(sids[N.package_name.get(i)]);
+            out.varint(sids[N.class_name.get(i)]);
+            out.varint(sids[N.source_file.get(i)]);
+            out.varint(sids[N.method_name.get(i)]);
+            out.varint(sids[N.type.get(i)]);
+            out.signed(N.start_line.get(i));
+            out.signed(N.start_column.get(i));
+            out.signed(N.end_line.get(i));
+            out.signed(N.end_column.get(i));
+        }
+        lengths[NODES] = out.count - offsets[NODES];
+
+        List<Integer> types = new ArrayList<Integer>();
+        for (int t : g.sorted_types()) {
+            if (g.write_kinds.contains(g.type_kinds.get(t))) {
+                types.add(t);
+            }
+        }
+        offsets[EDGES] = out.count;
+        out.u8(EDGES);
+        out.varint(types.size());
+        for (int t : types) {
+            EdgeList E = g.edges.get(t);
+            E.compact(order.length, order, rank);
+            out.varint(g.type_kinds.get(t).ordinal());
+            out.varint(ids.get(g.edge_labels.get(g.type_labels.get(t))));
+            out.varint(E.size());
+            int last_src = 0;
+            for (int i : order) {
+                for (long k = E.start(i); k < E.end(i); k++) {
+                    out.varint(rank[i] - last_src);
+                    out.varint(rank[E.target(k)]);
+                    last_src = rank[i];
+                }
+            }
+        }
+        lengths[EDGES] = out.count - offsets[EDGES];
+
+        long directory = out.count;
+        out.varint(3);
+        for (int s = STRINGS; s <= EDGES; s++) {
+            out.u8(s);
+            out.u64(offsets[s]);
+            out.u64(lengths[s]);
+        }
+        out.u64(directory);
+        out.flush();
+    }
+
+    public static Graph read(InputStream fin) throws IOException {
+        Graph g = new Graph();
+        read(fin, g);
+        return g;
+    }
+
+    /**
+     * Reads a graph written by write into g. Like Graph.Read the nodes keep
+     * their uids, so several graphs may be read into one.
+     */
+    public static void read(InputStream fin, Graph g) throws IOException {
+        In in = new In(fin);
+        byte[] magic = in.bytes(MAGIC.length);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("not a binary jpdg graph");
+        }
+        int version = in.u32();
+        if (version != VERSION) {
+            throw new IOException("unsupported binary graph version " + version);
+        }
+
+        in.section(STRINGS);
+        int n_strings = (int)in.varint();
+        String[] strings = new String[n_strings + 1];
+        byte[] prev = new byte[0];
+        for (int i = 1; i <= n_strings; i++) {
+            int shared = (int)in.varint();
+            int rest = (int)in.varint();
+            byte[] b = Arrays.copyOf(prev, shared + rest);
+            in.fully(b, shared, rest);
+            strings[i] = new String(b, UTF8);
+            prev = b;
+        }
+
+        in.section(NODES);
+        int n_nodes = (int)in.varint();
+        long[] uids = new long[n_nodes];
+        long uid = 0;
+        for (int v = 0; v < n_nodes; v++) {
+            uid += in.varint();
+            uids[v] = uid;
+            String label = strings[(int)in.varint()];
+            String current = strings[(int)in.varint()];
+            String extra = strings[(int)in.varint()];
+            String package_name = strings[(int)in.varint()];
+            String class_name = strings[(int)in.varint()];
+            String source_file = strings[(int)in.varint()];
+            String method_name = strings[(int)in.varint()];
+            String type = strings[(int)in.varint()];
+            int start_line = in.signed();
+            int start_column = in.signed();
+            int end_line = in.signed();
+            int end_column = in.signed();
+            g.put(new Node(uid, 0, label, extra, package_name, class_name, source_file, method_name, type, start_line, start_column, end_line, end_column), current);
+        }
+
+        in.section(EDGES);
+        int n_types = (int)in.varint();
+        for (int t = 0; t < n_types; t++) {
+            EdgeKind kind = EdgeKind.values()[(int)in.varint()];
+            String label = strings[(int)in.varint()];
+            long count = in.varint();
+            int src = 0;
+            for (long k = 0; k < count; k++) {
+                src += (int)in.varint();
+                int targ = (int)in.varint();
+                g.addEdge(uids[src], uids[targ], kind, label);
+            }
+        }
+    }
+
+    /**
+     * Converts between veg lines and the binary format:
+     *
+     *     BinaryFormat to-binary <in.veg> <out>
+     *     BinaryFormat to-veg <in> <out.veg>
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 3 || !(args[0].equals("to-binary") || args[0].equals("to-veg"))) {
+            System.err.println("usage: BinaryFormat (to-binary|to-veg) <in> <out>");
+            System.exit(1);
+        }
+        InputStream in = new BufferedInputStream(new FileInputStream(args[1]));
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(args[2]));
+        try {
+            if (args[0].equals("to-binary")) {
+                Graph g = new Graph();
+                g.Read(in);
+                write(g, out);
+            } else {
+                read(in).Write(out);
+            }
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
+
+    // counts what it writes, for the directory
+    private static class Out {
+        final OutputStream out;
+        long count = 0;
+
+        Out(OutputStream out) {
+            this.out = new BufferedOutputStream(out, 1 << 16);
+        }
+
+        void u8(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        void bytes(byte[] b) throws IOException {
+            bytes(b, 0, b.length);
+        }
+
+        void bytes(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        void u32(int v) throws IOException {
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                u8((v >>> shift) & 0xff);
+            }
+        }
+
+        void u64(long v) throws IOException {
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                u8((int)(v >>> shift) & 0xff);
+            }
+        }
+
+        void varint(long v) throws IOException {
+            while ((v & ~0x7fL) != 0) {
+                u8((int)(v & 0x7f) | 0x80);
+                v >>>= 7;
+            }
+            u8((int)v);
+        }
+
+        void signed(int v) throws IOException {
+            varint(((long)v << 1) ^ ((long)v >> 63));
+        }
+
+        void flush() throws IOException {
+            out.flush();
+        }
+    }
+
+    private static class In {
+        final DataInputStream in;
+
+        In(InputStream in) {
+            this.in = new DataInputStream(new BufferedInputStream(in, 1 << 16));
+        }
+
+        void section(int id) throws IOException {
+            int b = in.read();
+            if (b != id) {
+                throw new IOException(String.format("expected section %d, got %d", id, b));
+            }
+        }
+
+        byte[] bytes(int n) throws IOException {
+            byte[] b = new byte[n];
+            in.readFully(b);
+            return b;
+        }
+
+        void fully(byte[] b, int off, int len) throws IOException {
+            in.readFully(b, off, len);
+        }
+
+        int u32() throws IOException {
+            return in.readInt();
+        }
+
+        long varint() throws IOException {
+            long v = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = in.read();
+                if (b < 0) {
+                    throw new EOFException();
+                }
+                v |= (long)(b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return v;
+                }
+            }
+            throw new IOException("malformed varint");
+        }
+
+        int signed() throws IOException {
+            long v = varint();
+            return (int)((v >>> 1) ^ -(v & 1));
+        }
+    }
+}
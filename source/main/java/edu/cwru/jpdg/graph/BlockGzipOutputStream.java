@@ -0,0 +1,374 @@
+package edu.cwru.jpdg.graph;
+
+/* Tim Henderson (tadh@case.edu)
+ *
+ * This file is part of jpdg a library to generate Program Dependence Graphs
+ * from JVM bytecode.
+ *
+ * Copyright (c) 2014, Tim Henderson, Case Western Reserve University
+ *   Cleveland, Ohio 44106
+ *   All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc.,
+ *   51 Franklin Street, Fifth Floor,
+ *   Boston, MA  02110-1301
+ *   USA
+ * or retrieve version 2.1 at their website:
+ *   http://www.gnu.org/licenses/lgpl-2.1.html
+ */
+
+
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+
+/**
+ * Gzips veg lines in independent blocks on a pool of threads (like pigz).
+ * Every block of about block_size bytes is cut at a line end and becomes a
+ * gzip member of its own, so the output is an ordinary (concatenated)
+ * gzip stream which gunzip and GZIPInputStream read as a whole.
+ *
+ * Each member carries an index in an extra field of its header (as BGZF
+ * does), subfield "JB" holding, little endian, the size of the member, the
+ * size of the block uncompressed and the smallest and the largest key of
+ * its lines. The key of a vertex line is its id and that of an edge line
+ * its src, other lines (eg. the label tables of the normalized format) have
+ * none. The uids of a method share one range (see Graph.LOCAL_BITS), so
+ * when the records are grouped by method (Graph.writeGrouped, which JPDG
+ * does for .gz outputs) index and open find a method's records in a block
+ * or two without inflating the others. Otherwise the edges, sorted by type
+ * first, spread each method over many blocks and open is a filter over
+ * most of the file rather than a seek.
+ */
+public class BlockGzipOutputStream extends OutputStream {
+
+    public static final int BLOCK_SIZE = 1 << 20;
+    // the fixed gzip header, XLEN and the "JB" subfield
+    static final int HEADER = 40;
+    static final int XLEN = 28;
+
+    final OutputStream out;
+    final int block_size;
+    final ExecutorService pool;
+    final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+    final int max_pending;
+    byte[] block;
+    int size = 0;
+    boolean closed = false;
+
+    public BlockGzipOutputStream(OutputStream out) {
+        this(out, Runtime.getRuntime().availableProcessors(), BLOCK_SIZE);
+    }
+
+    public BlockGzipOutputStream(OutputStream out, int threads, int block_size) {
+        this.out = out;
+        this.block_size = block_size;
+        this.block = new byte[block_size];
+        this.pool = Executors.newFixedThreadPool(threads);
+        this.max_pending = 2*threads;
+    }
+
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte)b}, 0, 1);
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (size == block.length) {
+                block = Arrays.copyOf(block, 2*block.length);
+            }
+            int n = Math.min(len, block.length - size);
+            System.arraycopy(b, off, block, size, n);
+            size += n;
+            off += n;
+            len -= n;
+            if (size >= block_size) {
+                cut();
+            }
+        }
+    }
+
+    // hands everything up to the last line end to the pool
+    private void cut() throws IOException {
+        int end = size;
+        while (end > 0 && block[end-1] != '\n') {
+            end--;
+        }
+        if (end == 0) {
+            // one very long line, let the block grow
+            return;
+        }
+        byte[] next = new byte[Math.max(block_size, size - end)];
+        System.arraycopy(block, end, next, 0, size - end);
+        submit(block, end);
+        block = next;
+        size -= end;
+    }
+
+    private void submit(final byte[] data, final int len) throws IOException {
+        pending.add(pool.submit(new Callable<byte[]>() {
+            public byte[] call() {
+                return member(data, len);
+            }
+        }));
+        while (pending.size() > max_pending) {
+            drain();
+        }
+    }
+
+    // writes out the oldest compressed block
+    private void drain() throws IOException {
+        try {
+            out.write(pending.remove().get());
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Compresses what is buffered (a partial line ends up in a block of its
+     * own) and writes out every block.
+     */
+    public void flush() throws IOException {
+        if (size > 0) {
+            submit(block, size);
+            block = new byte[block_size];
+            size = 0;
+        }
+        while (!pending.isEmpty()) {
+            drain();
+        }
+        out.flush();
+    }
+
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            flush();
+        } finally {
+            pool.shutdown();
+            out.close();
+        }
+    }
+
+    static byte[] member(byte[] data, int len) {
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (int i = 0; i < len; ) {
+            long key = key(data, i, len);
+            if (key != Long.MIN_VALUE) {
+                min = Math.min(min, key);
+                max = Math.max(max, key);
+            }
+            while (i < len && data[i] != '\n') {
+                i++;
+            }
+            i++;
+        }
+
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        deflater.setInput(data, 0, len);
+        deflater.finish();
+        byte[] m = new byte[HEADER + len + len/8 + 64];
+        int n = HEADER;
+        while (!deflater.finished()) {
+            if (n == m.length) {
+                m = Arrays.copyOf(m, 2*m.length);
+            }
+            n += deflater.deflate(m, n, m.length - n);
+        }
+        deflater.end();
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, len);
+        m = Arrays.copyOf(m, n + 8);
+        le(m, n, crc.getValue(), 4);
+        le(m, n + 4, len, 4);
+        n += 8;
+
+        m[0] = (byte)0x1f;
+        m[1] = (byte)0x8b;
+        m[2] = 8;            // deflate
+        m[3] = 4;            // FEXTRA
+        m[9] = (byte)0xff;   // unknown OS
+        le(m, 10, XLEN, 2);
+        m[12] = 'J';
+        m[13] = 'B';
+        le(m, 14, XLEN - 4, 2);
+        le(m, 16, n, 4);
+        le(m, 20, len, 4);
+        le(m, 24, min, 8);
+        le(m, 32, max, 8);
+        return m;
+    }
+
+    static final byte[] VERTEX = "vertex\t".getBytes();
+    static final byte[] EDGE = "edge\t".getBytes();
+
+    // the key of the line at i, Long.MIN_VALUE if it has none
+    static long key(byte[] data, int i, int len) {
+        if (!starts(data, i, len, VERTEX) && !starts(data, i, len, EDGE)) {
+            return Long.MIN_VALUE;
+        }
+        // the first number: "id" or "src" comes first in either record
+        while (i < len && data[i] != ':' && data[i] != '\n') {
+            i++;
+        }
+        if (i >= len || data[i] != ':') {
+            return Long.MIN_VALUE;
+        }
+        i++;
+        boolean neg = i < len && data[i] == '-';
+        if (neg) {
+            i++;
+        }
+        if (i >= len || data[i] < '0' || data[i] > '9') {
+            return Long.MIN_VALUE;
+        }
+        long v = 0;
+        while (i < len && data[i] >= '0' && data[i] <= '9') {
+            v = 10*v + (data[i++] - '0');
+        }
+        return neg ? -v : v;
+    }
+
+    static boolean starts(byte[] data, int i, int len, byte[] prefix) {
+        if (len - i < prefix.length) {
+            return false;
+        }
+        for (int k = 0; k < prefix.length; k++) {
+            if (data[i + k] != prefix[k]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static void le(byte[] b, int off, long v, int n) {
+        for (int i = 0; i < n; i++) {
+            b[off + i] = (byte)(v >>> (8*i));
+        }
+    }
+
+    static long le(byte[] b, int off, int n) {
+        long v = 0;
+        for (int i = 0; i < n; i++) {
+            v |= (long)(b[off + i] & 0xff) << (8*i);
+        }
+        return v;
+    }
+
+    /**
+     * A block of a file written by BlockGzipOutputStream: where its member
+     * starts, how long it is compressed and not, and the range of keys of
+     * its lines (first > last when none of its lines has a key).
+     */
+    public static class Block {
+        public final long offset;
+        public final int size;
+        public final int length;
+        public final long first;
+        public final long last;
+
+        Block(long offset, int size, int length, long first, long last) {
+            this.offset = offset;
+            this.size = size;
+            this.length = length;
+            this.first = first;
+            this.last = last;
+        }
+
+        public boolean overlaps(long min, long max) {
+            return first <= max && last >= min;
+        }
+    }
+
+    /**
+     * Reads the index out of the member headers, hopping from header to
+     * header without inflating anything.
+     */
+    public static List<Block> index(File f) throws IOException {
+        List<Block> blocks = new ArrayList<Block>();
+        RandomAccessFile r = new RandomAccessFile(f, "r");
+        try {
+            byte[] h = new byte[HEADER];
+            long offset = 0;
+            long length = r.length();
+            while (offset < length) {
+                r.seek(offset);
+                r.readFully(h);
+                if ((h[0] & 0xff) != 0x1f || (h[1] & 0xff) != 0x8b || (h[3] & 4) == 0
+                        || h[12] != 'J' || h[13] != 'B') {
+                    throw new IOException(f + ": no block index at " + offset);
+                }
+                Block b = new Block(offset, (int)le(h, 16, 4), (int)le(h, 20, 4), le(h, 24, 8), le(h, 32, 8));
+                blocks.add(b);
+                offset += b.size;
+            }
+        } finally {
+            r.close();
+        }
+        return blocks;
+    }
+
+    /**
+     * The lines of the blocks which may hold lines with keys in [min, max].
+     * Other lines of those blocks come along, callers filter them.
+     */
+    public static InputStream open(File f, long min, long max) throws IOException {
+        List<InputStream> parts = new ArrayList<InputStream>();
+        RandomAccessFile r = new RandomAccessFile(f, "r");
+        try {
+            for (Block b : index(f)) {
+                if (b.overlaps(min, max)) {
+                    byte[] m = new byte[b.size];
+                    r.seek(b.offset);
+                    r.readFully(m);
+                    parts.add(new GZIPInputStream(new ByteArrayInputStream(m)));
+                }
+            }
+        } finally {
+            r.close();
+        }
+        return new SequenceInputStream(Collections.enumeration(parts));
+    }
+
+    /**
+     * The blocks holding the records of the method (vertices of it and
+     * edges from it), given it kept the range its name hashes to. Unless
+     * the file was written grouped by method this is most of the blocks.
+     */
+    public static InputStream open(File f, String method_name) throws IOException {
+        long base = (Graph.fnv64(method_name) & Graph.METHOD_MASK) << Graph.LOCAL_BITS;
+        return open(f, base, base | Graph.LOCAL_MASK);
+    }
+}
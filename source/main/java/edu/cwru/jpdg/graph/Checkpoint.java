@@ -0,0 +1,264 @@
+package edu.cwru.jpdg.graph;
+
+/* Tim Henderson (tadh@case.edu)
+ *
+ * This file is part of jpdg a library to generate Program Dependence Graphs
+ * from JVM bytecode.
+ *
+ * Copyright (c) 2014, Tim Henderson, Case Western Reserve University
+ *   Cleveland, Ohio 44106
+ *   All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc.,
+ *   51 Franklin Street, Fifth Floor,
+ *   Boston, MA  02110-1301
+ *   USA
+ * or retrieve version 2.1 at their website:
+ *   http://www.gnu.org/licenses/lgpl-2.1.html
+ */
+
+
+import java.util.*;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+
+/**
+ * Keeps the progress of a long build on disk so a run which dies part way
+ * through can be resumed. The shards (see Graph.shard) of the methods of
+ * each class are appended to DIR/records as veg lines (Graph.WriteRecords)
+ * as they come. Once the next class starts the records are forced to disk
+ * and then a line with the class name, a tab and the length of the
+ * records is appended to DIR/classes (and forced), which is what makes
+ * the class count as finished.
+ *
+ * DIR/run holds the settings the records were built with (see run), and
+ * resume refuses a directory holding those of another run, whose records
+ * would silently mix into the graph.
+ *
+ * resume drops what a dead run wrote after its last finished class, reads
+ * the records back into the graph and returns the finished classes for
+ * the builder to skip. Nothing else needs keeping: the uid ranges and the
+ * method entries are reserved from the list of classes on every run (see
+ * PDG_Builder), so a resumed run gives the same uids, and since Write only
+ * depends on what is in the graph the output is the same as that of a run
+ * which was never interrupted.
+ */
+public class Checkpoint {
+
+    public static final String RECORDS = "records";
+    public static final String CLASSES = "classes";
+    public static final String RUN = "run";
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    final File dir;
+    final Graph g;
+    final String run;
+    FileOutputStream records = null;
+    FileOutputStream classes = null;
+    VegWriter veg = null;
+    // the class whose shards are being written
+    String current = null;
+
+    /**
+     * run describes the settings of this run, see run(...).
+     */
+    public Checkpoint(File dir, Graph g, String run) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("could not create " + dir);
+        }
+        this.dir = dir;
+        this.g = g;
+        this.run = run;
+    }
+
+    /**
+     * The settings the records depend on, one per line: the version of what
+     * pDG_Builder builds (MethodCache.VERSION), the label type, the class
+     * dirs and the excluded ones (sorted), the edge kinds and the shard.
+     */
+    public static String run(String label_type, List<String> dirs, List<String> excluded, Set<EdgeKind> kinds, int shard, int shards) {
+        StringBuilder b = new StringBuilder();
+        b.append("version\t").append(MethodCache.VERSION).append("\n");
+        b.append("label_type\t").append(label_type).append("\n");
+        for (String d : absolute(dirs)) {
+            b.append("dir\t").append(d).append("\n");
+        }
+        for (String d : absolute(excluded)) {
+            b.append("exclude\t").append(d).append("\n");
+        }
+        b.append("edge_kinds");
+        for (EdgeKind kind : EdgeKind.values()) {
+            if (kinds.contains(kind)) {
+                b.append("\t").append(kind.name);
+            }
+        }
+        b.append("\n");
+        b.append(String.format("shard\t%d/%d\n", shard, shards));
+        return b.toString();
+    }
+
+    private static SortedSet<String> absolute(List<String> paths) {
+        SortedSet<String> s = new TreeSet<String>();
+        for (String p : paths) {
+            s.add(new File(p).getAbsolutePath());
+        }
+        return s;
+    }
+
+    /**
+     * Reads the records of the finished classes into the graph and returns
+     * their names. Call it once, after the method entries have been added
+     * and before anything else.
+     */
+    public Set<String> resume() throws IOException {
+        Set<String> done = new HashSet<String>();
+        File records_file = new File(dir, RECORDS);
+        File classes_file = new File(dir, CLASSES);
+        check_run(records_file.exists() || classes_file.exists());
+        long keep = 0;
+        long keep_classes = 0;
+        if (classes_file.exists()) {
+            RandomAccessFile r = new RandomAccessFile(classes_file, "rw");
+            try {
+                byte[] b = new byte[(int)r.length()];
+                r.readFully(b);
+                int start = 0;
+                for (int i = 0; i < b.length; i++) {
+                    if (b[i] != '\n') {
+                        continue;
+                    }
+                    String line = new String(b, start, i - start, UTF8);
+                    int tab = line.lastIndexOf('\t');
+                    done.add(line.substring(0, tab));
+                    keep = Long.parseLong(line.substring(tab + 1));
+                    start = i + 1;
+                }
+                // a line cut short by the crash
+                keep_classes = start;
+                r.setLength(keep_classes);
+            } finally {
+                r.close();
+            }
+        }
+        if (records_file.exists()) {
+            RandomAccessFile r = new RandomAccessFile(records_file, "rw");
+            try {
+                if (r.length() < keep) {
+                    throw new IOException(records_file + " is shorter than " + classes_file + " says");
+                }
+                // the records of a class the dead run did not finish
+                r.setLength(keep);
+            } finally {
+                r.close();
+            }
+            if (keep > 0) {
+                GraphReader.read(records_file, g);
+            }
+        }
+        System.out.println(String.format("CHECKPOINT %d classes done", done.size()));
+        return done;
+    }
+
+    // writes DIR/run, or when it is there refuses it unless it is this run's
+    private void check_run(boolean started) throws IOException {
+        File run_file = new File(dir, RUN);
+        if (!run_file.exists()) {
+            if (started) {
+                throw new IOException(dir + " holds a checkpoint without its " + RUN + ", can not resume from it");
+            }
+            FileOutputStream out = new FileOutputStream(run_file);
+            try {
+                out.write(run.getBytes(UTF8));
+                out.getChannel().force(false);
+            } finally {
+                out.close();
+            }
+            return;
+        }
+        List<String> was = Arrays.asList(new String(Files.readAllBytes(run_file.toPath()), UTF8).split("\n"));
+        List<String> is = Arrays.asList(run.split("\n"));
+        if (!was.equals(is)) {
+            List<String> changed = new ArrayList<String>();
+            for (String line : was) {
+                if (!is.contains(line)) {
+                    changed.add("was " + line);
+                }
+            }
+            for (String line : is) {
+                if (!was.contains(line)) {
+                    changed.add("now " + line);
+                }
+            }
+            throw new IOException(String.format("%s holds a checkpoint of a run with other settings, can not resume it: %s", dir, changed));
+        }
+    }
+
+    /**
+     * Appends the records of shard, which belongs to class_name. Shards must
+     * come grouped by class, a class is finished once the next one starts.
+     */
+    public void add(String class_name, Graph shard) throws IOException {
+        start(class_name);
+        g.WriteRecords(shard, veg, EnumSet.allOf(EdgeKind.class));
+    }
+
+    /**
+     * Notes that class_name is being worked on, which finishes the class
+     * before it. Classes whose methods all failed get marked finished this
+     * way too.
+     */
+    public void start(String class_name) throws IOException {
+        if (class_name.equals(current)) {
+            return;
+        }
+        if (records == null) {
+            records = new FileOutputStream(new File(dir, RECORDS), true);
+            classes = new FileOutputStream(new File(dir, CLASSES), true);
+            veg = new VegWriter(records.getChannel(), 1 << 20);
+        }
+        finish();
+        current = class_name;
+    }
+
+    private void finish() throws IOException {
+        if (current == null) {
+            return;
+        }
+        veg.flush();
+        records.getChannel().force(false);
+        classes.write((current + "\t" + records.getChannel().position() + "\n").getBytes(UTF8));
+        classes.getChannel().force(false);
+    }
+
+    /**
+     * Finishes the last class.
+     */
+    public void close() throws IOException {
+        if (records == null) {
+            return;
+        }
+        try {
+            finish();
+            current = null;
+        } finally {
+            records.close();
+            classes.close();
+        }
+    }
+}
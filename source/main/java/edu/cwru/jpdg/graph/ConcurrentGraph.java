@@ -0,0 +1,270 @@
+package edu.cwru.jpdg.graph;
+
+/* Tim Henderson (tadh@case.edu)
+ *
+ * This file is part of jpdg a library to generate Program Dependence Graphs
+ * from JVM bytecode.
+ *
+ * Copyright (c) 2014, Tim Henderson, Case Western Reserve University
+ *   Cleveland, Ohio 44106
+ *   All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc.,
+ *   51 Franklin Street, Fifth Floor,
+ *   Boston, MA  02110-1301
+ *   USA
+ * or retrieve version 2.1 at their website:
+ *   http://www.gnu.org/licenses/lgpl-2.1.html
+ */
+
+
+import java.util.*;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A Graph which many threads may add to at once, eg. workers each calling
+ * pDG_Builder.build with it.
+ *
+ * Each thread adds its nodes and edges to its own buffer, a shard of this
+ * graph, so building takes no locks at all: labels are interned in the
+ * buffer and uids come from the uid counters, which are shared with the
+ * buffers and only changed by compare and swap. When a thread is done with
+ * a unit of work (eg. a method) it calls commit. Committed buffers are
+ * published, ie. merged into this graph under a write lock, once they add
+ * up to batch nodes and edges, so the lock is taken once per batch rather
+ * than once per node.
+ *
+ * A thread sees its own uncommitted nodes and everything published. Nodes
+ * other threads refer to (eg. the method entries) must be published (see
+ * flush) before those threads publish edges to them. Once the threads are
+ * done call flushAll, after which this is used like any other Graph.
+ */
+public class ConcurrentGraph extends Graph {
+
+    public static final int DEFAULT_BATCH = 1 << 16;
+
+    final int batch;
+    final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    final ConcurrentLinkedQueue<Buffer> buffers = new ConcurrentLinkedQueue<Buffer>();
+    final ThreadLocal<Buffer> buffer = new ThreadLocal<Buffer>() {
+        @Override
+        protected Buffer initialValue() {
+            Buffer b = new Buffer();
+            buffers.add(b);
+            return b;
+        }
+    };
+
+    private class Buffer {
+        Graph current = null;
+        List<Graph> committed = new ArrayList<Graph>();
+        long size = 0;
+
+        Graph current() {
+            if (current == null) {
+                current = shard();
+            }
+            return current;
+        }
+
+        // the uncommitted node, if this thread has it
+        boolean has(long uid) {
+            return current != null && current.hasNode(uid);
+        }
+    }
+
+    public ConcurrentGraph() {
+        this(DEFAULT_BATCH);
+    }
+
+    public ConcurrentGraph(int batch) {
+        this.batch = batch;
+        this.shared_counters = true;
+    }
+
+    /**
+     * Ends a unit of work of the calling thread. Its nodes and edges are
+     * published with the next batch.
+     */
+    public void commit() {
+        Buffer b = buffer.get();
+        if (b.current != null) {
+            b.committed.add(b.current);
+            b.size += b.current.nodeCount() + b.current.edgeCount();
+            b.current = null;
+        }
+        if (b.size >= batch) {
+            publish(b);
+        }
+    }
+
+    /**
+     * Drops what the calling thread added since its last commit.
+     */
+    public void abort() {
+        buffer.get().current = null;
+    }
+
+    /**
+     * Commits and publishes the work of the calling thread.
+     */
+    public void flush() {
+        commit();
+        publish(buffer.get());
+    }
+
+    /**
+     * Publishes the committed work of every thread. Only call it once the
+     * other threads have stopped adding to the graph.
+     */
+    public void flushAll() {
+        for (Buffer b : buffers) {
+            publish(b);
+        }
+    }
+
+    private void publish(Buffer b) {
+        if (b.committed.isEmpty()) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            for (Graph shard : b.committed) {
+                super.merge(shard);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        b.committed.clear();
+        b.size = 0;
+    }
+
+    @Override
+    public void merge(Graph shard) {
+        lock.writeLock().lock();
+        try {
+            super.merge(shard);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public long addNode(String label, String extra, String package_name, String class_name, String source_file, String method_name, String type, int start_l, int start_c, int end_l, int end_c) {
+        return buffer.get().current().addNode(label, extra, package_name, class_name, source_file, method_name, type, start_l, start_c, end_l, end_c);
+    }
+
+    @Override
+    public void addEdge(long a, long b, EdgeKind kind, String label) throws NoSuchElementException {
+        buffer.get().current().addEdge(a, b, kind, label);
+    }
+
+    @Override
+    public boolean hasNode(long uid) {
+        if (buffer.get().has(uid)) {
+            return true;
+        }
+        lock.readLock().lock();
+        try {
+            return super.hasNode(uid);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Node node(long uid) throws NoSuchElementException {
+        Buffer b = buffer.get();
+        if (b.has(uid)) {
+            return b.current.node(uid);
+        }
+        lock.readLock().lock();
+        try {
+            return super.node(uid);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int labelNum(long node) {
+        Buffer b = buffer.get();
+        if (b.has(node)) {
+            return b.current.labelNum(node);
+        }
+        lock.readLock().lock();
+        try {
+            return super.labelNum(node);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public String label(long node) throws NoSuchElementException {
+        Buffer b = buffer.get();
+        if (b.has(node)) {
+            return b.current.label(node);
+        }
+        lock.readLock().lock();
+        try {
+            return super.label(node);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void setLabel(long node, String label) throws NoSuchElementException {
+        Buffer b = buffer.get();
+        if (b.has(node)) {
+            b.current.setLabel(node, label);
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            super.setLabel(node, label);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean hasEdge(long a, long b, EdgeKind kind, String label) {
+        Buffer buf = buffer.get();
+        if (buf.current != null && buf.current.hasEdge(a, b, kind, label)) {
+            return true;
+        }
+        lock.readLock().lock();
+        try {
+            return super.hasEdge(a, b, kind, label);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void Write(VegWriter w) throws IOException {
+        // writing compacts the edge lists, so it is not just a read
+        lock.writeLock().lock();
+        try {
+            super.Write(w);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+}
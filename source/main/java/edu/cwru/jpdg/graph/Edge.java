@@ -35,25 +35,36 @@ import com.google.gson.Gson;
 
 public class Edge {
 
-    public int src;
-    public int targ;
+    public long src;
+    public long targ;
+    public EdgeKind kind;
     public String label;
     Graph g;
 
-    public Edge(int src, int targ, String label, Graph g) {
+    public Edge(long src, long targ, String label, Graph g) {
+        this(src, targ, EdgeKind.guess(label), label, g);
+    }
+
+    public Edge(long src, long targ, EdgeKind kind, String label, Graph g) {
         this.src = src;
         this.targ = targ;
+        this.kind = kind;
         this.label = label;
         this.g = g;
     }
 
     public String Serialize() {
+        return Serialize(src, targ, kind, label, g.label(src), g.label(targ));
+    }
+
+    static String Serialize(long src, long targ, EdgeKind kind, String label, String src_label, String targ_label) {
         Map<String,Object> M = new LinkedHashMap<String,Object>();
         M.put("src", src);
         M.put("targ", targ);
         M.put("label", label);
-        M.put("src_label", g.label(src));
-        M.put("targ_label", g.label(targ));
+        M.put("kind", kind.name);
+        M.put("src_label", src_label);
+        M.put("targ_label", targ_label);
         return "edge\t" + (new Gson()).toJson(M);
     }
 }
@@ -0,0 +1,85 @@
+package edu.cwru.jpdg.graph;
+
+/* Tim Henderson (tadh@case.edu)
+ *
+ * This file is part of jpdg a library to generate Program Dependence Graphs
+ * from JVM bytecode.
+ *
+ * Copyright (c) 2014, Tim Henderson, Case Western Reserve University
+ *   Cleveland, Ohio 44106
+ *   All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc.,
+ *   51 Franklin Street, Fifth Floor,
+ *   Boston, MA  02110-1301
+ *   USA
+ * or retrieve version 2.1 at their website:
+ *   http://www.gnu.org/licenses/lgpl-2.1.html
+ */
+
+
+import java.util.*;
+
+/**
+ * The kind of dependence an edge stands for. The label of an edge says more
+ * (eg. the type and parameter of a data dependence) but several kinds use
+ * the same labels, so the kind is kept and written separately.
+ */
+public enum EdgeKind {
+    CDG("cdg"),
+    DDG("ddg"),
+    CALL("call"),
+    CFG("cfg");
+
+    public final String name;
+
+    EdgeKind(String name) {
+        this.name = name;
+    }
+
+    public static EdgeKind parse(String name) {
+        for (EdgeKind k : values()) {
+            if (k.name.equals(name)) {
+                return k;
+            }
+        }
+        throw new IllegalArgumentException("unknown edge kind " + name + ", valid choices are: cdg, ddg, call, cfg");
+    }
+
+    /**
+     * Parses a comma separated list of kinds, eg. "cdg,ddg".
+     */
+    public static EnumSet<EdgeKind> parseSet(String names) {
+        EnumSet<EdgeKind> kinds = EnumSet.noneOf(EdgeKind.class);
+        for (String name : names.split(",")) {
+            kinds.add(parse(name.trim()));
+        }
+        return kinds;
+    }
+
+    /**
+     * The kind of an edge from its label alone, for edges which were added
+     * (or written) without a kind. Call edges can not be told apart from
+     * control dependencies this way, both are labeled "".
+     */
+    public static EdgeKind guess(String label) {
+        if (label.startsWith("cfg")) {
+            return CFG;
+        } else if (label.equals("")) {
+            return CDG;
+        }
+        return DDG;
+    }
+}
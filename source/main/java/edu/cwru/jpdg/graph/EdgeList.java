@@ -0,0 +1,150 @@
+package edu.cwru.jpdg.graph;
+
+/* Tim Henderson (tadh@case.edu)
+ *
+ * This file is part of jpdg a library to generate Program Dependence Graphs
+ * from JVM bytecode.
+ *
+ * Copyright (c) 2014, Tim Henderson, Case Western Reserve University
+ *   Cleveland, Ohio 44106
+ *   All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc.,
+ *   51 Franklin Street, Fifth Floor,
+ *   Boston, MA  02110-1301
+ *   USA
+ * or retrieve version 2.1 at their website:
+ *   http://www.gnu.org/licenses/lgpl-2.1.html
+ */
+
+import java.util.Arrays;
+
+/**
+ * The edges of one type (label) of a Graph. Edges are between node
+ * indices (see Graph) and are appended to a pair of int arrays while the
+ * graph is built. A primitive hash of the packed (src, targ) pairs removes
+ * duplicates. The first query after a change compacts them into a
+ * compressed sparse row (CSR) layout: start(i) .. end(i) is the range of
+ * targets of node i, sorted by the uid of the target.
+ *
+ * Counts and positions are longs so that MappedEdgeList, which keeps its
+ * edges off the heap, can hold more than 2^31 of them.
+ */
+class EdgeList {
+
+    IntArray srcs = new IntArray();
+    IntArray targs = new IntArray();
+    LongIntMap seen = new LongIntMap();
+
+    // the CSR layout, built by compact. Valid while csr_edges == size() and
+    // csr_nodes is the node count it was built for.
+    int[] offsets = null;
+    int[] targets = null;
+    long csr_edges = -1;
+    int csr_nodes = -1;
+
+    // true if duplicates are only removed by compact, so it has to run
+    // before has() and size() can be trusted.
+    boolean lazy = false;
+
+    static long key(int a, int b) {
+        return ((long)a << 32) | (b & 0xffffffffL);
+    }
+
+    long size() {
+        return srcs.size();
+    }
+
+    /**
+     * The source of the k'th edge, in the order they were added (or the
+     * order of the last compact, for a lazy list).
+     */
+    int src(long k) {
+        return srcs.get((int)k);
+    }
+
+    int targ(long k) {
+        return targs.get((int)k);
+    }
+
+    /**
+     * Adds the edge a -> b, returns false if it was already there.
+     */
+    boolean add(int a, int b) {
+        long k = key(a, b);
+        if (seen.containsKey(k)) {
+            return false;
+        }
+        seen.put(k, srcs.add(a));
+        targs.add(b);
+        return true;
+    }
+
+    boolean has(int a, int b) {
+        return seen.containsKey(key(a, b));
+    }
+
+    /**
+     * Builds (if needed) the CSR layout for a graph of n nodes. order lists
+     * the node indices sorted by uid and rank is its inverse.
+     */
+    void compact(int n, int[] order, int[] rank) {
+        if (csr_edges == size() && csr_nodes == n) {
+            return;
+        }
+        int m = (int)size();
+        // sorting (src, rank of targ) pairs packed into longs groups the
+        // edges by source and orders each row by the uid of the target.
+        long[] keys = new long[m];
+        for (int i = 0; i < m; i++) {
+            keys[i] = ((long)srcs.get(i) << 32) | rank[targs.get(i)];
+        }
+        Arrays.sort(keys);
+        int[] offsets = new int[n+1];
+        int[] targets = new int[m];
+        for (int i = 0; i < m; i++) {
+            offsets[(int)(keys[i] >>> 32)+1]++;
+            targets[i] = order[(int)keys[i]];
+        }
+        for (int i = 0; i < n; i++) {
+            offsets[i+1] += offsets[i];
+        }
+        this.offsets = offsets;
+        this.targets = targets;
+        this.csr_edges = m;
+        this.csr_nodes = n;
+    }
+
+    // the CSR row of node i, valid after compact.
+    long start(int i) {
+        return offsets[i];
+    }
+
+    long end(int i) {
+        return offsets[i+1];
+    }
+
+    int target(long k) {
+        return targets[(int)k];
+    }
+
+    long bytes() {
+        long b = srcs.bytes() + targs.bytes() + seen.bytes();
+        if (offsets != null) {
+            b += 16 + 4L*offsets.length + 16 + 4L*targets.length;
+        }
+        return b;
+    }
+}
@@ -0,0 +1,254 @@
+package edu.cwru.jpdg.graph;
+
+/* Tim Henderson (tadh@case.edu)
+ *
+ * This file is part of jpdg a library to generate Program Dependence Graphs
+ * from JVM bytecode.
+ *
+ * Copyright (c) 2014, Tim Henderson, Case Western Reserve University
+ *   Cleveland, Ohio 44106
+ *   All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc.,
+ *   51 Franklin Street, Fifth Floor,
+ *   Boston, MA  02110-1301
+ *   USA
+ * or retrieve version 2.1 at their website:
+ *   http://www.gnu.org/licenses/lgpl-2.1.html
+ */
+
+
+import java.util.*;
+
+/**
+ * An immutable snapshot of a Graph (see Graph.freeze) for reading. The
+ * vertices are numbered 0 .. nodeCount()-1 in uid order. The edges are
+ * kept twice, by source (kids) and by target (parents), each in one
+ * contiguous array: the edges of a vertex are together, grouped by kind
+ * and sorted by the other end (then label) within a kind. So degrees are
+ * O(1) and walking the kids or parents of a vertex reads one run of
+ * memory.
+ */
+public class FrozenGraph {
+
+    static final int KINDS = EdgeKind.values().length;
+
+    final long[] uids;
+    final int[] node_labels;
+    final List<String> labels;
+    final List<String> edge_labels;
+
+    // the node attributes, rows[v] is the row of vertex v in nodes. Rows of
+    // Nodes are never changed once added so they are shared with the graph.
+    final Nodes nodes;
+    final int[] rows;
+
+    // off[v*KINDS + kind] .. off[v*KINDS + kind + 1] is the range of the
+    // edges of v of that kind in the vertex and label arrays.
+    final int[] kid_off;
+    final int[] kids;
+    final int[] kid_labels;
+    final int[] parent_off;
+    final int[] parents;
+    final int[] parent_labels;
+
+    FrozenGraph(Graph g) {
+        int[] order = g.order();
+        int[] rank = g.rank;
+        int n = order.length;
+        uids = new long[n];
+        node_labels = new int[n];
+        rows = order.clone();
+        for (int v = 0; v < n; v++) {
+            uids[v] = g.uids.get(order[v]);
+            node_labels[v] = g.node_labels.get(order[v]);
+        }
+        labels = new ArrayList<String>(g.labels);
+        edge_labels = new ArrayList<String>(g.edge_labels);
+        nodes = g.nodes;
+
+        long count = g.edgeCount();
+        if (count > Integer.MAX_VALUE) {
+            throw new IllegalStateException("too many edges to freeze: " + count);
+        }
+        int m = (int)count;
+        int[] srcs = new int[m];
+        int[] targs = new int[m];
+        int[] kinds = new int[m];
+        int[] elabels = new int[m];
+        // lists the edges by label, the stable sorts below keep that order
+        // among the edges between the same two vertices.
+        int e = 0;
+        for (int t : g.sorted_types()) {
+            EdgeList E = g.edges.get(t);
+            E.compact(n, order, rank);
+            for (int i = 0; i < n; i++) {
+                for (long k = E.start(i); k < E.end(i); k++) {
+                    srcs[e] = rank[i];
+                    targs[e] = rank[E.target(k)];
+                    kinds[e] = g.type_kinds.get(t).ordinal();
+                    elabels[e] = g.type_labels.get(t);
+                    e++;
+                }
+            }
+        }
+
+        int[] all = new int[m];
+        for (int i = 0; i < m; i++) {
+            all[i] = i;
+        }
+        kid_off = new int[n*KINDS + 1];
+        int[] by_src = sort(sort(all, targs, n, new int[n+1]), bucket(srcs, kinds), n*KINDS, kid_off);
+        kids = gather(by_src, targs);
+        kid_labels = gather(by_src, elabels);
+        parent_off = new int[n*KINDS + 1];
+        int[] by_targ = sort(sort(all, srcs, n, new int[n+1]), bucket(targs, kinds), n*KINDS, parent_off);
+        parents = gather(by_targ, srcs);
+        parent_labels = gather(by_targ, elabels);
+    }
+
+    private static int[] bucket(int[] vertices, int[] kinds) {
+        int[] b = new int[vertices.length];
+        for (int i = 0; i < b.length; i++) {
+            b[i] = vertices[i]*KINDS + kinds[i];
+        }
+        return b;
+    }
+
+    private static int[] gather(int[] perm, int[] values) {
+        int[] out = new int[perm.length];
+        for (int i = 0; i < perm.length; i++) {
+            out[i] = values[perm[i]];
+        }
+        return out;
+    }
+
+    // a stable counting sort of the edges in perm by keys (0 <= key < n).
+    // off is filled with the start of each key in the result.
+    private static int[] sort(int[] perm, int[] keys, int n, int[] off) {
+        for (int e : perm) {
+            off[keys[e]+1]++;
+        }
+        for (int i = 0; i < n; i++) {
+            off[i+1] += off[i];
+        }
+        int[] next = Arrays.copyOf(off, n);
+        int[] out = new int[perm.length];
+        for (int e : perm) {
+            out[next[keys[e]]++] = e;
+        }
+        return out;
+    }
+
+    public int nodeCount() {
+        return uids.length;
+    }
+
+    public long edgeCount() {
+        return kids.length;
+    }
+
+    public long uid(int v) {
+        return uids[v];
+    }
+
+    /**
+     * The vertex with the given uid, -1 if there is none.
+     */
+    public int vertex(long uid) {
+        int v = Arrays.binarySearch(uids, uid);
+        return v < 0 ? -1 : v;
+    }
+
+    public String label(int v) {
+        return labels.get(node_labels[v]);
+    }
+
+    public Node node(int v) {
+        return nodes.get(rows[v], uids[v], labels);
+    }
+
+    public int outDegree(int v) {
+        return kid_off[(v+1)*KINDS] - kid_off[v*KINDS];
+    }
+
+    public int outDegree(int v, EdgeKind kind) {
+        int b = v*KINDS + kind.ordinal();
+        return kid_off[b+1] - kid_off[b];
+    }
+
+    public int inDegree(int v) {
+        return parent_off[(v+1)*KINDS] - parent_off[v*KINDS];
+    }
+
+    public int inDegree(int v, EdgeKind kind) {
+        int b = v*KINDS + kind.ordinal();
+        return parent_off[b+1] - parent_off[b];
+    }
+
+    public int[] kids(int v) {
+        return Arrays.copyOfRange(kids, kid_off[v*KINDS], kid_off[(v+1)*KINDS]);
+    }
+
+    public int[] kids(int v, EdgeKind kind) {
+        int b = v*KINDS + kind.ordinal();
+        return Arrays.copyOfRange(kids, kid_off[b], kid_off[b+1]);
+    }
+
+    public String[] kidLabels(int v, EdgeKind kind) {
+        int b = v*KINDS + kind.ordinal();
+        return labels(kid_labels, kid_off[b], kid_off[b+1]);
+    }
+
+    public int[] parents(int v) {
+        return Arrays.copyOfRange(parents, parent_off[v*KINDS], parent_off[(v+1)*KINDS]);
+    }
+
+    public int[] parents(int v, EdgeKind kind) {
+        int b = v*KINDS + kind.ordinal();
+        return Arrays.copyOfRange(parents, parent_off[b], parent_off[b+1]);
+    }
+
+    public String[] parentLabels(int v, EdgeKind kind) {
+        int b = v*KINDS + kind.ordinal();
+        return labels(parent_labels, parent_off[b], parent_off[b+1]);
+    }
+
+    private String[] labels(int[] ids, int from, int to) {
+        String[] out = new String[to - from];
+        for (int i = from; i < to; i++) {
+            out[i - from] = edge_labels.get(ids[i]);
+        }
+        return out;
+    }
+
+    public boolean hasEdge(int a, int b, EdgeKind kind, String label) {
+        int k = a*KINDS + kind.ordinal();
+        int i = Arrays.binarySearch(kids, kid_off[k], kid_off[k+1], b);
+        if (i < 0) {
+            return false;
+        }
+        // there may be several edges to b (with different labels)
+        while (i > kid_off[k] && kids[i-1] == b) {
+            i--;
+        }
+        for (; i < kid_off[k+1] && kids[i] == b; i++) {
+            if (edge_labels.get(kid_labels[i]).equals(label)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -31,41 +31,424 @@ package edu.cwru.jpdg.graph;
 
 import java.util.*;
 import java.io.OutputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.BufferedReader;
 import java.io.IOException;
 import java.nio.charset.Charset;
-import java.lang.StringBuilder;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 
 /**
  * Represents a multi edged graph. Supports serialization and de-serialization
+ *
+ * Node uids are stable: every method (the method_name of a node) owns a
+ * range of uids derived from a hash of its name and its nodes are numbered
+ * within that range in the order they are added. So the uids of a method do
+ * not depend on which other methods were built before it, or where, and the
+ * graphs of different methods (see shard) or runs (see Read) can be combined
+ * without renumbering. Hash collisions are resolved by probing, in the
+ * order of reserve when the names are reserved up front.
  */
 public class Graph {
 
-    int next_uid = 0;
+    // the low LOCAL_BITS of a uid number the nodes of a method, the rest
+    // identify the method.
+    public static final int LOCAL_BITS = 20;
+    static final long LOCAL_MASK = (1L << LOCAL_BITS) - 1;
+    static final long METHOD_MASK = (1L << (63 - LOCAL_BITS)) - 1;
+
+    // method_name -> first uid of its range and the reverse. These are
+    // shared by a graph and its shards.
+    ConcurrentHashMap<String,Long> ranges;
+    ConcurrentHashMap<Long,String> range_owners;
+    // first uid of a range -> the local number of the next node in it. Only
+    // changed by compare and swap (see next_uid), so graphs may share it.
+    ConcurrentHashMap<Long,Integer> next_local = new ConcurrentHashMap<Long,Integer>();
+    // true if the shards of this graph use its next_local
+    boolean shared_counters = false;
 
-    public HashMap<Integer,Node> nodes = new HashMap<Integer,Node>();
-    HashMap<Node,Integer> rnodes = new HashMap<Node,Integer>();
+    // a shard refers to the graph it was created from (see shard).
+    Graph parent = null;
+
+    // Nodes are stored by index, in the order they were added. index maps
+    // a uid to its index. A shard also gives indices to the nodes of its
+    // parent which its edges point at, they have empty attributes and label
+    // -1.
+    LongIntMap index = new LongIntMap();
+    LongArray uids;
+    Nodes nodes;
+    IntArray node_labels;
+    int node_count = 0;
     List<String> labels = new ArrayList<String>();
     HashMap<String,Integer> rlabels = new HashMap<String,Integer>();
-    HashMap<Integer,Integer> node_labels = new HashMap<Integer,Integer>();
-    HashMap<String,HashMap<Integer,Set<Integer>>> edges =
-        new HashMap<String,HashMap<Integer,Set<Integer>>>();
+    List<byte[]> quoted_labels = new ArrayList<byte[]>();
+
+    // where the nodes and edges are kept, see mapped
+    Storage storage;
+
+    // the edge label dictionary
+    List<String> edge_labels = new ArrayList<String>();
+    HashMap<String,Integer> redge_labels = new HashMap<String,Integer>();
+    List<byte[]> quoted_edge_labels = new ArrayList<byte[]>();
+
+    // an edge type is a kind and an edge label. types are numbered as they
+    // are first seen, rtypes is keyed by (kind << 32 | edge label number).
+    List<EdgeKind> type_kinds = new ArrayList<EdgeKind>();
+    IntArray type_labels = new IntArray();
+    LongIntMap rtypes = new LongIntMap();
+    List<EdgeList> edges = new ArrayList<EdgeList>();
+
+    // the kinds of edges written by Write and WriteShard
+    EnumSet<EdgeKind> write_kinds = EnumSet.allOf(EdgeKind.class);
+    // when set Write and WriteShard group the records by method and note
+    // where each method went in here
+    MethodIndex.Builder write_index = null;
+    // when set Write groups the records by method, without an index
+    boolean write_grouped = false;
+    // when set Write writes the normalized format, see writeNormalized
+    boolean write_normalized = false;
+
+    // node indices sorted by uid and the inverse, see order()
+    int[] order = null;
+    int[] rank = null;
+
+    public Graph() {
+        this(Storage.HEAP);
+    }
+
+    private Graph(Storage storage) {
+        this.ranges = new ConcurrentHashMap<String,Long>();
+        this.range_owners = new ConcurrentHashMap<Long,String>();
+        init(storage);
+    }
+
+    private Graph(Graph parent) {
+        this.parent = parent;
+        this.ranges = parent.ranges;
+        this.range_owners = parent.range_owners;
+        if (parent.shared_counters) {
+            this.next_local = parent.next_local;
+        }
+        init(Storage.HEAP);
+    }
+
+    private void init(Storage storage) {
+        this.storage = storage;
+        this.uids = storage.longs("uids");
+        this.nodes = new Nodes(storage);
+        this.node_labels = storage.ints("labels");
+    }
+
+    /**
+     * Creates a graph which keeps its nodes and edges in memory mapped files
+     * in dir rather than on the heap, for graphs bigger than the heap. The
+     * page cache holds what is in use. The dictionaries (labels, strings,
+     * edge types) and the uid index stay on the heap, and the edges are
+     * only deduplicated (by sorting) when they are next queried or written.
+     * Shards of a mapped graph are on the heap, they are small.
+     */
+    public static Graph mapped(java.io.File dir) {
+        return new Graph(new Storage(dir));
+    }
+
+    /**
+     * Closes and removes the files of a mapped graph, which can not be used
+     * after. Does nothing for a graph on the heap.
+     */
+    public void close() throws IOException {
+        storage.close();
+    }
+
+    /**
+     * Creates an empty shard of this graph. The shard shares the uid ranges
+     * of this graph, so its nodes get the uids they would have got here, and
+     * it may refer to any node of this graph in its edges. The shard only
+     * reads the uid counters of this graph (and only those of the methods it
+     * adds nodes to) so it can be filled on another thread as long as each
+     * method is built in just one place at a time. Use merge or WriteShard
+     * to fold it back in.
+     */
+    public Graph shard() {
+        return new Graph(this);
+    }
+
+    /**
+     * Reserves the uid ranges of the given methods. Ranges are otherwise
+     * handed out as the methods are first seen, which only matters when two
+     * names hash to the same range: the one reserved first keeps it. Reserve
+     * every method up front (in any order, they are sorted here) to get the
+     * same uids whatever order the methods are built in.
+     */
+    public void reserve(Collection<String> method_names) {
+        List<String> sorted = new ArrayList<String>(method_names);
+        Collections.sort(sorted);
+        for (String name : sorted) {
+            range(name);
+        }
+    }
 
-    public Graph() { }
+    static long fnv64(String s) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            hash ^= s.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
 
-    public int addNode(String label, String extra, String package_name, String class_name, String source_file, String method_name, String type, int start_l, int start_c, int end_l, int end_c) {
+    long range(String method_name) {
+        Long base = ranges.get(method_name);
+        if (base != null) {
+            return base;
+        }
+        synchronized (ranges) {
+            base = ranges.get(method_name);
+            if (base != null) {
+                return base;
+            }
+            long m = fnv64(method_name) & METHOD_MASK;
+            while (range_owners.containsKey(m << LOCAL_BITS)) {
+                m = (m + 1) & METHOD_MASK;
+            }
+            base = m << LOCAL_BITS;
+            range_owners.put(base, method_name);
+            ranges.put(method_name, base);
+            return base;
+        }
+    }
+
+    private int local(long base) {
+        Integer local = next_local.get(base);
+        if (local != null) {
+            return local;
+        } else if (parent != null) {
+            return parent.local(base);
+        }
+        return 0;
+    }
+
+    private long next_uid(String method_name) {
+        long base = range(method_name);
+        while (true) {
+            Integer current = next_local.get(base);
+            int local = current != null ? current : local(base);
+            if (local > LOCAL_MASK) {
+                throw new RuntimeException("too many nodes in " + method_name);
+            }
+            if (current == null ? next_local.putIfAbsent(base, local + 1) == null : next_local.replace(base, current, local + 1)) {
+                return base | local;
+            }
+        }
+    }
+
+    // makes sure the next uid of the range at base is at least base | next
+    private void raise(long base, int next) {
+        while (true) {
+            Integer current = next_local.get(base);
+            if (current == null) {
+                if (local(base) >= next || next_local.putIfAbsent(base, next) == null) {
+                    return;
+                }
+            } else if (current >= next || next_local.replace(base, current, next)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Merges a shard (see shard) into this graph. The nodes of the shard
+     * already have the uids they would have had here.
+     */
+    public void merge(Graph shard) {
+        if (shard.parent == null) {
+            throw new IllegalArgumentException("can only merge a shard");
+        }
+        for (int i = 0; i < shard.uids.size(); i++) {
+            if (shard.node_labels.get(i) >= 0) {
+                put(shard.nodes.get(i, shard.uids.get(i), shard.labels), shard.labels.get(shard.node_labels.get(i)));
+            }
+        }
+        for (int t = 0; t < shard.edges.size(); t++) {
+            EdgeList E = shard.edges.get(t);
+            EdgeList to = edges.get(edge_type(shard.type_kinds.get(t), shard.edge_labels.get(shard.type_labels.get(t))));
+            for (long k = 0; k < E.size(); k++) {
+                to.add(endpoint(shard.uids.get(E.src(k)), "a"), endpoint(shard.uids.get(E.targ(k)), "b"));
+            }
+        }
+    }
+
+    /**
+     * A copy of this graph without the vertices of the given methods and
+     * the edges touching them, for patching in rebuilt methods (see
+     * PDG_Builder.rebuild). The uid ranges are kept, so a method built
+     * again gets its old uids back, starting with its entry. The edges
+     * from the vertices kept to those dropped are added to dangling, see
+     * restore. The copy is on the heap and has the output settings of this
+     * graph.
+     */
+    public Graph without(Set<String> method_names, List<Edge> dangling) {
+        Graph copy = new Graph();
+        copy.ranges.putAll(ranges);
+        copy.range_owners.putAll(range_owners);
+        copy.write_kinds = write_kinds;
+        copy.write_index = write_index;
+        copy.write_grouped = write_grouped;
+        copy.write_normalized = write_normalized;
+        boolean[] keep = new boolean[uids.size()];
+        for (int i = 0; i < uids.size(); i++) {
+            if (node_labels.get(i) < 0) {
+                continue;
+            }
+            Node n = nodes.get(i, uids.get(i), labels);
+            if (!method_names.contains(n.method_name)) {
+                copy.put(n, labels.get(node_labels.get(i)));
+                keep[i] = true;
+            }
+        }
+        for (int t = 0; t < edges.size(); t++) {
+            EdgeList E = edges.get(t);
+            EdgeKind kind = type_kinds.get(t);
+            String label = edge_labels.get(type_labels.get(t));
+            for (long k = 0; k < E.size(); k++) {
+                int i = E.src(k);
+                int j = E.targ(k);
+                if (keep[i] && keep[j]) {
+                    copy.addEdge(uids.get(i), uids.get(j), kind, label);
+                } else if (keep[i]) {
+                    dangling.add(new Edge(uids.get(i), uids.get(j), kind, label, copy));
+                }
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * Adds back the edges left dangling by without whose vertices are both
+     * here again, eg. the calls into the entry of a rebuilt method. Returns
+     * the others, which are gone.
+     */
+    public List<Edge> restore(List<Edge> dangling) {
+        List<Edge> lost = new ArrayList<Edge>();
+        for (Edge e : dangling) {
+            if (hasNode(e.src) && hasNode(e.targ)) {
+                addEdge(e.src, e.targ, e.kind, e.label);
+            } else {
+                lost.add(e);
+            }
+        }
+        return lost;
+    }
+
+    /**
+     * The vertices of package_name other than the method entries, with the
+     * edges from them and those from an entry to them, as a shard of this
+     * graph. That is what the shards of the package's methods held when they
+     * were built, see PartitionedOutput.rewrite.
+     */
+    public Graph packageShard(String package_name) {
+        Graph shard = shard();
+        boolean[] in = new boolean[uids.size()];
+        boolean[] entry = new boolean[uids.size()];
+        for (int i = 0; i < uids.size(); i++) {
+            if (node_labels.get(i) < 0) {
+                continue;
+            }
+            Node n = nodes.get(i, uids.get(i), labels);
+            entry[i] = n.type.equals("entry");
+            if (!entry[i] && n.package_name.equals(package_name)) {
+                shard.put(n, labels.get(node_labels.get(i)));
+                in[i] = true;
+            }
+        }
+        for (int t = 0; t < edges.size(); t++) {
+            EdgeList E = edges.get(t);
+            EdgeKind kind = type_kinds.get(t);
+            String label = edge_labels.get(type_labels.get(t));
+            for (long k = 0; k < E.size(); k++) {
+                int i = E.src(k);
+                int j = E.targ(k);
+                if (in[i] || (entry[i] && in[j])) {
+                    shard.addEdge(uids.get(i), uids.get(j), kind, label);
+                }
+            }
+        }
+        return shard;
+    }
+
+    // the classes of the vertices of this graph
+    Set<String> classNames() {
+        Set<String> names = new TreeSet<String>();
+        for (int i = 0; i < uids.size(); i++) {
+            if (node_labels.get(i) >= 0) {
+                names.add(nodes.class_name(i));
+            }
+        }
+        return names;
+    }
+
+    /**
+     * The method entries of this graph, as a graph of their own.
+     */
+    public Graph entries() {
+        Graph g = new Graph();
+        for (int i = 0; i < uids.size(); i++) {
+            if (node_labels.get(i) < 0) {
+                continue;
+            }
+            Node n = nodes.get(i, uids.get(i), labels);
+            if (n.type.equals("entry")) {
+                g.put(n, labels.get(node_labels.get(i)));
+            }
+        }
+        g.write_kinds = write_kinds;
+        return g;
+    }
+
+    /**
+     * Adds a node which already has a uid (from a shard or another graph).
+     * Does nothing if the uid is already in use.
+     */
+    void put(Node n, String label) {
+        int i = index.get(n.id);
+        if (i >= 0 && node_labels.get(i) >= 0) {
+            return;
+        }
+        long base = n.id & ~LOCAL_MASK;
+        String owner = range_owners.putIfAbsent(base, n.method_name);
+        if (owner == null) {
+            ranges.putIfAbsent(n.method_name, base);
+        }
+        raise(base, (int)(n.id & LOCAL_MASK) + 1);
+        int[] row = nodes.row(label_num(n.label), n.extra, n.package_name, n.class_name, n.source_file, n.method_name, n.type, n.start_line, n.start_column, n.end_line, n.end_column);
+        if (i >= 0) {
+            nodes.set(i, row);
+            node_labels.set(i, label_num(label));
+        } else {
+            i = nodes.add(row);
+            uids.add(n.id);
+            node_labels.add(label_num(label));
+            index.put(n.id, i);
+        }
+        node_count++;
+    }
+
+    public long addNode(String label, String extra, String package_name, String class_name, String source_file, String method_name, String type, int start_l, int start_c, int end_l, int end_c) {
         int lnum = label_num(label);
-        int uid = next_uid;
-        Node node = new Node(uid, lnum, label, extra, package_name, class_name, source_file, method_name, type, start_l, start_c, end_l, end_c);
-        Integer cached = rnodes.get(node);
-        if (cached != null) {
-            return cached;
-        }
-        next_uid++;
-        nodes.put(uid, node);
-        rnodes.put(node, uid);
-        node_labels.put(uid, lnum);
+        int[] row = nodes.row(lnum, extra, package_name, class_name, source_file, method_name, type, start_l, start_c, end_l, end_c);
+        int i = nodes.find(row);
+        if (i >= 0) {
+            return uids.get(i);
+        }
+        long uid = next_uid(method_name);
+        i = nodes.add(row);
+        uids.add(uid);
+        node_labels.add(lnum);
+        index.put(uid, i);
+        node_count++;
         return uid;
     }
 
@@ -79,91 +462,514 @@ public class Graph {
         return num;
     }
 
-    public int labelNum(int node) {
-        if (!node_labels.containsKey(node)) {
+    // the index of a node of this graph, -1 if there is no such node.
+    private int node_index(long uid) {
+        int i = index.get(uid);
+        if (i < 0 || node_labels.get(i) < 0) {
+            return -1;
+        }
+        return i;
+    }
+
+    public boolean hasNode(long uid) {
+        return node_index(uid) >= 0;
+    }
+
+    public Node node(long uid) throws NoSuchElementException {
+        int i = node_index(uid);
+        if (i < 0) {
             throw new NoSuchElementException("uid has not yet been created");
         }
-        return node_labels.get(node);
+        return nodes.get(i, uid, labels);
+    }
+
+    public int nodeCount() {
+        return node_count;
     }
 
-    public String label(int node) throws NoSuchElementException {
-        if (!node_labels.containsKey(node)) {
+    public int labelNum(long node) {
+        int i = node_index(node);
+        if (i < 0) {
             throw new NoSuchElementException("uid has not yet been created");
         }
-        return labels.get(node_labels.get(node));
+        return node_labels.get(i);
     }
 
-    public void setLabel(int node, String label) throws NoSuchElementException {
-        if (!node_labels.containsKey(node)) {
+    public String label(long node) throws NoSuchElementException {
+        return labels.get(labelNum(node));
+    }
+
+    public void setLabel(long node, String label) throws NoSuchElementException {
+        int i = node_index(node);
+        if (i < 0) {
             throw new NoSuchElementException("uid has not yet been created");
         }
-        node_labels.put(node, label_num(label));
+        node_labels.set(i, label_num(label));
     }
 
-    public void addEdge(int a, int b, String type) throws NoSuchElementException {
-        if (!node_labels.containsKey(a)) {
-            throw new NoSuchElementException("uid a has not yet been created");
+    private int edge_label_num(String label) {
+        Integer num = redge_labels.get(label);
+        if (num == null) {
+            num = edge_labels.size();
+            edge_labels.add(label);
+            redge_labels.put(label, num);
         }
-        if (!node_labels.containsKey(b)) {
-            throw new NoSuchElementException("uid b has not yet been created");
+        return num;
+    }
+
+    private static long type_key(EdgeKind kind, int label) {
+        return ((long)kind.ordinal() << 32) | label;
+    }
+
+    private int edge_type(EdgeKind kind, String label) {
+        int l = edge_label_num(label);
+        int t = rtypes.get(type_key(kind, l));
+        if (t < 0) {
+            t = type_kinds.size();
+            type_kinds.add(kind);
+            type_labels.add(l);
+            rtypes.put(type_key(kind, l), t);
+            edges.add(storage.edges("edges"));
         }
-        if (!edges.containsKey(type)) {
-            edges.put(type, new HashMap<Integer,Set<Integer>>());
+        return t;
+    }
+
+    // the number of an existing edge type, -1 if there is no such type.
+    private int find_type(EdgeKind kind, String label) {
+        Integer l = redge_labels.get(label);
+        if (l == null) {
+            return -1;
         }
-        if (!edges.get(type).containsKey(a)) {
-            edges.get(type).put(a, new HashSet<Integer>());
+        return rtypes.get(type_key(kind, l));
+    }
+
+    // the index of an edge endpoint. A shard may point at the nodes of its
+    // parent, which it can not check without racing whoever is adding to
+    // the parent, so it just gives them an index.
+    private int endpoint(long uid, String which) {
+        int i = index.get(uid);
+        if (i >= 0) {
+            return i;
+        } else if (parent == null) {
+            throw new NoSuchElementException("uid " + which + " has not yet been created");
         }
-        edges.get(type).get(a).add(b);
+        i = uids.add(uid);
+        nodes.add_empty();
+        node_labels.add(-1);
+        index.put(uid, i);
+        return i;
+    }
+
+    /**
+     * Adds an edge, guessing its kind from its label (see EdgeKind.guess).
+     */
+    public void addEdge(long a, long b, String label) throws NoSuchElementException {
+        addEdge(a, b, EdgeKind.guess(label), label);
     }
 
-    public boolean hasEdge(int a, int b, String type) {
-        if (!edges.containsKey(type)) {
+    public void addEdge(long a, long b, EdgeKind kind, String label) throws NoSuchElementException {
+        int i = endpoint(a, "a");
+        int j = endpoint(b, "b");
+        edges.get(edge_type(kind, label)).add(i, j);
+    }
+
+    public boolean hasEdge(long a, long b, String label) {
+        return hasEdge(a, b, EdgeKind.guess(label), label);
+    }
+
+    public boolean hasEdge(long a, long b, EdgeKind kind, String label) {
+        int t = find_type(kind, label);
+        if (t < 0) {
             return false;
         }
-        if (!edges.get(type).containsKey(a)) {
+        int i = index.get(a);
+        int j = index.get(b);
+        if (i < 0 || j < 0) {
             return false;
         }
-        return edges.get(type).get(a).contains(b);
+        return compacted(t).has(i, j);
+    }
+
+    public long edgeCount() {
+        long count = 0;
+        for (int t = 0; t < edges.size(); t++) {
+            count += compacted(t).size();
+        }
+        return count;
+    }
+
+    // the edges of type t, compacted first if they are lazy (see EdgeList)
+    private EdgeList compacted(int t) {
+        EdgeList E = edges.get(t);
+        if (E.lazy) {
+            int[] order = order();
+            E.compact(order.length, order, rank);
+        }
+        return E;
+    }
+
+    /**
+     * The node indices sorted by uid, the inverse is in rank.
+     */
+    int[] order() {
+        int n = uids.size();
+        if (order != null && order.length == n) {
+            return order;
+        }
+        long[] sorted = uids.toArray();
+        Arrays.sort(sorted);
+        order = new int[n];
+        rank = new int[n];
+        for (int r = 0; r < n; r++) {
+            order[r] = index.get(sorted[r]);
+            rank[order[r]] = r;
+        }
+        return order;
     }
 
+    /**
+     * The edge types in the order they are written: sorted by label and
+     * then kind.
+     */
+    List<Integer> sorted_types() {
+        List<Integer> types = new ArrayList<Integer>();
+        for (int t = 0; t < type_kinds.size(); t++) {
+            types.add(t);
+        }
+        Collections.sort(types, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                int c = edge_labels.get(type_labels.get(a)).compareTo(edge_labels.get(type_labels.get(b)));
+                if (c != 0) {
+                    return c;
+                }
+                return type_kinds.get(a).compareTo(type_kinds.get(b));
+            }
+        });
+        return types;
+    }
+
+    /**
+     * Takes an immutable, read optimized snapshot of this graph (see
+     * FrozenGraph). Later changes to the graph do not show up in it.
+     */
+    public FrozenGraph freeze() {
+        if (parent != null) {
+            throw new IllegalStateException("can not freeze a shard");
+        }
+        return new FrozenGraph(this);
+    }
+
+    /**
+     * Limits the edges written by Write and WriteShard to the given kinds.
+     * They are all written by default.
+     */
+    public void writeKinds(Set<EdgeKind> kinds) {
+        write_kinds = EnumSet.copyOf(kinds);
+    }
+
+    /**
+     * Makes Write and WriteShard write the records of each method (the
+     * vertices of its uid range and the edges from them) together and add
+     * their byte range to index. null (the default) turns this off.
+     */
+    public void writeIndex(MethodIndex.Builder index) {
+        write_index = index;
+    }
+
+    /**
+     * Makes Write write the records of each method together, as writeIndex
+     * does, without keeping an index. The block index of a .gz output (see
+     * BlockGzipOutputStream) then finds a method in a block or two.
+     */
+    public void writeGrouped(boolean grouped) {
+        write_grouped = grouped;
+    }
+
+    /**
+     * Makes Write write the normalized format: a labels line and an
+     * edge_labels line (JSON arrays of the label tables) first, then the
+     * vertices with their label as an "lnum" into labels (and a "current"
+     * one when setLabel changed it) and the edges with only src, targ,
+     * an "lnum" into edge_labels and kind. Normalized.expand turns it back
+     * into the usual format. Shards can not be written this way.
+     */
+    public void writeNormalized(boolean normalized) {
+        write_normalized = normalized;
+    }
+
+    /**
+     * A rough count of the bytes used by the nodes and edges (not counting
+     * the strings).
+     */
+    public long bytes() {
+        long b = index.bytes() + uids.bytes() + node_labels.bytes() + nodes.bytes();
+        for (EdgeList E : edges) {
+            b += E.bytes();
+        }
+        return b;
+    }
+
+    /**
+     * Writes the vertices sorted by uid and then the edges sorted by label,
+     * source and target. Since the uids are stable the output only depends
+     * on what is in the graph, not on how it was built.
+     */
     public void Write(OutputStream fout) throws IOException {
-        for (Node n : nodes.values()) {
-            fout.write(n.Serialize().getBytes(Charset.forName("UTF-8")));
-            fout.write("\n".getBytes(Charset.forName("UTF-8")));
-        }
-        for (Map.Entry<String,HashMap<Integer,Set<Integer>>> E : edges.entrySet()) {
-            String e_label = E.getKey();
-            HashMap<Integer,Set<Integer>> edges = E.getValue();
-            for (Map.Entry<Integer,Set<Integer>> e : edges.entrySet()) {
-                int i = e.getKey();
-                for (int j : e.getValue()) {
-                    fout.write((new Edge(i, j, e_label, this)).Serialize().getBytes(Charset.forName("UTF-8")));
-                    fout.write("\n".getBytes(Charset.forName("UTF-8")));
+        VegWriter w = new VegWriter(fout);
+        Write(w);
+        w.flush();
+    }
+
+    public void Write(VegWriter w) throws IOException {
+        Write(w, null, write_kinds, write_index);
+    }
+
+    /**
+     * Writes a shard (see shard) as if it had been merged into this graph
+     * and then written, but without keeping it.
+     */
+    public void WriteShard(Graph shard, OutputStream fout) throws IOException {
+        VegWriter w = new VegWriter(fout);
+        WriteShard(shard, w);
+        w.flush();
+    }
+
+    public void WriteShard(Graph shard, VegWriter w) throws IOException {
+        if (shard.parent == null) {
+            throw new IllegalArgumentException("can only write a shard");
+        }
+        shard.Write(w, this, write_kinds, write_index);
+    }
+
+    /**
+     * Writes a shard as plain veg with only the given kinds of edges,
+     * whatever the output settings of this graph are (see writeKinds,
+     * writeIndex and writeNormalized). For records which are read back
+     * later, see Checkpoint and MethodCache.
+     */
+    public void WriteRecords(Graph shard, VegWriter w, Set<EdgeKind> kinds) throws IOException {
+        if (shard.parent == null) {
+            throw new IllegalArgumentException("can only write a shard");
+        }
+        shard.WritePlain(w, this, kinds);
+    }
+
+    // the quoted (see VegWriter.quote) table[i], quoted strings are kept in
+    // cache as the tables only ever grow.
+    static byte[] quoted(List<byte[]> cache, List<String> table, int i) {
+        while (cache.size() <= i) {
+            cache.add(VegWriter.quote(table.get(cache.size())));
+        }
+        return cache.get(i);
+    }
+
+    // the quoted label of node index i, which may be in parent.
+    private byte[] quoted_label(int i, Graph parent) {
+        int lnum = node_labels.get(i);
+        if (lnum >= 0) {
+            return quoted(quoted_labels, labels, lnum);
+        }
+        return quoted(parent.quoted_labels, parent.labels, parent.labelNum(uids.get(i)));
+    }
+
+    // writes this graph, labels of nodes not in it are looked up in parent.
+    private void Write(VegWriter w, Graph parent, Set<EdgeKind> kinds, MethodIndex.Builder index) throws IOException {
+        if (write_normalized || (parent != null && parent.write_normalized)) {
+            if (parent != null || index != null) {
+                throw new IllegalStateException("only a whole graph can be written normalized, without an index");
+            }
+            WriteNormalized(w, kinds);
+            return;
+        } else if (index != null || write_grouped) {
+            WriteGrouped(w, parent, kinds, index);
+            return;
+        }
+        WritePlain(w, parent, kinds);
+    }
+
+    private void WritePlain(VegWriter w, Graph parent, Set<EdgeKind> kinds) throws IOException {
+        int[] order = order();
+        for (int i : order) {
+            if (node_labels.get(i) >= 0) {
+                nodes.write(w, i, uids.get(i), quoted(quoted_labels, labels, nodes.label.get(i)));
+            }
+        }
+        for (int t : sorted_types()) {
+            EdgeKind kind = type_kinds.get(t);
+            if (!kinds.contains(kind)) {
+                continue;
+            }
+            EdgeList E = edges.get(t);
+            byte[] e_label = quoted(quoted_edge_labels, edge_labels, type_labels.get(t));
+            E.compact(order.length, order, rank);
+            for (int i : order) {
+                long start = E.start(i);
+                long end = E.end(i);
+                if (start == end) {
+                    continue;
+                }
+                byte[] i_label = quoted_label(i, parent);
+                for (long k = start; k < end; k++) {
+                    int j = E.target(k);
+                    w.edge(uids.get(i), uids.get(j), kind, e_label, i_label, quoted_label(j, parent));
                 }
             }
         }
     }
 
-    public String Serialize() {
-        StringBuilder sb = new StringBuilder();
-        for (Node n : nodes.values()) {
-            sb.append(n.Serialize());
-            sb.append("\n");
-        }
-        for (Map.Entry<String,HashMap<Integer,Set<Integer>>> E : edges.entrySet()) {
-            String e_label = E.getKey();
-            HashMap<Integer,Set<Integer>> edges = E.getValue();
-            for (Map.Entry<Integer,Set<Integer>> e : edges.entrySet()) {
-                int i = e.getKey();
-                for (int j : e.getValue()) {
-                    sb.append((new Edge(i, j, e_label, this)).Serialize());
-                    sb.append("\n");
+    private void WriteNormalized(VegWriter w, Set<EdgeKind> kinds) throws IOException {
+        List<byte[]> table = new ArrayList<byte[]>();
+        for (int i = 0; i < labels.size(); i++) {
+            table.add(quoted(quoted_labels, labels, i));
+        }
+        w.strings("labels", table);
+        table.clear();
+        for (int i = 0; i < edge_labels.size(); i++) {
+            table.add(quoted(quoted_edge_labels, edge_labels, i));
+        }
+        w.strings("edge_labels", table);
+        int[] order = order();
+        for (int i : order) {
+            int current = node_labels.get(i);
+            if (current >= 0) {
+                nodes.write(w, i, uids.get(i), current != nodes.label.get(i) ? current : -1);
+            }
+        }
+        for (int t : sorted_types()) {
+            EdgeKind kind = type_kinds.get(t);
+            if (!kinds.contains(kind)) {
+                continue;
+            }
+            EdgeList E = edges.get(t);
+            int e_label = type_labels.get(t);
+            E.compact(order.length, order, rank);
+            for (int i : order) {
+                for (long k = E.start(i); k < E.end(i); k++) {
+                    w.edge(uids.get(i), uids.get(E.target(k)), kind, e_label);
+                }
+            }
+        }
+    }
+
+    // like Write but one method (uid range) after the other: its vertices
+    // and then its edges, sorted as Write sorts them. Each method's byte
+    // range goes in index when it is not null.
+    private void WriteGrouped(VegWriter w, Graph parent, Set<EdgeKind> kinds, MethodIndex.Builder index) throws IOException {
+        int[] order = order();
+        List<Integer> types = new ArrayList<Integer>();
+        for (int t : sorted_types()) {
+            if (kinds.contains(type_kinds.get(t))) {
+                edges.get(t).compact(order.length, order, rank);
+                types.add(t);
+            }
+        }
+        int s = 0;
+        while (s < order.length) {
+            long base = uids.get(order[s]) & ~LOCAL_MASK;
+            int e = s;
+            int first = -1;
+            while (e < order.length && (uids.get(order[e]) & ~LOCAL_MASK) == base) {
+                if (first < 0 && node_labels.get(order[e]) >= 0) {
+                    first = order[e];
+                }
+                e++;
+            }
+            long start = w.position();
+            for (int r = s; r < e; r++) {
+                int i = order[r];
+                if (node_labels.get(i) >= 0) {
+                    nodes.write(w, i, uids.get(i), quoted(quoted_labels, labels, nodes.label.get(i)));
+                }
+            }
+            for (int t : types) {
+                EdgeKind kind = type_kinds.get(t);
+                EdgeList E = edges.get(t);
+                byte[] e_label = quoted(quoted_edge_labels, edge_labels, type_labels.get(t));
+                for (int r = s; r < e; r++) {
+                    int i = order[r];
+                    long k = E.start(i);
+                    long end = E.end(i);
+                    if (k == end) {
+                        continue;
+                    }
+                    byte[] i_label = quoted_label(i, parent);
+                    for (; k < end; k++) {
+                        int j = E.target(k);
+                        w.edge(uids.get(i), uids.get(j), kind, e_label, i_label, quoted_label(j, parent));
+                    }
                 }
             }
+            if (index != null && first >= 0 && w.position() > start) {
+                index.add(nodes.package_name(first), nodes.class_name(first), nodes.method_name(first), start, w.position());
+            }
+            s = e;
+        }
+    }
+
+    /**
+     * Reads a graph in the format produced by Write into this graph. The
+     * nodes keep their uids, so reading a node which is already in the graph
+     * does nothing. Several graphs (eg. the parts of a sharded run, which all
+     * carry the method entries) can be read into one this way.
+     */
+    public void Read(InputStream fin) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(fin, Charset.forName("UTF-8")));
+        JsonParser parser = new JsonParser();
+        List<Long> srcs = new ArrayList<Long>();
+        List<Long> targs = new ArrayList<Long>();
+        List<String> types = new ArrayList<String>();
+        List<EdgeKind> kinds = new ArrayList<EdgeKind>();
+        String line;
+        while ((line = in.readLine()) != null) {
+            int tab = line.indexOf('\t');
+            if (tab < 0) {
+                continue;
+            }
+            String line_type = line.substring(0, tab);
+            JsonObject o = parser.parse(line.substring(tab+1)).getAsJsonObject();
+            if (line_type.equals("vertex")) {
+                String label = o.get("label").getAsString();
+                put(new Node(
+                    o.get("id").getAsLong(), 0, label,
+                    o.get("extra").getAsString(),
+                    o.get("package_name").getAsString(),
+                    o.get("class_name").getAsString(),
+                    o.get("source_file").getAsString(),
+                    o.get("method_name").getAsString(),
+                    o.get("type").getAsString(),
+                    o.get("start_line").getAsInt(),
+                    o.get("start_column").getAsInt(),
+                    o.get("end_line").getAsInt(),
+                    o.get("end_column").getAsInt()
+                ), label);
+            } else if (line_type.equals("edge")) {
+                // the vertices of an edge may come after it, so the edges
+                // are added once the whole graph has been read.
+                srcs.add(o.get("src").getAsLong());
+                targs.add(o.get("targ").getAsLong());
+                String label = o.get("label").getAsString();
+                types.add(label);
+                // graphs written before edges had kinds do not have one
+                kinds.add(o.has("kind") ? EdgeKind.parse(o.get("kind").getAsString()) : EdgeKind.guess(label));
+            } else {
+                throw new IOException("unexpected line type " + line_type);
+            }
+        }
+        for (int i = 0; i < types.size(); i++) {
+            if (!hasNode(srcs.get(i)) || !hasNode(targs.get(i))) {
+                throw new IOException(String.format("edge %d -> %d refers to an unknown vertex", srcs.get(i), targs.get(i)));
+            }
+            addEdge(srcs.get(i), targs.get(i), kinds.get(i), types.get(i));
+        }
+    }
+
+    public String Serialize() {
+        java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
+        try {
+            Write(out);
+            return out.toString("UTF-8");
+        } catch (IOException e) {
+            throw new RuntimeException(e);
         }
-        //sb.append("labels\t");
-        //sb.append((new Gson()).toJson(labels));
-        //sb.append("\n");
-        return sb.toString();
     }
 }
@@ -0,0 +1,479 @@
+package edu.cwru.jpdg.graph;
+
+/* Tim Henderson (tadh@case.edu)
+ *
+ * This file is part of jpdg a library to generate Program Dependence Graphs
+ * from JVM bytecode.
+ *
+ * Copyright (c) 2014, Tim Henderson, Case Western Reserve University
+ *   Cleveland, Ohio 44106
+ *   All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc.,
+ *   51 Franklin Street, Fifth Floor,
+ *   Boston, MA  02110-1301
+ *   USA
+ * or retrieve version 2.1 at their website:
+ *   http://www.gnu.org/licenses/lgpl-2.1.html
+ */
+
+
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Reads veg files (what Graph.Write writes) like Graph.Read, only faster:
+ * the file is memory mapped in chunks which end at line ends, the chunks
+ * are copied out of the mapping in one go and parsed on a pool of threads
+ * by a small hand written parser for the veg objects (no Gson, the strings
+ * which are not needed, the src_label and targ_label of the edges, are
+ * skipped without being decoded) and the parsed chunks are put into the
+ * graph in file order, so the graph is the one Graph.Read would have read.
+ */
+public class GraphReader {
+
+    public static final int CHUNK_SIZE = 8 << 20;
+    static final Charset UTF8 = Charset.forName("UTF-8");
+    static final byte[] VERTEX = "vertex".getBytes(UTF8);
+    static final byte[] EDGE = "edge".getBytes(UTF8);
+
+    public static Graph read(File f) throws IOException {
+        Graph g = new Graph();
+        read(f, g);
+        return g;
+    }
+
+    public static void read(File f, Graph g) throws IOException {
+        read(f, g, Runtime.getRuntime().availableProcessors(), CHUNK_SIZE);
+    }
+
+    /**
+     * Reads veg lines which are already in memory, on this thread. For the
+     * many small files of MethodCache, where a pool would cost more than
+     * it saves.
+     */
+    public static void read(byte[] b, String where, Graph g) throws IOException {
+        Deferred deferred = new Deferred();
+        apply(new Parser(b, where).parse(), g, deferred);
+        deferred.apply(g);
+    }
+
+    public static void read(File f, Graph g, int threads, int chunk_size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            final FileChannel ch = raf.getChannel();
+            ArrayDeque<Future<Chunk>> pending = new ArrayDeque<Future<Chunk>>();
+            Deferred deferred = new Deferred();
+            long size = ch.size();
+            long start = 0;
+            while (start < size) {
+                final long s = start;
+                final long end = line_end(ch, Math.min(start + chunk_size, size), size);
+                final String where = f + ":" + start;
+                pending.add(pool.submit(new Callable<Chunk>() {
+                    public Chunk call() throws IOException {
+                        MappedByteBuffer m = ch.map(FileChannel.MapMode.READ_ONLY, s, end - s);
+                        byte[] b = new byte[(int)(end - s)];
+                        m.get(b);
+                        return new Parser(b, where).parse();
+                    }
+                }));
+                while (pending.size() > 2*threads) {
+                    apply(get(pending.remove()), g, deferred);
+                }
+                start = end;
+            }
+            while (!pending.isEmpty()) {
+                apply(get(pending.remove()), g, deferred);
+            }
+            deferred.apply(g);
+        } finally {
+            pool.shutdownNow();
+            raf.close();
+        }
+    }
+
+    // the offset after the first line end at or after pos
+    private static long line_end(FileChannel ch, long pos, long size) throws IOException {
+        ByteBuffer probe = ByteBuffer.allocate(4096);
+        while (pos < size) {
+            probe.clear();
+            int n = ch.read(probe, pos);
+            for (int i = 0; i < n; i++) {
+                if (probe.get(i) == '\n') {
+                    return pos + i + 1;
+                }
+            }
+            pos += n;
+        }
+        return size;
+    }
+
+    private static Chunk get(Future<Chunk> f) throws IOException {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException)e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private static void apply(Chunk c, Graph g, Deferred deferred) {
+        for (Node n : c.nodes) {
+            g.put(n, n.label);
+        }
+        for (int i = 0; i < c.srcs.size(); i++) {
+            long a = c.srcs.get(i);
+            long b = c.targs.get(i);
+            int t = c.types.get(i);
+            if (g.hasNode(a) && g.hasNode(b)) {
+                g.addEdge(a, b, c.kinds.get(t), c.labels.get(t));
+            } else {
+                // the vertices of an edge may come after it
+                deferred.add(a, b, c.kinds.get(t), c.labels.get(t));
+            }
+        }
+    }
+
+    // the edges whose vertices had not been read yet
+    private static class Deferred {
+        final LongArray srcs = new LongArray();
+        final LongArray targs = new LongArray();
+        final List<EdgeKind> kinds = new ArrayList<EdgeKind>();
+        final List<String> labels = new ArrayList<String>();
+
+        void add(long a, long b, EdgeKind kind, String label) {
+            srcs.add(a);
+            targs.add(b);
+            kinds.add(kind);
+            labels.add(label);
+        }
+
+        void apply(Graph g) throws IOException {
+            for (int i = 0; i < srcs.size(); i++) {
+                if (!g.hasNode(srcs.get(i)) || !g.hasNode(targs.get(i))) {
+                    throw new IOException(String.format("edge %d -> %d refers to an unknown vertex", srcs.get(i), targs.get(i)));
+                }
+                g.addEdge(srcs.get(i), targs.get(i), kinds.get(i), labels.get(i));
+            }
+        }
+    }
+
+    // the parsed lines of a chunk, the edges number their (kind, label)
+    static class Chunk {
+        final List<Node> nodes = new ArrayList<Node>();
+        final LongArray srcs = new LongArray();
+        final LongArray targs = new LongArray();
+        final IntArray types = new IntArray();
+        final List<EdgeKind> kinds = new ArrayList<EdgeKind>();
+        final List<String> labels = new ArrayList<String>();
+        final Map<String,Integer> rtypes = new HashMap<String,Integer>();
+
+        void edge(long a, long b, EdgeKind kind, String label) {
+            String key = kind.name + "\t" + label;
+            Integer t = rtypes.get(key);
+            if (t == null) {
+                t = kinds.size();
+                kinds.add(kind);
+                labels.add(label);
+                rtypes.put(key, t);
+            }
+            srcs.add(a);
+            targs.add(b);
+            types.add(t);
+        }
+    }
+
+    static class Parser {
+        final byte[] b;
+        final String where;
+        final int end;
+        int pos = 0;
+
+        // the values of the current line
+        long id, src, targ;
+        int start_line, start_column, end_line, end_column;
+        String label, extra, package_name, class_name, source_file, method_name, type, kind;
+
+        Parser(byte[] b, String where) {
+            this.b = b;
+            this.where = where;
+            this.end = b.length;
+        }
+
+        Chunk parse() throws IOException {
+            Chunk c = new Chunk();
+            while (pos < end) {
+                int tab = pos;
+                while (tab < end && b[tab] != '\t' && b[tab] != '\n') {
+                    tab++;
+                }
+                if (tab >= end || b[tab] == '\n') {
+                    pos = tab + 1;
+                    continue;
+                }
+                boolean vertex = is(pos, tab, VERTEX);
+                if (!vertex && !is(pos, tab, EDGE)) {
+                    throw new IOException("unexpected line type " + utf8(pos, tab));
+                }
+                pos = tab + 1;
+                object();
+                if (vertex) {
+                    c.nodes.add(new Node(
+                        id, 0, label, extra, package_name, class_name, source_file,
+                        method_name, type, start_line, start_column, end_line, end_column));
+                } else {
+                    // graphs written before edges had kinds do not have one
+                    c.edge(src, targ, kind != null ? EdgeKind.parse(kind) : EdgeKind.guess(label), label);
+                }
+                while (pos < end && b[pos] != '\n') {
+                    pos++;
+                }
+                pos++;
+            }
+            return c;
+        }
+
+        private boolean is(int from, int to, byte[] word) {
+            if (to - from != word.length) {
+                return false;
+            }
+            for (int i = 0; i < word.length; i++) {
+                if (b[from + i] != word[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void object() throws IOException {
+            id = src = targ = 0;
+            start_line = start_column = end_line = end_column = 0;
+            label = extra = package_name = class_name = source_file = method_name = type = kind = null;
+            expect('{');
+            skip_space();
+            if (peek() == '}') {
+                pos++;
+                return;
+            }
+            while (true) {
+                skip_space();
+                int key = key();
+                skip_space();
+                expect(':');
+                skip_space();
+                value(key);
+                skip_space();
+                byte c = next();
+                if (c == '}') {
+                    return;
+                } else if (c != ',') {
+                    throw error("expected , or }");
+                }
+            }
+        }
+
+        static final String[] KEYS = {
+            "id", "src", "targ", "label", "extra", "package_name", "class_name",
+            "source_file", "method_name", "type", "kind", "start_line",
+            "start_column", "end_line", "end_column",
+        };
+        static final byte[][] KEY_BYTES = new byte[KEYS.length][];
+        static {
+            for (int i = 0; i < KEYS.length; i++) {
+                KEY_BYTES[i] = ("\"" + KEYS[i] + "\"").getBytes(UTF8);
+            }
+        }
+
+        // the index of the key in KEYS, -1 for other keys
+        private int key() throws IOException {
+            int s = pos;
+            skip_string();
+            for (int k = 0; k < KEY_BYTES.length; k++) {
+                if (is(s, pos, KEY_BYTES[k])) {
+                    return k;
+                }
+            }
+            return -1;
+        }
+
+        private void value(int key) throws IOException {
+            byte c = peek();
+            if (c == '"') {
+                switch (key) {
+                case 3: label = string(); break;
+                case 4: extra = string(); break;
+                case 5: package_name = string(); break;
+                case 6: class_name = string(); break;
+                case 7: source_file = string(); break;
+                case 8: method_name = string(); break;
+                case 9: type = string(); break;
+                case 10: kind = string(); break;
+                default: skip_string();
+                }
+            } else if (c == '-' || (c >= '0' && c <= '9')) {
+                long v = number();
+                switch (key) {
+                case 0: id = v; break;
+                case 1: src = v; break;
+                case 2: targ = v; break;
+                case 11: start_line = (int)v; break;
+                case 12: start_column = (int)v; break;
+                case 13: end_line = (int)v; break;
+                case 14: end_column = (int)v; break;
+                }
+            } else if (c == 'n' || c == 't' || c == 'f') {
+                while (pos < end && b[pos] >= 'a' && b[pos] <= 'z') {
+                    pos++;
+                }
+            } else {
+                throw error("unexpected value");
+            }
+        }
+
+        private long number() throws IOException {
+            boolean neg = peek() == '-';
+            if (neg) {
+                pos++;
+            }
+            long v = 0;
+            int s = pos;
+            while (pos < end && b[pos] >= '0' && b[pos] <= '9') {
+                v = 10*v + (b[pos++] - '0');
+            }
+            if (pos == s) {
+                throw error("expected a number");
+            }
+            return neg ? -v : v;
+        }
+
+        private void skip_string() throws IOException {
+            expect('"');
+            while (true) {
+                byte c = next();
+                if (c == '\\') {
+                    next();
+                } else if (c == '"') {
+                    return;
+                }
+            }
+        }
+
+        private String string() throws IOException {
+            expect('"');
+            int s = pos;
+            while (pos < end && b[pos] != '"' && b[pos] != '\\') {
+                pos++;
+            }
+            if (pos < end && b[pos] == '"') {
+                String v = utf8(s, pos);
+                pos++;
+                return v;
+            }
+            // escapes, the raw runs between them are still UTF-8
+            StringBuilder sb = new StringBuilder();
+            sb.append(utf8(s, pos));
+            while (true) {
+                byte c = next();
+                if (c == '"') {
+                    return sb.toString();
+                } else if (c != '\\') {
+                    s = pos - 1;
+                    while (pos < end && b[pos] != '"' && b[pos] != '\\') {
+                        pos++;
+                    }
+                    sb.append(utf8(s, pos));
+                    continue;
+                }
+                c = next();
+                switch (c) {
+                case 'b': sb.append('\b'); break;
+                case 'f': sb.append('\f'); break;
+                case 'n': sb.append('\n'); break;
+                case 'r': sb.append('\r'); break;
+                case 't': sb.append('\t'); break;
+                case 'u':
+                    if (pos + 4 > end) {
+                        throw error("short \\u escape");
+                    }
+                    int u = 0;
+                    for (int i = 0; i < 4; i++) {
+                        int d = Character.digit((char)b[pos++], 16);
+                        if (d < 0) {
+                            throw error("bad \\u escape");
+                        }
+                        u = (u << 4) | d;
+                    }
+                    sb.append((char)u);
+                    break;
+                default: sb.append((char)c);
+                }
+            }
+        }
+
+        private String utf8(int from, int to) {
+            return new String(b, from, to - from, UTF8);
+        }
+
+        private void skip_space() {
+            while (pos < end) {
+                byte c = b[pos];
+                if (c != ' ' && c != '\t' && c != '\r') {
+                    return;
+                }
+                pos++;
+            }
+        }
+
+        private byte peek() throws IOException {
+            if (pos >= end || b[pos] == '\n') {
+                throw error("unexpected end of line");
+            }
+            return b[pos];
+        }
+
+        private byte next() throws IOException {
+            byte c = peek();
+            pos++;
+            return c;
+        }
+
+        private void expect(char c) throws IOException {
+            if (next() != c) {
+                throw error("expected " + c);
+            }
+        }
+
+        private IOException error(String msg) {
+            return new IOException(String.format("%s+%d: %s", where, pos, msg));
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package edu.cwru.jpdg.graph;
+
+/* Tim Henderson (tadh@case.edu)
+ *
+ * This file is part of jpdg a library to generate Program Dependence Graphs
+ * from JVM bytecode.
+ *
+ * Copyright (c) 2014, Tim Henderson, Case Western Reserve University
+ *   Cleveland, Ohio 44106
+ *   All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc.,
+ *   51 Franklin Street, Fifth Floor,
+ *   Boston, MA  02110-1301
+ *   USA
+ * or retrieve version 2.1 at their website:
+ *   http://www.gnu.org/licenses/lgpl-2.1.html
+ */
+
+import java.util.Arrays;
+
+/**
+ * A growable array of ints.
+ */
+public class IntArray {
+
+    int[] a;
+    int size = 0;
+
+    public IntArray() {
+        this(16);
+    }
+
+    public IntArray(int capacity) {
+        a = new int[Math.max(capacity, 1)];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int get(int i) {
+        if (i >= size) {
+            throw new IndexOutOfBoundsException(i + " >= " + size);
+        }
+        return a[i];
+    }
+
+    public void set(int i, int v) {
+        if (i >= size) {
+            throw new IndexOutOfBoundsException(i + " >= " + size);
+        }
+        a[i] = v;
+    }
+
+    public int add(int v) {
+        if (size == a.length) {
+            a = Arrays.copyOf(a, a.length*2);
+        }
+        a[size] = v;
+        return size++;
+    }
+
+    public int[] toArray() {
+        return Arrays.copyOf(a, size);
+    }
+
+    long bytes() {
+        return 16 + 4L*a.length;
+    }
+}
@@ -0,0 +1,134 @@
+package edu.cwru.jpdg.graph;
+
+/* Tim Henderson (tadh@case.edu)
+ *
+ * This file is part of jpdg a library to generate Program Dependence Graphs
+ * from JVM bytecode.
+ *
+ * Copyright (c) 2014, Tim Henderson, Case Western Reserve University
+ *   Cleveland, Ohio 44106
+ *   All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc.,
+ *   51 Franklin Street, Fifth Floor,
+ *   Boston, MA  02110-1301
+ *   USA
+ * or retrieve version 2.1 at their website:
+ *   http://www.gnu.org/licenses/lgpl-2.1.html
+ */
+
+/**
+ * An open addressing (linear probing) hash map from longs to non-negative
+ * ints, without boxing either. get returns -1 for a missing key. There is
+ * no remove.
+ */
+public class LongIntMap {
+
+    long[] keys;
+    int[] values;
+    boolean[] used;
+    int size = 0;
+
+    public LongIntMap() {
+        this(16);
+    }
+
+    public LongIntMap(int capacity) {
+        int n = 16;
+        while (n < capacity*2) {
+            n *= 2;
+        }
+        keys = new long[n];
+        values = new int[n];
+        used = new boolean[n];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    static int hash(long key) {
+        // the murmur3 finalizer, uids differ mostly in the high bits
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int)key;
+    }
+
+    private int slot(long key) {
+        int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        while (used[i] && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    public int get(long key) {
+        int i = slot(key);
+        return used[i] ? values[i] : -1;
+    }
+
+    public boolean containsKey(long key) {
+        return used[slot(key)];
+    }
+
+    /**
+     * Maps key to value (which must not be negative) and returns the value
+     * it had before, or -1.
+     */
+    public int put(long key, int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("negative value");
+        }
+        int i = slot(key);
+        if (used[i]) {
+            int old = values[i];
+            values[i] = value;
+            return old;
+        }
+        used[i] = true;
+        keys[i] = key;
+        values[i] = value;
+        size++;
+        if (size*2 > keys.length) {
+            grow();
+        }
+        return -1;
+    }
+
+    private void grow() {
+        long[] old_keys = keys;
+        int[] old_values = values;
+        boolean[] old_used = used;
+        keys = new long[old_keys.length*2];
+        values = new int[old_keys.length*2];
+        used = new boolean[old_keys.length*2];
+        for (int i = 0; i < old_keys.length; i++) {
+            if (old_used[i]) {
+                int j = slot(old_keys[i]);
+                used[j] = true;
+                keys[j] = old_keys[i];
+                values[j] = old_values[i];
+            }
+        }
+    }
+
+    long bytes() {
+        return 48 + 13L*keys.length;
+    }
+}
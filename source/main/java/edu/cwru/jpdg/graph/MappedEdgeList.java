@@ -0,0 +1,202 @@
+package edu.cwru.jpdg.graph;
+
+/* Tim Henderson (tadh@case.edu)
+ *
+ * This file is part of jpdg a library to generate Program Dependence Graphs
+ * from JVM bytecode.
+ *
+ * Copyright (c) 2014, Tim Henderson, Case Western Reserve University
+ *   Cleveland, Ohio 44106
+ *   All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc.,
+ *   51 Franklin Street, Fifth Floor,
+ *   Boston, MA  02110-1301
+ *   USA
+ * or retrieve version 2.1 at their website:
+ *   http://www.gnu.org/licenses/lgpl-2.1.html
+ */
+
+
+/**
+ * An EdgeList kept in memory mapped files (see Segments). The edges are
+ * packed (src, targ) longs appended to one file, without a hash to find
+ * duplicates: compact sorts the file in place, drops the duplicates and
+ * writes the row offsets (longs) to a second file. So the list is lazy,
+ * has and size are only exact after a compact.
+ */
+class MappedEdgeList extends EdgeList {
+
+    final Segments edges;
+    final Segments offsets;
+    long count = 0;
+    // the ranks of the node indices at the last compact
+    int[] rank = null;
+
+    MappedEdgeList(Segments edges, Segments offsets) {
+        this.edges = edges;
+        this.offsets = offsets;
+        this.lazy = true;
+    }
+
+    private long get(long k) {
+        return edges.getLong(8*k);
+    }
+
+    private void put(long k, long v) {
+        edges.putLong(8*k, v);
+    }
+
+    @Override
+    long size() {
+        return count;
+    }
+
+    @Override
+    int src(long k) {
+        return (int)(get(k) >>> 32);
+    }
+
+    @Override
+    int targ(long k) {
+        return (int)get(k);
+    }
+
+    @Override
+    boolean add(int a, int b) {
+        put(count++, key(a, b));
+        return true;
+    }
+
+    @Override
+    boolean has(int a, int b) {
+        if (rank == null || a >= csr_nodes || b >= rank.length) {
+            return false;
+        }
+        long lo = start(a);
+        long hi = end(a) - 1;
+        int r = rank[b];
+        while (lo <= hi) {
+            long mid = (lo + hi) >>> 1;
+            int c = rank[targ(mid)];
+            if (c < r) {
+                lo = mid + 1;
+            } else if (c > r) {
+                hi = mid - 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    void compact(int n, int[] order, int[] rank) {
+        if (csr_edges == count && csr_nodes == n) {
+            return;
+        }
+        final long HIGH = 0xffffffff00000000L;
+        for (long k = 0; k < count; k++) {
+            long e = get(k);
+            put(k, (e & HIGH) | rank[(int)e]);
+        }
+        sort(0, count);
+        long w = 0;
+        long prev = -1;
+        for (long k = 0; k < count; k++) {
+            long e = get(k);
+            if (e != prev) {
+                put(w++, (e & HIGH) | order[(int)e]);
+                prev = e;
+            }
+        }
+        count = w;
+        for (long i = 0; i <= n; i++) {
+            offsets.putLong(8*i, 0);
+        }
+        for (long k = 0; k < count; k++) {
+            long i = src(k) + 1;
+            offsets.putLong(8*i, offsets.getLong(8*i) + 1);
+        }
+        for (long i = 0; i < n; i++) {
+            offsets.putLong(8*(i+1), offsets.getLong(8*(i+1)) + offsets.getLong(8*i));
+        }
+        this.rank = rank;
+        this.csr_edges = count;
+        this.csr_nodes = n;
+    }
+
+    // an in place quick sort of the edges in [lo, hi)
+    private void sort(long lo, long hi) {
+        while (hi - lo > 16) {
+            long a = get(lo);
+            long b = get(lo + (hi - lo)/2);
+            long c = get(hi - 1);
+            long pivot = Math.max(Math.min(a, b), Math.min(Math.max(a, b), c));
+            long i = lo;
+            long j = hi - 1;
+            while (i <= j) {
+                while (get(i) < pivot) {
+                    i++;
+                }
+                while (get(j) > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    long t = get(i);
+                    put(i++, get(j));
+                    put(j--, t);
+                }
+            }
+            // recurse into the smaller half, loop on the bigger one
+            if (j - lo < hi - i) {
+                sort(lo, j + 1);
+                lo = i;
+            } else {
+                sort(i, hi);
+                hi = j + 1;
+            }
+        }
+        for (long i = lo + 1; i < hi; i++) {
+            long e = get(i);
+            long j = i - 1;
+            while (j >= lo && get(j) > e) {
+                put(j + 1, get(j));
+                j--;
+            }
+            put(j + 1, e);
+        }
+    }
+
+    @Override
+    long start(int i) {
+        return offsets.getLong(8L*i);
+    }
+
+    @Override
+    long end(int i) {
+        return offsets.getLong(8L*(i+1));
+    }
+
+    @Override
+    int target(long k) {
+        return targ(k);
+    }
+
+    @Override
+    long bytes() {
+        return 0;
+    }
+}
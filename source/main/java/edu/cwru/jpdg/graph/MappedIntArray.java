@@ -0,0 +1,81 @@
+package edu.cwru.jpdg.graph;
+
+/* Tim Henderson (tadh@case.edu)
+ *
+ * This file is part of jpdg a library to generate Program Dependence Graphs
+ * from JVM bytecode.
+ *
+ * Copyright (c) 2014, Tim Henderson, Case Western Reserve University
+ *   Cleveland, Ohio 44106
+ *   All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc.,
+ *   51 Franklin Street, Fifth Floor,
+ *   Boston, MA  02110-1301
+ *   USA
+ * or retrieve version 2.1 at their website:
+ *   http://www.gnu.org/licenses/lgpl-2.1.html
+ */
+
+
+/**
+ * An IntArray kept in a memory mapped file (see Segments) instead of on
+ * the heap.
+ */
+class MappedIntArray extends IntArray {
+
+    final Segments s;
+
+    MappedIntArray(Segments s) {
+        super(1);
+        this.s = s;
+    }
+
+    @Override
+    public int get(int i) {
+        if (i >= size) {
+            throw new IndexOutOfBoundsException(i + " >= " + size);
+        }
+        return s.getInt(4L*i);
+    }
+
+    @Override
+    public void set(int i, int v) {
+        if (i >= size) {
+            throw new IndexOutOfBoundsException(i + " >= " + size);
+        }
+        s.putInt(4L*i, v);
+    }
+
+    @Override
+    public int add(int v) {
+        s.putInt(4L*size, v);
+        return size++;
+    }
+
+    @Override
+    public int[] toArray() {
+        int[] a = new int[size];
+        for (int i = 0; i < size; i++) {
+            a[i] = s.getInt(4L*i);
+        }
+        return a;
+    }
+
+    @Override
+    long bytes() {
+        return 0;
+    }
+}
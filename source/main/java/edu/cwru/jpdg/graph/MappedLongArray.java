@@ -0,0 +1,73 @@
+package edu.cwru.jpdg.graph;
+
+/* Tim Henderson (tadh@case.edu)
+ *
+ * This file is part of jpdg a library to generate Program Dependence Graphs
+ * from JVM bytecode.
+ *
+ * Copyright (c) 2014, Tim Henderson, Case Western Reserve University
+ *   Cleveland, Ohio 44106
+ *   All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc.,
+ *   51 Franklin Street, Fifth Floor,
+ *   Boston, MA  02110-1301
+ *   USA
+ * or retrieve version 2.1 at their website:
+ *   http://www.gnu.org/licenses/lgpl-2.1.html
+ */
+
+
+/**
+ * A LongArray kept in a memory mapped file (see Segments) instead of on
+ * the heap.
+ */
+class MappedLongArray extends LongArray {
+
+    final Segments s;
+
+    MappedLongArray(Segments s) {
+        super(1);
+        this.s = s;
+    }
+
+    @Override
+    public long get(int i) {
+        if (i >= size) {
+            throw new IndexOutOfBoundsException(i + " >= " + size);
+        }
+        return s.getLong(8L*i);
+    }
+
+    @Override
+    public int add(long v) {
+        s.putLong(8L*size, v);
+        return size++;
+    }
+
+    @Override
+    public long[] toArray() {
+        long[] a = new long[size];
+        for (int i = 0; i < size; i++) {
+            a[i] = s.getLong(8L*i);
+        }
+        return a;
+    }
+
+    @Override
+    long bytes() {
+        return 0;
+    }
+}
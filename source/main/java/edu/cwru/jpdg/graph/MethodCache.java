@@ -0,0 +1,353 @@
+package edu.cwru.jpdg.graph;
+
+/* Tim Henderson (tadh@case.edu)
+ *
+ * This file is part of jpdg a library to generate Program Dependence Graphs
+ * from JVM bytecode.
+ *
+ * Copyright (c) 2014, Tim Henderson, Case Western Reserve University
+ *   Cleveland, Ohio 44106
+ *   All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc.,
+ *   51 Franklin Street, Fifth Floor,
+ *   Boston, MA  02110-1301
+ *   USA
+ * or retrieve version 2.1 at their website:
+ *   http://www.gnu.org/licenses/lgpl-2.1.html
+ */
+
+
+
+import java.util.*;
+import java.util.jar.JarFile;
+import java.util.zip.ZipEntry;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * An on disk cache of the pDGs of classes, so a run over a tree in which
+ * few classes changed only builds those. A class is keyed by the SHA-256 of
+ * VERSION, the label type, the bytes of its class file and the uid range
+ * (see Graph.reserve) of each of its methods. The shards of its methods are
+ * kept in DIR/ab/KEY.veg (Graph.WriteRecords) without their call edges,
+ * which go to DIR/ab/KEY.calls naming the entry they call by its label.
+ * Loading a class reads its records into the graph and then stitches the
+ * calls back on through method_entries, so calls into methods which have
+ * gone away are dropped and the others find the entry of this run.
+ *
+ * DIR/ab/KEY.lines keeps the line of each method's entry (see keep_lines),
+ * which is all the entries need of the bodies. With it a run whose classes
+ * all hit never has soot build a body: JPDG.runSoot skips soot's packs
+ * when there is a cache and PDG_Builder.tag_lines only retrieves the
+ * bodies of the classes which miss. Those bodies are built in another
+ * order than the packs build them, and soot names the locals of methods
+ * with catch handlers, and so places their nodes, by how the JVM hashed
+ * its objects so far: their pDGs may differ in such details from a run
+ * without the cache, as they already do between JVMs.
+ *
+ * Bump VERSION whenever what pDG_Builder builds for a method changes.
+ */
+public class MethodCache {
+
+    public static final int VERSION = 1;
+    static final Charset UTF8 = Charset.forName("UTF-8");
+    static final Set<EdgeKind> RECORDED = EnumSet.complementOf(EnumSet.of(EdgeKind.CALL));
+
+    final File dir;
+    final Graph g;
+    final String label_type;
+    final List<File> class_dirs = new ArrayList<File>();
+    final Map<File,JarFile> jars = new HashMap<File,JarFile>();
+    // the keys of the classes which missed, by class name
+    final Map<String,String> keys = new HashMap<String,String>();
+    // the entry lines of the classes which missed, see keep_lines
+    final Map<String,Map<String,Integer>> lines = new HashMap<String,Map<String,Integer>>();
+    // the class whose shards are being collected
+    String current = null;
+    List<Graph> shards = new ArrayList<Graph>();
+    int hits = 0;
+    int misses = 0;
+    int stored = 0;
+
+    /**
+     * class_dirs are where the class files are, directories or jars (the
+     * soot process dirs).
+     */
+    public MethodCache(File dir, Graph g, String label_type, List<String> class_dirs) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("could not create " + dir);
+        }
+        this.dir = dir;
+        this.g = g;
+        this.label_type = label_type;
+        for (String d : class_dirs) {
+            this.class_dirs.add(new File(d));
+        }
+    }
+
+    /**
+     * Reads the cached pDGs of class_name into the graph, if there are any
+     * for its current class file. method_names are the names its methods
+     * have their uid ranges reserved under. Otherwise returns false and
+     * the shards of the class should be given to add once built.
+     */
+    public boolean load(String class_name, List<String> method_names, Map<String,Long> method_entries) throws IOException {
+        String key = key(class_name, method_names);
+        if (key == null) {
+            misses++;
+            return false;
+        }
+        File records = file(key, ".veg");
+        File calls = file(key, ".calls");
+        if (!records.exists() || !calls.exists()) {
+            keys.put(class_name, key);
+            misses++;
+            return false;
+        }
+        GraphReader.read(Files.readAllBytes(records.toPath()), records.toString(), g);
+        JsonParser parser = new JsonParser();
+        for (String line : Files.readAllLines(calls.toPath(), UTF8)) {
+            JsonObject o = parser.parse(line.substring(line.indexOf('\t') + 1)).getAsJsonObject();
+            Long targ = method_entries.get(o.get("targ").getAsString());
+            if (targ != null) {
+                g.addEdge(o.get("src").getAsLong(), targ, EdgeKind.CALL, o.get("label").getAsString());
+            }
+        }
+        hits++;
+        return true;
+    }
+
+    /**
+     * The line of the entry of each of the methods of class_name, by
+     * method name, if the cache has the pDGs of its current class file and
+     * their lines. Otherwise null, and load will miss too.
+     */
+    public Map<String,Integer> lines(String class_name, List<String> method_names) throws IOException {
+        String key = key(class_name, method_names);
+        if (key == null) {
+            return null;
+        }
+        File lines_file = file(key, ".lines");
+        if (!lines_file.exists() || !file(key, ".veg").exists()) {
+            return null;
+        }
+        Map<String,Integer> m = new HashMap<String,Integer>();
+        for (String line : Files.readAllLines(lines_file.toPath(), UTF8)) {
+            int tab = line.lastIndexOf('\t');
+            m.put(line.substring(0, tab), Integer.parseInt(line.substring(tab + 1)));
+        }
+        return m;
+    }
+
+    /**
+     * Keeps the entry lines of the methods of class_name, which missed, to
+     * store them with its pDGs.
+     */
+    public void keep_lines(String class_name, Map<String,Integer> method_lines) {
+        lines.put(class_name, method_lines);
+    }
+
+    /**
+     * Collects the shard of a method of class_name. Shards must come grouped
+     * by class, a class is stored once the next one starts.
+     */
+    public void add(String class_name, Graph shard) throws IOException {
+        start(class_name);
+        shards.add(shard);
+    }
+
+    /**
+     * Notes that class_name is being built, which stores the class before
+     * it. Classes whose methods all failed get stored (empty) this way.
+     */
+    public void start(String class_name) throws IOException {
+        if (class_name.equals(current)) {
+            return;
+        }
+        finish();
+        current = class_name;
+    }
+
+    /**
+     * Stores the last class.
+     */
+    public void close() throws IOException {
+        try {
+            finish();
+            current = null;
+        } finally {
+            for (JarFile jar : jars.values()) {
+                jar.close();
+            }
+            jars.clear();
+        }
+        System.out.println(String.format("CACHE %d hits %d misses %d stored", hits, misses, stored));
+    }
+
+    private void finish() throws IOException {
+        if (current == null) {
+            return;
+        }
+        String key = keys.remove(current);
+        Map<String,Integer> method_lines = lines.remove(current);
+        List<Graph> done = shards;
+        shards = new ArrayList<Graph>();
+        if (key == null) {
+            return;
+        }
+        File records = file(key, ".veg");
+        File calls = file(key, ".calls");
+        records.getParentFile().mkdirs();
+        // the calls and lines go first: the records are what make the class
+        // count as cached, and each file only appears once it is complete
+        File tmp;
+        OutputStream out;
+        if (method_lines != null) {
+            File lines_file = file(key, ".lines");
+            tmp = new File(lines_file + ".tmp");
+            out = new FileOutputStream(tmp);
+            try {
+                for (Map.Entry<String,Integer> e : method_lines.entrySet()) {
+                    out.write((e.getKey() + "\t" + e.getValue() + "\n").getBytes(UTF8));
+                }
+            } finally {
+                out.close();
+            }
+            rename(tmp, lines_file);
+        }
+        tmp = new File(calls + ".tmp");
+        out = new FileOutputStream(tmp);
+        try {
+            for (Graph shard : done) {
+                write_calls(shard, out);
+            }
+        } finally {
+            out.close();
+        }
+        rename(tmp, calls);
+        tmp = new File(records + ".tmp");
+        out = new FileOutputStream(tmp);
+        try {
+            VegWriter veg = new VegWriter(Channels.newChannel(out), VegWriter.BUFFER_SIZE);
+            for (Graph shard : done) {
+                g.WriteRecords(shard, veg, RECORDED);
+            }
+            veg.flush();
+        } finally {
+            out.close();
+        }
+        rename(tmp, records);
+        stored++;
+    }
+
+    private void write_calls(Graph shard, OutputStream out) throws IOException {
+        for (int t = 0; t < shard.edges.size(); t++) {
+            if (shard.type_kinds.get(t) != EdgeKind.CALL) {
+                continue;
+            }
+            EdgeList E = shard.edges.get(t);
+            byte[] label = VegWriter.quote(shard.edge_labels.get(shard.type_labels.get(t)));
+            for (long k = 0; k < E.size(); k++) {
+                long src = shard.uids.get(E.src(k));
+                long targ = shard.uids.get(E.targ(k));
+                out.write(String.format("call\t{\"src\":%d,\"targ\":", src).getBytes(UTF8));
+                out.write(VegWriter.quote(g.label(targ)));
+                out.write(",\"label\":".getBytes(UTF8));
+                out.write(label);
+                out.write("}\n".getBytes(UTF8));
+            }
+        }
+    }
+
+    private static void rename(File from, File to) throws IOException {
+        if (!from.renameTo(to)) {
+            throw new IOException("could not rename " + from);
+        }
+    }
+
+    private File file(String key, String ext) {
+        return new File(new File(dir, key.substring(0, 2)), key + ext);
+    }
+
+    /**
+     * The key of class_name, or null when its class file can not be found.
+     */
+    String key(String class_name, List<String> method_names) throws IOException {
+        byte[] bytes = class_file(class_name);
+        if (bytes == null) {
+            return null;
+        }
+        MessageDigest sha;
+        try {
+            sha = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        sha.update(String.format("jpdg %d\n%s\n", VERSION, label_type).getBytes(UTF8));
+        sha.update(bytes);
+        for (String name : method_names) {
+            sha.update(String.format("\n%s\t%d", name, g.range(name)).getBytes(UTF8));
+        }
+        return PartitionedOutput.hex(sha.digest());
+    }
+
+    // the bytes of the class file of class_name, from the first class dir
+    // which has it
+    byte[] class_file(String class_name) throws IOException {
+        String path = class_name.replace('.', '/') + ".class";
+        for (File d : class_dirs) {
+            if (d.isDirectory()) {
+                File f = new File(d, path);
+                if (f.isFile()) {
+                    return Files.readAllBytes(f.toPath());
+                }
+            } else if (d.isFile()) {
+                JarFile jar = jars.get(d);
+                if (jar == null) {
+                    jar = new JarFile(d);
+                    jars.put(d, jar);
+                }
+                ZipEntry e = jar.getEntry(path);
+                if (e != null) {
+                    InputStream in = jar.getInputStream(e);
+                    try {
+                        ByteArrayOutputStream b = new ByteArrayOutputStream();
+                        byte[] buf = new byte[1 << 14];
+                        for (int n; (n = in.read(buf)) > 0; ) {
+                            b.write(buf, 0, n);
+                        }
+                        return b.toByteArray();
+                    } finally {
+                        in.close();
+                    }
+                }
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,297 @@
+package edu.cwru.jpdg.graph;
+
+/* Tim Henderson (tadh@case.edu)
+ *
+ * This file is part of jpdg a library to generate Program Dependence Graphs
+ * from JVM bytecode.
+ *
+ * Copyright (c) 2014, Tim Henderson, Case Western Reserve University
+ *   Cleveland, Ohio 44106
+ *   All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc.,
+ *   51 Franklin Street, Fifth Floor,
+ *   Boston, MA  02110-1301
+ *   USA
+ * or retrieve version 2.1 at their website:
+ *   http://www.gnu.org/licenses/lgpl-2.1.html
+ */
+
+
+import java.util.*;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * A sidecar index for veg files written with Graph.writeIndex: where the
+ * records of each method are. The file is
+ *
+ *     "JPDGMIDX" version:u32 count:u32
+ *     count entries of key offset:u64 key length:u32 0:u32 start:u64 end:u64
+ *     keys
+ *
+ * (big endian) with the entries sorted by key and then start, the key of
+ * an entry being its package, class and method name joined by NUL bytes
+ * in UTF-8. A method may have more than one entry, eg. a streamed run
+ * writes the method entry vertex apart from the rest of the method.
+ *
+ * open maps the index and find binary searches it in place, so pulling a
+ * method out of the output costs a few page reads whatever its size.
+ */
+public class MethodIndex {
+
+    public static final byte[] MAGIC = "JPDGMIDX".getBytes(Charset.forName("UTF-8"));
+    public static final int VERSION = 1;
+    static final int HEADER = 16;
+    static final int ENTRY = 32;
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    final ByteBuffer b;
+    final int count;
+    final long keys;
+
+    private MethodIndex(ByteBuffer b) throws IOException {
+        this.b = b;
+        byte[] magic = new byte[MAGIC.length];
+        b.get(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("not a method index");
+        }
+        int version = b.getInt();
+        if (version != VERSION) {
+            throw new IOException("unsupported method index version " + version);
+        }
+        this.count = b.getInt();
+        this.keys = HEADER + (long)count*ENTRY;
+    }
+
+    public static MethodIndex open(File f) throws IOException {
+        RandomAccessFile r = new RandomAccessFile(f, "r");
+        try {
+            return new MethodIndex(r.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, r.length()));
+        } finally {
+            r.close();
+        }
+    }
+
+    /**
+     * Where a method's records are, [start, end) in the veg file.
+     */
+    public static class Entry {
+        public final String package_name;
+        public final String class_name;
+        public final String method_name;
+        public final long start;
+        public final long end;
+
+        Entry(String package_name, String class_name, String method_name, long start, long end) {
+            this.package_name = package_name;
+            this.class_name = class_name;
+            this.method_name = method_name;
+            this.start = start;
+            this.end = end;
+        }
+
+        public String toString() {
+            return String.format("%s\t%s\t%s\t%d\t%d", package_name, class_name, method_name, start, end);
+        }
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public List<Entry> find(String package_name, String class_name, String method_name) {
+        return find(key(package_name, class_name, method_name), false);
+    }
+
+    // every method of the class
+    public List<Entry> find(String package_name, String class_name) {
+        return find(nz(package_name) + "\0" + nz(class_name) + "\0", true);
+    }
+
+    // every method of the package
+    public List<Entry> find(String package_name) {
+        return find(nz(package_name) + "\0", true);
+    }
+
+    private List<Entry> find(String key, boolean prefix) {
+        byte[] k = key.getBytes(UTF8);
+        int lo = 0;
+        int hi = count;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compare(mid, k, false) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        List<Entry> found = new ArrayList<Entry>();
+        for (int i = lo; i < count && compare(i, k, prefix) == 0; i++) {
+            found.add(entry(i));
+        }
+        return found;
+    }
+
+    static String nz(String s) {
+        return s == null ? "" : s;
+    }
+
+    static String key(String package_name, String class_name, String method_name) {
+        return nz(package_name) + "\0" + nz(class_name) + "\0" + nz(method_name);
+    }
+
+    // the key of entry i against k, only its first k.length bytes if prefix
+    private int compare(int i, byte[] k, boolean prefix) {
+        int at = HEADER + i*ENTRY;
+        long off = keys + b.getLong(at);
+        int len = b.getInt(at + 8);
+        if (prefix) {
+            len = Math.min(len, k.length);
+        }
+        int n = Math.min(len, k.length);
+        for (int j = 0; j < n; j++) {
+            int c = (b.get((int)(off + j)) & 0xff) - (k[j] & 0xff);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return len - k.length;
+    }
+
+    private Entry entry(int i) {
+        int at = HEADER + i*ENTRY;
+        long off = keys + b.getLong(at);
+        byte[] k = new byte[b.getInt(at + 8)];
+        for (int j = 0; j < k.length; j++) {
+            k[j] = b.get((int)(off + j));
+        }
+        String[] parts = new String(k, UTF8).split("\0", -1);
+        return new Entry(parts[0], parts[1], parts[2], b.getLong(at + 16), b.getLong(at + 24));
+    }
+
+    /**
+     * The veg lines of e. Edges to vertices of other methods (eg. calls)
+     * come along without their targets.
+     */
+    public static byte[] read(File veg, Entry e) throws IOException {
+        RandomAccessFile r = new RandomAccessFile(veg, "r");
+        try {
+            byte[] lines = new byte[(int)(e.end - e.start)];
+            r.seek(e.start);
+            r.readFully(lines);
+            return lines;
+        } finally {
+            r.close();
+        }
+    }
+
+    /**
+     * Collects the entries while a graph is written, see Graph.writeIndex.
+     */
+    public static class Builder {
+        final List<byte[]> keys = new ArrayList<byte[]>();
+        final LongArray starts = new LongArray();
+        final LongArray ends = new LongArray();
+
+        public void add(String package_name, String class_name, String method_name, long start, long end) {
+            keys.add(key(package_name, class_name, method_name).getBytes(UTF8));
+            starts.add(start);
+            ends.add(end);
+        }
+
+        public int size() {
+            return keys.size();
+        }
+
+        public void write(File f) throws IOException {
+            Integer[] order = new Integer[keys.size()];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                public int compare(Integer a, Integer b) {
+                    byte[] x = keys.get(a);
+                    byte[] y = keys.get(b);
+                    int n = Math.min(x.length, y.length);
+                    for (int j = 0; j < n; j++) {
+                        int c = (x[j] & 0xff) - (y[j] & 0xff);
+                        if (c != 0) {
+                            return c;
+                        }
+                    }
+                    if (x.length != y.length) {
+                        return x.length - y.length;
+                    }
+                    return Long.compare(starts.get(a), starts.get(b));
+                }
+            });
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), 1 << 16));
+            try {
+                out.write(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(order.length);
+                long off = 0;
+                for (int i : order) {
+                    out.writeLong(off);
+                    out.writeInt(keys.get(i).length);
+                    out.writeInt(0);
+                    out.writeLong(starts.get(i));
+                    out.writeLong(ends.get(i));
+                    off += keys.get(i).length;
+                }
+                for (int i : order) {
+                    out.write(keys.get(i));
+                }
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Prints the records of a method, a class or a package:
+     *
+     *     MethodIndex <veg> <index> <package> [<class> [<method>]]
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3 || args.length > 5) {
+            System.err.println("usage: MethodIndex <veg> <index> <package> [<class> [<method>]]");
+            System.exit(1);
+        }
+        File veg = new File(args[0]);
+        MethodIndex index = open(new File(args[1]));
+        List<Entry> found;
+        if (args.length == 5) {
+            found = index.find(args[2], args[3], args[4]);
+        } else if (args.length == 4) {
+            found = index.find(args[2], args[3]);
+        } else {
+            found = index.find(args[2]);
+        }
+        for (Entry e : found) {
+            System.out.write(read(veg, e));
+        }
+        System.out.flush();
+    }
+}
@@ -35,7 +35,7 @@ import com.google.gson.Gson;
 
 public class Node {
 
-    public final int id;
+    public final long id;
     public final int lnum;
     public final String label;
     public final String extra;
@@ -49,7 +49,7 @@ public class Node {
     public final int end_line;
     public final int end_column;
 
-    public Node(int id, int lnum, String label, String extra,
+    public Node(long id, int lnum, String label, String extra,
                 String package_name, String class_name, String source_file,
                 String method_name, String type,
                 int start_line, int start_column, int end_line, int end_column) {
@@ -0,0 +1,267 @@
+package edu.cwru.jpdg.graph;
+
+/* Tim Henderson (tadh@case.edu)
+ *
+ * This file is part of jpdg a library to generate Program Dependence Graphs
+ * from JVM bytecode.
+ *
+ * Copyright (c) 2014, Tim Henderson, Case Western Reserve University
+ *   Cleveland, Ohio 44106
+ *   All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc.,
+ *   51 Franklin Street, Fifth Floor,
+ *   Boston, MA  02110-1301
+ *   USA
+ * or retrieve version 2.1 at their website:
+ *   http://www.gnu.org/licenses/lgpl-2.1.html
+ */
+
+
+import java.util.*;
+
+/**
+ * The attributes of the nodes of a Graph, stored by column. Each string
+ * attribute is an id into a table of the distinct strings (the package,
+ * class, file and method of a node repeat for every block of a method) and
+ * the positions are kept in int arrays, so a node costs a few dozen bytes
+ * rather than an object and its map entries. Rows line up with the node
+ * indices of the Graph. The label is the label number (in the Graph) the
+ * node was added with.
+ *
+ * Nodes with the same attributes (other than extra) are found through a
+ * 64-bit fingerprint of the row. Rows with colliding fingerprints are
+ * compared and probed past, like the uid ranges of Graph.
+ */
+class Nodes {
+
+    List<String> strings = new ArrayList<String>();
+    HashMap<String,Integer> rstrings = new HashMap<String,Integer>();
+    List<byte[]> quoted = new ArrayList<byte[]>();
+
+    IntArray label;
+    IntArray extra;
+    IntArray package_name;
+    IntArray class_name;
+    IntArray source_file;
+    IntArray method_name;
+    IntArray type;
+    IntArray start_line;
+    IntArray start_column;
+    IntArray end_line;
+    IntArray end_column;
+
+    // fingerprint -> row
+    LongIntMap fingerprints = new LongIntMap();
+
+    Nodes(Storage storage) {
+        label = storage.ints("label");
+        extra = storage.ints("extra");
+        package_name = storage.ints("package_name");
+        class_name = storage.ints("class_name");
+        source_file = storage.ints("source_file");
+        method_name = storage.ints("method_name");
+        type = storage.ints("type");
+        start_line = storage.ints("start_line");
+        start_column = storage.ints("start_column");
+        end_line = storage.ints("end_line");
+        end_column = storage.ints("end_column");
+    }
+
+    int size() {
+        return label.size();
+    }
+
+    int string(String s) {
+        Integer id = rstrings.get(s);
+        if (id == null) {
+            id = strings.size();
+            strings.add(s);
+            rstrings.put(s, id);
+        }
+        return id;
+    }
+
+    static long mix(long h, int v) {
+        h ^= v;
+        h *= 0x100000001b3L;
+        return h ^ (h >>> 29);
+    }
+
+    static long fingerprint(int[] row) {
+        long h = 0xcbf29ce484222325L;
+        // skips extra, which does not take part in node equality
+        for (int i = 0; i < row.length; i++) {
+            if (i != 1) {
+                h = mix(h, row[i]);
+            }
+        }
+        return h;
+    }
+
+    int[] row(int lnum, String extra, String package_name, String class_name, String source_file, String method_name, String type, int start_l, int start_c, int end_l, int end_c) {
+        return new int[]{
+            lnum, string(extra), string(package_name), string(class_name),
+            string(source_file), string(method_name), string(type),
+            start_l, start_c, end_l, end_c,
+        };
+    }
+
+    boolean matches(int i, int[] row) {
+        return label.get(i) == row[0] &&
+               package_name.get(i) == row[2] &&
+               class_name.get(i) == row[3] &&
+               source_file.get(i) == row[4] &&
+               method_name.get(i) == row[5] &&
+               type.get(i) == row[6] &&
+               start_line.get(i) == row[7] &&
+               start_column.get(i) == row[8] &&
+               end_line.get(i) == row[9] &&
+               end_column.get(i) == row[10];
+    }
+
+    /**
+     * The first row equal to the given one, -1 if there is none.
+     */
+    int find(int[] row) {
+        long fp = fingerprint(row);
+        int i;
+        while ((i = fingerprints.get(fp)) >= 0) {
+            if (matches(i, row)) {
+                return i;
+            }
+            fp++;
+        }
+        return -1;
+    }
+
+    /**
+     * Appends a row and returns its index. Only the first of several equal
+     * rows can be found.
+     */
+    int add(int[] row) {
+        int i = append(row);
+        if (find(row) < 0) {
+            long fp = fingerprint(row);
+            while (fingerprints.containsKey(fp)) {
+                fp++;
+            }
+            fingerprints.put(fp, i);
+        }
+        return i;
+    }
+
+    /**
+     * Fills in a row appended by add_empty.
+     */
+    void set(int i, int[] row) {
+        label.set(i, row[0]);
+        extra.set(i, row[1]);
+        package_name.set(i, row[2]);
+        class_name.set(i, row[3]);
+        source_file.set(i, row[4]);
+        method_name.set(i, row[5]);
+        type.set(i, row[6]);
+        start_line.set(i, row[7]);
+        start_column.set(i, row[8]);
+        end_line.set(i, row[9]);
+        end_column.set(i, row[10]);
+        if (find(row) < 0) {
+            long fp = fingerprint(row);
+            while (fingerprints.containsKey(fp)) {
+                fp++;
+            }
+            fingerprints.put(fp, i);
+        }
+    }
+
+    /**
+     * Appends a row for a node which is not (yet) in the graph.
+     */
+    int add_empty() {
+        return append(new int[]{-1, -1, -1, -1, -1, -1, -1, 0, 0, 0, 0});
+    }
+
+    private int append(int[] row) {
+        label.add(row[0]);
+        extra.add(row[1]);
+        package_name.add(row[2]);
+        class_name.add(row[3]);
+        source_file.add(row[4]);
+        method_name.add(row[5]);
+        type.add(row[6]);
+        start_line.add(row[7]);
+        start_column.add(row[8]);
+        end_line.add(row[9]);
+        end_column.add(row[10]);
+        return label.size() - 1;
+    }
+
+    String package_name(int i) {
+        return strings.get(package_name.get(i));
+    }
+
+    String class_name(int i) {
+        return strings.get(class_name.get(i));
+    }
+
+    String method_name(int i) {
+        return strings.get(method_name.get(i));
+    }
+
+    Node get(int i, long uid, List<String> labels) {
+        return new Node(
+            uid, label.get(i), labels.get(label.get(i)),
+            strings.get(extra.get(i)),
+            strings.get(package_name.get(i)),
+            strings.get(class_name.get(i)),
+            strings.get(source_file.get(i)),
+            strings.get(method_name.get(i)),
+            strings.get(type.get(i)),
+            start_line.get(i), start_column.get(i),
+            end_line.get(i), end_column.get(i));
+    }
+
+    void write(VegWriter w, int i, long uid, byte[] label) throws java.io.IOException {
+        w.vertex(
+            uid, label,
+            Graph.quoted(quoted, strings, extra.get(i)),
+            Graph.quoted(quoted, strings, package_name.get(i)),
+            Graph.quoted(quoted, strings, class_name.get(i)),
+            Graph.quoted(quoted, strings, source_file.get(i)),
+            Graph.quoted(quoted, strings, method_name.get(i)),
+            Graph.quoted(quoted, strings, type.get(i)),
+            start_line.get(i), start_column.get(i),
+            end_line.get(i), end_column.get(i));
+    }
+
+    // the normalized format, see VegWriter
+    void write(VegWriter w, int i, long uid, int current) throws java.io.IOException {
+        w.vertex(
+            uid, label.get(i), current,
+            Graph.quoted(quoted, strings, extra.get(i)),
+            Graph.quoted(quoted, strings, package_name.get(i)),
+            Graph.quoted(quoted, strings, class_name.get(i)),
+            Graph.quoted(quoted, strings, source_file.get(i)),
+            Graph.quoted(quoted, strings, method_name.get(i)),
+            Graph.quoted(quoted, strings, type.get(i)),
+            start_line.get(i), start_column.get(i),
+            end_line.get(i), end_column.get(i));
+    }
+
+    long bytes() {
+        return 11*label.bytes() + fingerprints.bytes();
+    }
+}
@@ -0,0 +1,159 @@
+package edu.cwru.jpdg.graph;
+
+/* Tim Henderson (tadh@case.edu)
+ *
+ * This file is part of jpdg a library to generate Program Dependence Graphs
+ * from JVM bytecode.
+ *
+ * Copyright (c) 2014, Tim Henderson, Case Western Reserve University
+ *   Cleveland, Ohio 44106
+ *   All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc.,
+ *   51 Franklin Street, Fifth Floor,
+ *   Boston, MA  02110-1301
+ *   USA
+ * or retrieve version 2.1 at their website:
+ *   http://www.gnu.org/licenses/lgpl-2.1.html
+ */
+
+
+import java.util.*;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * Turns the normalized format (see Graph.writeNormalized) back into the
+ * usual one, line by line: the labels are put back into the vertices and
+ * the edges get their label and the labels of their ends. The output is
+ * what Write would have written without writeNormalized.
+ *
+ *     Normalized <in> <out>
+ */
+public class Normalized {
+
+    public static void expand(InputStream fin, OutputStream fout) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(fin, Charset.forName("UTF-8")), 1 << 16);
+        VegWriter w = new VegWriter(fout);
+        JsonParser parser = new JsonParser();
+        List<byte[]> labels = new ArrayList<byte[]>();
+        List<byte[]> edge_labels = new ArrayList<byte[]>();
+        // the quoted node attribute strings
+        HashMap<String,byte[]> quoted = new HashMap<String,byte[]>();
+        // uid -> the label number its edges carry
+        LongIntMap edge_lnums = new LongIntMap();
+        String line;
+        while ((line = in.readLine()) != null) {
+            int tab = line.indexOf('\t');
+            if (tab < 0) {
+                continue;
+            }
+            String line_type = line.substring(0, tab);
+            JsonElement e = parser.parse(line.substring(tab+1));
+            if (line_type.equals("labels")) {
+                table(e.getAsJsonArray(), labels);
+            } else if (line_type.equals("edge_labels")) {
+                table(e.getAsJsonArray(), edge_labels);
+            } else if (line_type.equals("vertex")) {
+                JsonObject o = e.getAsJsonObject();
+                long id = o.get("id").getAsLong();
+                int lnum = o.get("lnum").getAsInt();
+                edge_lnums.put(id, o.has("current") ? o.get("current").getAsInt() : lnum);
+                w.vertex(
+                    id, label(labels, lnum),
+                    string(quoted, o, "extra"),
+                    string(quoted, o, "package_name"),
+                    string(quoted, o, "class_name"),
+                    string(quoted, o, "source_file"),
+                    string(quoted, o, "method_name"),
+                    string(quoted, o, "type"),
+                    o.get("start_line").getAsInt(),
+                    o.get("start_column").getAsInt(),
+                    o.get("end_line").getAsInt(),
+                    o.get("end_column").getAsInt());
+            } else if (line_type.equals("edge")) {
+                JsonObject o = e.getAsJsonObject();
+                long src = o.get("src").getAsLong();
+                long targ = o.get("targ").getAsLong();
+                int src_lnum = edge_lnums.get(src);
+                int targ_lnum = edge_lnums.get(targ);
+                if (src_lnum < 0 || targ_lnum < 0) {
+                    throw new IOException(String.format("edge %d -> %d comes before its vertices", src, targ));
+                }
+                w.edge(
+                    src, targ, EdgeKind.parse(o.get("kind").getAsString()),
+                    label(edge_labels, o.get("lnum").getAsInt()),
+                    label(labels, src_lnum), label(labels, targ_lnum));
+            } else {
+                throw new IOException("unexpected line type " + line_type);
+            }
+        }
+        w.flush();
+    }
+
+    private static void table(JsonArray a, List<byte[]> table) {
+        for (JsonElement e : a) {
+            table.add(VegWriter.quote(e.getAsString()));
+        }
+    }
+
+    private static byte[] label(List<byte[]> table, int lnum) throws IOException {
+        if (lnum < 0 || lnum >= table.size()) {
+            throw new IOException("unknown label number " + lnum);
+        }
+        return table.get(lnum);
+    }
+
+    private static byte[] string(HashMap<String,byte[]> quoted, JsonObject o, String key) {
+        if (!o.has(key)) {
+            return null;
+        }
+        String s = o.get(key).getAsString();
+        byte[] q = quoted.get(s);
+        if (q == null) {
+            q = VegWriter.quote(s);
+            quoted.put(s, q);
+        }
+        return q;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("usage: Normalized <in> <out>");
+            System.exit(1);
+        }
+        InputStream in = new BufferedInputStream(new FileInputStream(args[0]));
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(args[1]));
+        try {
+            expand(in, out);
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
+}
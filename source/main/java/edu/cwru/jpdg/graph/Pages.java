@@ -0,0 +1,122 @@
+package edu.cwru.jpdg.graph;
+
+/* Tim Henderson (tadh@case.edu)
+ *
+ * This file is part of jpdg a library to generate Program Dependence Graphs
+ * from JVM bytecode.
+ *
+ * Copyright (c) 2014, Tim Henderson, Case Western Reserve University
+ *   Cleveland, Ohio 44106
+ *   All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc.,
+ *   51 Franklin Street, Fifth Floor,
+ *   Boston, MA  02110-1301
+ *   USA
+ * or retrieve version 2.1 at their website:
+ *   http://www.gnu.org/licenses/lgpl-2.1.html
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * One temporary file, handed out in pages of 64KB to all the Segments of a
+ * mapped graph (see Storage). A graph has an edge list per edge type, and
+ * there are thousands of those, so a file (and a mapping) each would run
+ * out of file descriptors and address space. The file is mapped in windows
+ * of 64MB as they are first touched and is sparse until written. Pages are
+ * never given back, close drops the whole file.
+ */
+class Pages {
+
+    static final int PAGE_BITS = 16;
+    static final long PAGE_SIZE = 1L << PAGE_BITS;
+    static final long PAGE_MASK = PAGE_SIZE - 1;
+    static final int WINDOW_BITS = 26;
+    static final long WINDOW_SIZE = 1L << WINDOW_BITS;
+    static final long WINDOW_MASK = WINDOW_SIZE - 1;
+
+    final File path;
+    final RandomAccessFile file;
+    final FileChannel channel;
+    int allocated = 0;
+    // replaced, not changed, when it grows so readers need no lock
+    volatile MappedByteBuffer[] windows = new MappedByteBuffer[0];
+
+    Pages(File dir) {
+        try {
+            path = File.createTempFile("jpdg-", ".map", dir);
+            path.deleteOnExit();
+            file = new RandomAccessFile(path, "rw");
+            channel = file.getChannel();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** A new page, zeroed since pages are not reused. */
+    synchronized int allocate() {
+        if (allocated == Integer.MAX_VALUE) {
+            throw new RuntimeException(path + ": out of pages");
+        }
+        return allocated++;
+    }
+
+    /** The window holding the byte at the file offset at. */
+    MappedByteBuffer window(long at) {
+        int w = (int)(at >>> WINDOW_BITS);
+        MappedByteBuffer[] ws = windows;
+        if (w < ws.length) {
+            return ws[w];
+        }
+        return map(w);
+    }
+
+    private synchronized MappedByteBuffer map(int w) {
+        MappedByteBuffer[] ws = windows;
+        if (w < ws.length) {
+            return ws[w];
+        }
+        ws = java.util.Arrays.copyOf(ws, w + 1);
+        for (int i = windows.length; i <= w; i++) {
+            try {
+                ws[i] = channel.map(FileChannel.MapMode.READ_WRITE, i*WINDOW_SIZE, WINDOW_SIZE);
+            } catch (IOException e) {
+                throw new RuntimeException(path + ": " + e);
+            }
+            ws[i].order(ByteOrder.nativeOrder());
+        }
+        windows = ws;
+        return ws[w];
+    }
+
+    /**
+     * Closes and removes the file. The mappings go when the buffers are
+     * collected, none of them may be used after this.
+     */
+    synchronized void close() throws IOException {
+        windows = new MappedByteBuffer[0];
+        try {
+            file.close();
+        } finally {
+            path.delete();
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package edu.cwru.jpdg.graph;
+
+/* Tim Henderson (tadh@case.edu)
+ *
+ * This file is part of jpdg a library to generate Program Dependence Graphs
+ * from JVM bytecode.
+ *
+ * Copyright (c) 2014, Tim Henderson, Case Western Reserve University
+ *   Cleveland, Ohio 44106
+ *   All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc.,
+ *   51 Franklin Street, Fifth Floor,
+ *   Boston, MA  02110-1301
+ *   USA
+ * or retrieve version 2.1 at their website:
+ *   http://www.gnu.org/licenses/lgpl-2.1.html
+ */
+
+
+import java.util.*;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes a graph as the graph transactions parsemis mines, in the dot
+ * dialect scripts/jpdg/dotty.py writes: a "digraph Gk { ... }" per
+ * transaction with its vertices numbered 0..n-1 (in uid order) and only
+ * the edges between vertices of the same transaction.
+ *
+ * A transaction is a method (its uid range) when by is "method", or else
+ * the vertices with the same value of the attribute by (eg. method_name,
+ * class_name or package_name). label picks the vertex label like dotty's
+ * label argument ("label" or an attribute) and html picks between dotty's
+ * html table labels and its plain ones.
+ *
+ * The uids of the vertices of transaction Gk are written to ids, when it
+ * is not null, as a "Gk" line followed by a tab and the uids in order, so
+ * the patterns parsemis finds can be mapped back to the graph.
+ */
+public class Parsemis {
+
+    public static void write(Graph g, Writer out, Writer ids, String by, String label, boolean html) throws IOException {
+        if (g.parent != null) {
+            throw new IllegalArgumentException("can not write a shard");
+        }
+        Nodes N = g.nodes;
+        IntArray group_by = by.equals("method") ? null : column(N, by);
+        IntArray label_by = label.equals("label") ? N.label : column(N, label);
+        List<String> label_table = label.equals("label") ? g.labels : N.strings;
+
+        int[] order = g.order();
+        int n = g.uids.size();
+        LongIntMap group_of = new LongIntMap();
+        List<IntArray> groups = new ArrayList<IntArray>();
+        int[] group = new int[n];
+        Arrays.fill(group, -1);
+        for (int i : order) {
+            if (g.node_labels.get(i) < 0) {
+                continue;
+            }
+            long key = group_by == null ? g.uids.get(i) & ~Graph.LOCAL_MASK : group_by.get(i);
+            int k = group_of.get(key);
+            if (k < 0) {
+                k = groups.size();
+                groups.add(new IntArray());
+                group_of.put(key, k);
+            }
+            groups.get(k).add(i);
+            group[i] = k;
+        }
+
+        List<Integer> types = new ArrayList<Integer>();
+        for (int t : g.sorted_types()) {
+            if (g.write_kinds.contains(g.type_kinds.get(t))) {
+                g.edges.get(t).compact(order.length, order, g.rank);
+                types.add(t);
+            }
+        }
+
+        int[] local = new int[n];
+        for (int k = 0; k < groups.size(); k++) {
+            IntArray members = groups.get(k);
+            out.write("digraph G" + (k+1) + " {\n");
+            for (int v = 0; v < members.size(); v++) {
+                int i = members.get(v);
+                local[i] = v;
+                String l = label_table.get(label_by.get(i));
+                if (l == null) {
+                    l = "";
+                }
+                if (html) {
+                    out.write("n" + v + " [shape=rect, fontname=\"Courier\", label=<<table border=\"0\">" + html(l) + "</table>>];\n");
+                } else {
+                    out.write("n" + v + " [shape=rect, label=\"" + plain(l) + "\"];\n");
+                }
+            }
+            for (int t : types) {
+                EdgeList E = g.edges.get(t);
+                String e_label = g.edge_labels.get(g.type_labels.get(t));
+                for (int v = 0; v < members.size(); v++) {
+                    int i = members.get(v);
+                    for (long e = E.start(i); e < E.end(i); e++) {
+                        int j = E.target(e);
+                        if (group[j] == k) {
+                            out.write("n" + v + "->n" + local[j] + " [label=\"" + e_label + "\"];\n");
+                        }
+                    }
+                }
+            }
+            out.write("\n}\n");
+            if (ids != null) {
+                ids.write("G" + (k+1) + "\t");
+                for (int v = 0; v < members.size(); v++) {
+                    if (v > 0) {
+                        ids.write(' ');
+                    }
+                    ids.write(Long.toString(g.uids.get(members.get(v))));
+                }
+                ids.write('\n');
+            }
+        }
+        out.flush();
+        if (ids != null) {
+            ids.flush();
+        }
+    }
+
+    static IntArray column(Nodes N, String attribute) {
+        if (attribute.equals("extra")) {
+            return N.extra;
+        } else if (attribute.equals("package_name")) {
+            return N.package_name;
+        } else if (attribute.equals("class_name")) {
+            return N.class_name;
+        } else if (attribute.equals("source_file")) {
+            return N.source_file;
+        } else if (attribute.equals("method_name")) {
+            return N.method_name;
+        } else if (attribute.equals("type")) {
+            return N.type;
+        }
+        throw new IllegalArgumentException("unknown vertex attribute " + attribute);
+    }
+
+    // dotty's plain labels
+    static String plain(String label) {
+        return label.replace("\"", "").replace("\\", "").replace("\n", "");
+    }
+
+    // dotty's html labels: escaped, non ascii as character references and
+    // a table row per line
+    static String html(String label) {
+        label = label.replace("'", "\\'").replace("\"", "\\\"").replace("\n", "\\n");
+        label = label.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < label.length(); ) {
+            int c = label.codePointAt(i);
+            if (c < 128) {
+                b.append((char)c);
+            } else {
+                b.append("&#").append(c).append(';');
+            }
+            i += Character.charCount(c);
+        }
+        StringBuilder rows = new StringBuilder();
+        for (String line : b.toString().split("\\\\n", -1)) {
+            rows.append("<tr><td align=\"left\">").append(line).append("</td></tr>");
+        }
+        return rows.toString();
+    }
+}
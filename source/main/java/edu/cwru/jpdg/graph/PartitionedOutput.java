@@ -0,0 +1,288 @@
+package edu.cwru.jpdg.graph;
+
+/* Tim Henderson (tadh@case.edu)
+ *
+ * This file is part of jpdg a library to generate Program Dependence Graphs
+ * from JVM bytecode.
+ *
+ * Copyright (c) 2014, Tim Henderson, Case Western Reserve University
+ *   Cleveland, Ohio 44106
+ *   All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc.,
+ *   51 Franklin Street, Fifth Floor,
+ *   Boston, MA  02110-1301
+ *   USA
+ * or retrieve version 2.1 at their website:
+ *   http://www.gnu.org/licenses/lgpl-2.1.html
+ */
+
+
+import java.util.*;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import com.google.gson.GsonBuilder;
+
+/**
+ * Writes a graph as a directory of veg files, one per package or one per
+ * n classes, instead of one big file. The shards of the methods are
+ * written (see Graph.WriteShard) as they come, in class order; a partition
+ * is closed once a shard of the next package (or of the n+1'th class)
+ * turns up, so the classes must come grouped by package when partitioning
+ * by package.
+ *
+ * Every time a partition is closed the manifest (DIR/manifest.json) is
+ * rewritten, by writing a temporary file and renaming it, so a reader
+ * always sees a consistent manifest listing only complete partitions and
+ * can start on them while the rest is still being built. "complete" is
+ * true once the last partition has been closed. A partition's entry holds
+ * its file, the package or classes in it, the number of vertices and
+ * edges, its size and its SHA-256.
+ *
+ * The vertex labels are numbered across partitions in DIR/labels, one
+ * JSON string per line in the order they were first written. A partition
+ * entry's "labels" is the number of lines of that table covering its
+ * labels. Partition 0 ("entries") holds the method entry vertices of the
+ * graph itself, which the edges of the other partitions refer to.
+ *
+ * A partition is written to a temporary file which is renamed once it is
+ * complete. When partitioning by package, rewrite replaces the partitions
+ * of some packages in place (see Watch).
+ */
+public class PartitionedOutput {
+
+    public static final String MANIFEST = "manifest.json";
+    public static final String LABELS = "labels";
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    final File dir;
+    final Graph g;
+    // classes per partition, 0 for a partition per package
+    final int classes;
+    final List<Map<String,Object>> partitions = new ArrayList<Map<String,Object>>();
+    final HashMap<String,Integer> label_nums = new HashMap<String,Integer>();
+    final OutputStream labels;
+
+    // the open partition
+    Map<String,Object> part = null;
+    Set<String> part_classes = null;
+    DigestOutputStream part_out = null;
+    VegWriter veg = null;
+    // partitions opened so far, which numbers the next one
+    int opened = 0;
+    boolean complete = false;
+
+    /**
+     * Partitions the shards of g into dir, a partition per package when
+     * classes is 0 and one per that many classes otherwise.
+     */
+    public PartitionedOutput(File dir, Graph g, int classes) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("could not create " + dir);
+        }
+        this.dir = dir;
+        this.g = g;
+        this.classes = classes;
+        this.labels = new FileOutputStream(new File(dir, LABELS));
+        manifest();
+    }
+
+    public boolean byPackage() {
+        return classes == 0;
+    }
+
+    /**
+     * Writes the vertices of g itself (the method entries when streaming)
+     * as a partition of its own.
+     */
+    public void writeEntries() throws IOException {
+        open("entries", null);
+        add_labels(g);
+        g.Write(veg);
+        close_part();
+    }
+
+    public void write(String package_name, String class_name, Graph shard) throws IOException {
+        if (part != null && !part_classes.contains(class_name)) {
+            if (byPackage() ? !package_name.equals(part.get("package")) : part_classes.size() >= classes) {
+                close_part();
+            }
+        }
+        if (part == null) {
+            open(String.format("part-%05d", opened), byPackage() ? package_name : null);
+        }
+        part_classes.add(class_name);
+        add_labels(shard);
+        g.WriteShard(shard, veg);
+    }
+
+    /**
+     * Closes the last partition and marks the manifest complete.
+     */
+    public void close() throws IOException {
+        if (part != null) {
+            close_part();
+        }
+        labels.close();
+        complete = true;
+        manifest();
+    }
+
+    /**
+     * Writes the partitions of the given packages of g again, and its
+     * entries, replacing what was there: a package which has no vertices
+     * left loses its partition and a new package gets a new one. The
+     * manifest is complete afterwards. Only for partitions per package.
+     */
+    public void rewrite(Graph g, Collection<String> packages) throws IOException {
+        if (!byPackage()) {
+            throw new IllegalStateException("only partitions per package can be rewritten");
+        }
+        replace(null, g.entries(), "entries");
+        for (String package_name : new TreeSet<String>(packages)) {
+            String name = null;
+            for (Map<String,Object> p : partitions) {
+                if (package_name.equals(p.get("package"))) {
+                    name = ((String)p.get("file")).replace(".veg", "");
+                }
+            }
+            replace(package_name, g.packageShard(package_name), name);
+        }
+        complete = true;
+        manifest();
+    }
+
+    // (re)writes the partition of package_name (or the entries when it is
+    // null) as name, a new partition when name is null.
+    private void replace(String package_name, Graph x, String name) throws IOException {
+        // a partition keeps its place in the manifest
+        int at = partitions.size();
+        for (int i = 0; i < partitions.size(); i++) {
+            if (name != null && partitions.get(i).get("file").equals(name + ".veg")) {
+                at = i;
+                partitions.remove(i);
+                break;
+            }
+        }
+        if (x.nodeCount() == 0 && package_name != null) {
+            if (name != null) {
+                new File(dir, name + ".veg").delete();
+            }
+            return;
+        }
+        open(name != null ? name : String.format("part-%05d", opened), package_name);
+        add_labels(x);
+        if (package_name == null) {
+            x.Write(veg);
+        } else {
+            part_classes.addAll(x.classNames());
+            x.parent.WriteShard(x, veg);
+        }
+        close_part();
+        partitions.add(at, partitions.remove(partitions.size() - 1));
+        manifest();
+    }
+
+    private void open(String name, String package_name) throws IOException {
+        MessageDigest sha;
+        try {
+            sha = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        part = new LinkedHashMap<String,Object>();
+        part.put("file", name + ".veg");
+        if (package_name != null) {
+            part.put("package", package_name);
+        }
+        part_classes = new LinkedHashSet<String>();
+        part_out = new DigestOutputStream(new FileOutputStream(new File(dir, name + ".veg.tmp")), sha);
+        opened++;
+        veg = new VegWriter(Channels.newChannel(part_out), 1 << 20);
+    }
+
+    private void close_part() throws IOException {
+        veg.flush();
+        part_out.close();
+        String name = (String)part.get("file");
+        if (!new File(dir, name + ".tmp").renameTo(new File(dir, name))) {
+            throw new IOException("could not rename " + name + ".tmp");
+        }
+        labels.flush();
+        if (!part_classes.isEmpty()) {
+            part.put("classes", new ArrayList<String>(part_classes));
+        }
+        part.put("vertices", veg.vertices());
+        part.put("edges", veg.edges());
+        part.put("bytes", veg.position());
+        part.put("sha256", hex(part_out.getMessageDigest().digest()));
+        part.put("labels", label_nums.size());
+        partitions.add(part);
+        part = null;
+        part_classes = null;
+        part_out = null;
+        veg = null;
+        manifest();
+    }
+
+    // numbers the labels of x's vertices not seen yet
+    private void add_labels(Graph x) throws IOException {
+        for (String label : x.labels) {
+            if (!label_nums.containsKey(label)) {
+                label_nums.put(label, label_nums.size());
+                labels.write(VegWriter.quote(label));
+                labels.write('\n');
+            }
+        }
+    }
+
+    private void manifest() throws IOException {
+        Map<String,Object> m = new LinkedHashMap<String,Object>();
+        m.put("version", 1);
+        m.put("partition", byPackage() ? "package" : "classes:" + classes);
+        m.put("complete", complete);
+        m.put("labels", LABELS);
+        m.put("partitions", partitions);
+        File tmp = new File(dir, MANIFEST + ".tmp");
+        Writer w = new OutputStreamWriter(new FileOutputStream(tmp), UTF8);
+        try {
+            new GsonBuilder().setPrettyPrinting().create().toJson(m, w);
+            w.write('\n');
+        } finally {
+            w.close();
+        }
+        if (!tmp.renameTo(new File(dir, MANIFEST))) {
+            throw new IOException("could not rename " + tmp);
+        }
+    }
+
+    static String hex(byte[] b) {
+        StringBuilder s = new StringBuilder();
+        for (byte x : b) {
+            s.append(String.format("%02x", x & 0xff));
+        }
+        return s.toString();
+    }
+}
@@ -0,0 +1,91 @@
+package edu.cwru.jpdg.graph;
+
+/* Tim Henderson (tadh@case.edu)
+ *
+ * This file is part of jpdg a library to generate Program Dependence Graphs
+ * from JVM bytecode.
+ *
+ * Copyright (c) 2014, Tim Henderson, Case Western Reserve University
+ *   Cleveland, Ohio 44106
+ *   All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc.,
+ *   51 Franklin Street, Fifth Floor,
+ *   Boston, MA  02110-1301
+ *   USA
+ * or retrieve version 2.1 at their website:
+ *   http://www.gnu.org/licenses/lgpl-2.1.html
+ */
+
+
+import java.util.*;
+
+/**
+ * A growable byte array kept in the pages of a Pages file, addressed by a
+ * long byte offset so it can hold more than 2^31 of anything. A page is
+ * taken from the file when this array first touches it, so the many small
+ * arrays of a mapped graph cost a page or two each. Ints and longs are
+ * stored in native byte order at aligned offsets, so they never straddle
+ * two pages.
+ */
+class Segments {
+
+    final Pages pages;
+    // the file page of each of our pages, -1 until it is touched
+    int[] table = new int[0];
+
+    Segments(Pages pages) {
+        this.pages = pages;
+    }
+
+    // the offset in the pages' file of the byte at offset
+    private long at(long offset) {
+        long p = offset >>> Pages.PAGE_BITS;
+        if (p >= table.length) {
+            if (p >= Integer.MAX_VALUE) {
+                throw new IndexOutOfBoundsException(Long.toString(offset));
+            }
+            int old = table.length;
+            table = Arrays.copyOf(table, (int)Math.min(Integer.MAX_VALUE, Math.max(p + 1, 2L*old)));
+            Arrays.fill(table, old, table.length, -1);
+        }
+        int page = table[(int)p];
+        if (page < 0) {
+            page = pages.allocate();
+            table[(int)p] = page;
+        }
+        return ((long)page << Pages.PAGE_BITS) | (offset & Pages.PAGE_MASK);
+    }
+
+    int getInt(long offset) {
+        long a = at(offset);
+        return pages.window(a).getInt((int)(a & Pages.WINDOW_MASK));
+    }
+
+    void putInt(long offset, int v) {
+        long a = at(offset);
+        pages.window(a).putInt((int)(a & Pages.WINDOW_MASK), v);
+    }
+
+    long getLong(long offset) {
+        long a = at(offset);
+        return pages.window(a).getLong((int)(a & Pages.WINDOW_MASK));
+    }
+
+    void putLong(long offset, long v) {
+        long a = at(offset);
+        pages.window(a).putLong((int)(a & Pages.WINDOW_MASK), v);
+    }
+}
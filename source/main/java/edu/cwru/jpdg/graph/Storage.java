@@ -0,0 +1,87 @@
+package edu.cwru.jpdg.graph;
+
+/* Tim Henderson (tadh@case.edu)
+ *
+ * This file is part of jpdg a library to generate Program Dependence Graphs
+ * from JVM bytecode.
+ *
+ * Copyright (c) 2014, Tim Henderson, Case Western Reserve University
+ *   Cleveland, Ohio 44106
+ *   All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc.,
+ *   51 Franklin Street, Fifth Floor,
+ *   Boston, MA  02110-1301
+ *   USA
+ * or retrieve version 2.1 at their website:
+ *   http://www.gnu.org/licenses/lgpl-2.1.html
+ */
+
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Where a Graph keeps its nodes and edges: on the heap, or in memory mapped
+ * pages of one file in a directory (see Graph.mapped and Pages).
+ */
+class Storage {
+
+    static final Storage HEAP = new Storage(null);
+
+    final File dir;
+    // made when first needed, so an unused store leaves no file behind
+    Pages pages;
+
+    Storage(File dir) {
+        this.dir = dir;
+    }
+
+    private synchronized Pages pages() {
+        if (pages == null) {
+            pages = new Pages(dir);
+        }
+        return pages;
+    }
+
+    IntArray ints(String name) {
+        if (dir == null) {
+            return new IntArray();
+        }
+        return new MappedIntArray(new Segments(pages()));
+    }
+
+    LongArray longs(String name) {
+        if (dir == null) {
+            return new LongArray();
+        }
+        return new MappedLongArray(new Segments(pages()));
+    }
+
+    EdgeList edges(String name) {
+        if (dir == null) {
+            return new EdgeList();
+        }
+        return new MappedEdgeList(new Segments(pages()), new Segments(pages()));
+    }
+
+    /** Closes and removes the file, if there is one. */
+    synchronized void close() throws IOException {
+        if (pages != null) {
+            pages.close();
+            pages = null;
+        }
+    }
+}
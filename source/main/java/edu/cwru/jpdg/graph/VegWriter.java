@@ -0,0 +1,361 @@
+package edu.cwru.jpdg.graph;
+
+/* Tim Henderson (tadh@case.edu)
+ *
+ * This file is part of jpdg a library to generate Program Dependence Graphs
+ * from JVM bytecode.
+ *
+ * Copyright (c) 2014, Tim Henderson, Case Western Reserve University
+ *   Cleveland, Ohio 44106
+ *   All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc.,
+ *   51 Franklin Street, Fifth Floor,
+ *   Boston, MA  02110-1301
+ *   USA
+ * or retrieve version 2.1 at their website:
+ *   http://www.gnu.org/licenses/lgpl-2.1.html
+ */
+
+
+import java.util.*;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Writes the veg format of Graph.Write (a "vertex" or "edge" line type, a
+ * tab and a JSON object per line) without going through Gson. Records are
+ * written into one reusable direct buffer which is drained to a channel
+ * when full, so writing a record allocates nothing. Strings are passed as
+ * already quoted and escaped UTF-8 (see quote), so a string which appears
+ * on many lines (eg. a label) is only escaped once.
+ *
+ * The output is byte for byte what Gson (with its default, html safe,
+ * escaping) makes of the Maps in Node.Serialize and Edge.Serialize,
+ * including leaving out keys whose value is null.
+ */
+public class VegWriter {
+
+    public static final int BUFFER_SIZE = 1 << 16;
+
+    static final byte[] HEX = "0123456789abcdef".getBytes();
+    static final byte[] VERTEX = "vertex\t{".getBytes();
+    static final byte[] EDGE = "edge\t{".getBytes();
+    static final byte[] ID = "\"id\":".getBytes();
+    static final byte[] LABEL = "\"label\":".getBytes();
+    static final byte[] EXTRA = "\"extra\":".getBytes();
+    static final byte[] PACKAGE_NAME = "\"package_name\":".getBytes();
+    static final byte[] CLASS_NAME = "\"class_name\":".getBytes();
+    static final byte[] SOURCE_FILE = "\"source_file\":".getBytes();
+    static final byte[] METHOD_NAME = "\"method_name\":".getBytes();
+    static final byte[] TYPE = "\"type\":".getBytes();
+    static final byte[] START_LINE = "\"start_line\":".getBytes();
+    static final byte[] START_COLUMN = "\"start_column\":".getBytes();
+    static final byte[] END_LINE = "\"end_line\":".getBytes();
+    static final byte[] END_COLUMN = "\"end_column\":".getBytes();
+    static final byte[] SRC = "\"src\":".getBytes();
+    static final byte[] TARG = "\"targ\":".getBytes();
+    static final byte[] KIND = "\"kind\":".getBytes();
+    static final byte[] SRC_LABEL = "\"src_label\":".getBytes();
+    static final byte[] TARG_LABEL = "\"targ_label\":".getBytes();
+    static final byte[] LNUM = "\"lnum\":".getBytes();
+    static final byte[] CURRENT = "\"current\":".getBytes();
+
+    // the quoted names of the edge kinds, by ordinal
+    static final byte[][] KINDS;
+    static {
+        EdgeKind[] kinds = EdgeKind.values();
+        KINDS = new byte[kinds.length][];
+        for (int i = 0; i < kinds.length; i++) {
+            KINDS[i] = quote(kinds[i].name);
+        }
+    }
+
+    final WritableByteChannel out;
+    final ByteBuffer buf;
+    // the digits of a number, back to front
+    final byte[] digits = new byte[20];
+    // true once the current object has a key
+    boolean keys = false;
+    // bytes drained to out so far
+    long drained = 0;
+    // records written so far
+    long vertices = 0;
+    long edges = 0;
+
+    public VegWriter(OutputStream out) {
+        this(Channels.newChannel(out), BUFFER_SIZE);
+    }
+
+    public VegWriter(WritableByteChannel out, int size) {
+        this.out = out;
+        this.buf = ByteBuffer.allocateDirect(Math.max(size, 64));
+    }
+
+    /**
+     * The JSON string literal (quotes included) of s as UTF-8, or null for
+     * a null s.
+     */
+    public static byte[] quote(String s) {
+        if (s == null) {
+            return null;
+        }
+        StringBuilder b = new StringBuilder(s.length() + 2);
+        b.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+            case '"': b.append("\\\""); break;
+            case '\\': b.append("\\\\"); break;
+            case '\t': b.append("\\t"); break;
+            case '\b': b.append("\\b"); break;
+            case '\n': b.append("\\n"); break;
+            case '\r': b.append("\\r"); break;
+            case '\f': b.append("\\f"); break;
+            case '<': case '>': case '&': case '=': case '\'':
+            case '\u2028': case '\u2029':
+                unicode(b, c);
+                break;
+            default:
+                if (c < 0x20) {
+                    unicode(b, c);
+                } else {
+                    b.append(c);
+                }
+            }
+        }
+        b.append('"');
+        return utf8(b);
+    }
+
+    private static void unicode(StringBuilder b, char c) {
+        b.append("\\u");
+        for (int shift = 12; shift >= 0; shift -= 4) {
+            b.append((char)HEX[(c >> shift) & 0xf]);
+        }
+    }
+
+    // like String.getBytes("UTF-8"): an unpaired surrogate becomes '?'
+    private static byte[] utf8(CharSequence s) {
+        byte[] b = new byte[s.length()*3];
+        int n = 0;
+        for (int i = 0; i < s.length(); i++) {
+            int c = s.charAt(i);
+            if (Character.isHighSurrogate((char)c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i+1))) {
+                int cp = Character.toCodePoint((char)c, s.charAt(++i));
+                b[n++] = (byte)(0xf0 | (cp >> 18));
+                b[n++] = (byte)(0x80 | ((cp >> 12) & 0x3f));
+                b[n++] = (byte)(0x80 | ((cp >> 6) & 0x3f));
+                b[n++] = (byte)(0x80 | (cp & 0x3f));
+            } else if (Character.isSurrogate((char)c)) {
+                b[n++] = '?';
+            } else if (c < 0x80) {
+                b[n++] = (byte)c;
+            } else if (c < 0x800) {
+                b[n++] = (byte)(0xc0 | (c >> 6));
+                b[n++] = (byte)(0x80 | (c & 0x3f));
+            } else {
+                b[n++] = (byte)(0xe0 | (c >> 12));
+                b[n++] = (byte)(0x80 | ((c >> 6) & 0x3f));
+                b[n++] = (byte)(0x80 | (c & 0x3f));
+            }
+        }
+        return Arrays.copyOf(b, n);
+    }
+
+    public void vertex(long id, byte[] label, byte[] extra, byte[] package_name, byte[] class_name, byte[] source_file, byte[] method_name, byte[] type, int start_line, int start_column, int end_line, int end_column) throws IOException {
+        begin(VERTEX);
+        number(ID, id);
+        string(LABEL, label);
+        vertex_end(extra, package_name, class_name, source_file, method_name, type, start_line, start_column, end_line, end_column);
+    }
+
+    /**
+     * A vertex of the normalized format (see Graph.writeNormalized), its
+     * label is number lnum of the labels line. current is the number of
+     * the label its edges had in the usual format when that differs from
+     * lnum (see Graph.setLabel) and -1 otherwise.
+     */
+    public void vertex(long id, int lnum, int current, byte[] extra, byte[] package_name, byte[] class_name, byte[] source_file, byte[] method_name, byte[] type, int start_line, int start_column, int end_line, int end_column) throws IOException {
+        begin(VERTEX);
+        number(ID, id);
+        number(LNUM, lnum);
+        if (current >= 0) {
+            number(CURRENT, current);
+        }
+        vertex_end(extra, package_name, class_name, source_file, method_name, type, start_line, start_column, end_line, end_column);
+    }
+
+    private void vertex_end(byte[] extra, byte[] package_name, byte[] class_name, byte[] source_file, byte[] method_name, byte[] type, int start_line, int start_column, int end_line, int end_column) throws IOException {
+        string(EXTRA, extra);
+        string(PACKAGE_NAME, package_name);
+        string(CLASS_NAME, class_name);
+        string(SOURCE_FILE, source_file);
+        string(METHOD_NAME, method_name);
+        string(TYPE, type);
+        number(START_LINE, start_line);
+        number(START_COLUMN, start_column);
+        number(END_LINE, end_line);
+        number(END_COLUMN, end_column);
+        end();
+        vertices++;
+    }
+
+    public void edge(long src, long targ, EdgeKind kind, byte[] label, byte[] src_label, byte[] targ_label) throws IOException {
+        begin(EDGE);
+        number(SRC, src);
+        number(TARG, targ);
+        string(LABEL, label);
+        string(KIND, KINDS[kind.ordinal()]);
+        string(SRC_LABEL, src_label);
+        string(TARG_LABEL, targ_label);
+        end();
+        edges++;
+    }
+
+    /**
+     * An edge of the normalized format, its label is number lnum of the
+     * edge_labels line.
+     */
+    public void edge(long src, long targ, EdgeKind kind, int lnum) throws IOException {
+        begin(EDGE);
+        number(SRC, src);
+        number(TARG, targ);
+        number(LNUM, lnum);
+        string(KIND, KINDS[kind.ordinal()]);
+        end();
+        edges++;
+    }
+
+    /**
+     * A line_type line holding a JSON array of the (quoted) strings, eg.
+     * the labels line of the normalized format.
+     */
+    public void strings(String line_type, List<byte[]> quoted) throws IOException {
+        put(line_type.getBytes());
+        put((byte)'\t');
+        put((byte)'[');
+        for (int i = 0; i < quoted.size(); i++) {
+            if (i > 0) {
+                put((byte)',');
+            }
+            put(quoted.get(i));
+        }
+        put((byte)']');
+        put((byte)'\n');
+    }
+
+    private void begin(byte[] line_type) throws IOException {
+        put(line_type);
+        keys = false;
+    }
+
+    private void end() throws IOException {
+        put((byte)'}');
+        put((byte)'\n');
+    }
+
+    private void key(byte[] key) throws IOException {
+        if (keys) {
+            put((byte)',');
+        }
+        keys = true;
+        put(key);
+    }
+
+    private void string(byte[] key, byte[] quoted) throws IOException {
+        if (quoted == null) {
+            return;
+        }
+        key(key);
+        put(quoted);
+    }
+
+    private void number(byte[] key, long v) throws IOException {
+        key(key);
+        if (v == Long.MIN_VALUE) {
+            put(Long.toString(v).getBytes());
+            return;
+        }
+        if (v < 0) {
+            put((byte)'-');
+            v = -v;
+        }
+        int n = 0;
+        do {
+            digits[n++] = (byte)('0' + v % 10);
+            v /= 10;
+        } while (v > 0);
+        if (buf.remaining() < n) {
+            drain();
+        }
+        while (n > 0) {
+            buf.put(digits[--n]);
+        }
+    }
+
+    private void put(byte b) throws IOException {
+        if (!buf.hasRemaining()) {
+            drain();
+        }
+        buf.put(b);
+    }
+
+    private void put(byte[] b) throws IOException {
+        int off = 0;
+        while (off < b.length) {
+            if (!buf.hasRemaining()) {
+                drain();
+            }
+            int n = Math.min(buf.remaining(), b.length - off);
+            buf.put(b, off, n);
+            off += n;
+        }
+    }
+
+    private void drain() throws IOException {
+        buf.flip();
+        drained += buf.remaining();
+        while (buf.hasRemaining()) {
+            out.write(buf);
+        }
+        buf.clear();
+    }
+
+    /**
+     * The number of bytes written so far, buffered ones included.
+     */
+    public long position() {
+        return drained + buf.position();
+    }
+
+    public long vertices() {
+        return vertices;
+    }
+
+    public long edges() {
+        return edges;
+    }
+
+    /**
+     * Writes out what is buffered. The channel is not closed.
+     */
+    public void flush() throws IOException {
+        drain();
+    }
+}
@@ -75,7 +75,7 @@ public class ExpressionTreeLabels implements LabelMaker {
         return ExpressionTreeLabels.NodeType(b);
     }
 
-    public void postLabel(pDG_Builder pDG, int uid, Block b) {
+    public void postLabel(pDG_Builder pDG, long uid, Block b) {
         return;
     }
 
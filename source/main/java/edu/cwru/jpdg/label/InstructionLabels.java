@@ -37,7 +37,7 @@ import edu.cwru.jpdg.pDG_Builder;
 
 public class InstructionLabels implements LabelMaker {
 
-    public void postLabel(pDG_Builder pDG, int uid, Block b) {
+    public void postLabel(pDG_Builder pDG, long uid, Block b) {
         return;
     }
 
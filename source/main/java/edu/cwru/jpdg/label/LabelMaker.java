@@ -36,6 +36,6 @@ import edu.cwru.jpdg.pDG_Builder;
 public interface LabelMaker {
     String label(pDG_Builder pDG, Block b);
     String nodeType(Block b);
-    void postLabel(pDG_Builder pDG, int uid, Block b);
+    void postLabel(pDG_Builder pDG, long uid, Block b);
 }
 
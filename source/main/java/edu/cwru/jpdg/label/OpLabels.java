@@ -36,10 +36,11 @@ import soot.jimple.internal.*;
 
 import edu.cwru.jpdg.pDG_Builder;
 import edu.cwru.jpdg.graph.Node;
+import edu.cwru.jpdg.graph.EdgeKind;
 
 public class OpLabels implements LabelMaker {
 
-    public void postLabel(pDG_Builder pDG, int uid, Block b) {
+    public void postLabel(pDG_Builder pDG, long uid, Block b) {
         for (Iterator<soot.Unit> it = b.iterator(); it.hasNext(); ) {
             soot.Unit u = it.next();
             add_constants(pDG, uid, u);
@@ -169,7 +170,7 @@ public class OpLabels implements LabelMaker {
         throw new RuntimeException(String.format("Unexpected value %s [%s]", value, value.getClass()));
     }
 
-    public void add_constants(pDG_Builder pDG, int uid, soot.Unit u) {
+    public void add_constants(pDG_Builder pDG, long uid, soot.Unit u) {
         for (soot.ValueBox vb : u.getUseBoxes()) {
             soot.Value v = vb.getValue();
             if (v instanceof soot.jimple.Constant) {
@@ -185,9 +186,9 @@ public class OpLabels implements LabelMaker {
         }
     }
 
-    public void add_constant(pDG_Builder pDG, int container_uid, soot.Unit container, soot.jimple.Constant c) {
-        Node n = pDG.g.nodes.get(container_uid);
-        int uid = pDG.g.addNode(
+    public void add_constant(pDG_Builder pDG, long container_uid, soot.Unit container, soot.jimple.Constant c) {
+        Node n = pDG.g.node(container_uid);
+        long uid = pDG.g.addNode(
             label(pDG, c),
             c.toString(),
             n.package_name, n.class_name, n.source_file, n.method_name,
@@ -203,8 +204,8 @@ public class OpLabels implements LabelMaker {
         } catch (pDG_Builder.Error e) {
             throw new RuntimeException(e.toString());
         }
-        pDG.g.addEdge(uid, container_uid, String.format("%s:%s", c.getType(), param));
-        pDG.g.addEdge(pDG.entry_uid, uid, "");
+        pDG.g.addEdge(uid, container_uid, EdgeKind.DDG, String.format("%s:%s", c.getType(), param));
+        pDG.g.addEdge(pDG.entry_uid, uid, EdgeKind.CDG, "");
     }
 }
 
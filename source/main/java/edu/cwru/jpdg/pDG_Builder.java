@@ -61,6 +61,7 @@ import soot.jimple.internal.JimpleLocal;
 import soot.jimple.internal.JimpleLocalBox;
 
 import edu.cwru.jpdg.graph.Graph;
+import edu.cwru.jpdg.graph.EdgeKind;
 import edu.cwru.jpdg.label.LabelMaker;
 
 public class pDG_Builder {
@@ -99,7 +100,7 @@ public class pDG_Builder {
 
     public Graph g;
     CallGraph cg;
-    Map<String,Integer> method_entries;
+    Map<String,Long> method_entries;
     LabelMaker lm;
     soot.SootClass klass;
     soot.SootMethod method;
@@ -107,14 +108,14 @@ public class pDG_Builder {
     BlockGraph cfg;
     UnitGraph ucfg;
 
-    public int entry_uid;
-    HashMap<Integer,Integer> block_uids = new HashMap<Integer,Integer>();
+    public long entry_uid;
+    HashMap<Integer,Long> block_uids = new HashMap<Integer,Long>();
     HashMap<soot.Unit,Block> unit_to_blk = new HashMap<soot.Unit,Block>();
 
     public ddg_Builder ddg_builder;
 
 
-    public static void build(CallGraph cg, Map<String,Integer> method_entries, LabelMaker lm, Graph g, soot.SootClass c, soot.SootMethod m, soot.Body body, BlockGraph cfg) throws Error {
+    public static void build(CallGraph cg, Map<String,Long> method_entries, LabelMaker lm, Graph g, soot.SootClass c, soot.SootMethod m, soot.Body body, BlockGraph cfg) throws Error {
         pDG_Builder self = new pDG_Builder(cg, method_entries, lm, g, c, m, body, cfg);
         self.build_pDG();
     }
@@ -125,7 +126,7 @@ public class pDG_Builder {
 
     private pDG_Builder() {}
 
-    private pDG_Builder(CallGraph cg, Map<String,Integer> method_entries, LabelMaker lm, Graph g, soot.SootClass c, soot.SootMethod m, soot.Body body, BlockGraph cfg) throws Error {
+    private pDG_Builder(CallGraph cg, Map<String,Long> method_entries, LabelMaker lm, Graph g, soot.SootClass c, soot.SootMethod m, soot.Body body, BlockGraph cfg) throws Error {
         this.cg = cg;
         this.method_entries = method_entries;
         this.lm = lm;
@@ -186,7 +187,7 @@ public class pDG_Builder {
         for (Iterator<Block> i = cfg.iterator(); i.hasNext(); ) {
             Block b = i.next();
             String bLabel = lm.label(this, b);
-            int uid = g.addNode(
+            long uid = g.addNode(
                 bLabel,
                 b.toString(),
                 klass.getPackageName(), klass.getName(), source, method.getSignature(),
@@ -207,7 +208,7 @@ public class pDG_Builder {
         }
     }
 
-    void add_call_edges(int src, soot.Unit to) {
+    void add_call_edges(long src, soot.Unit to) {
         if (cg == null) {
             return;
         }
@@ -217,8 +218,8 @@ public class pDG_Builder {
             if (targ != null) {
                 String name = method_name(targ);
                 if (method_entries.containsKey(name)) {
-                    int targ_uid = method_entries.get(name);
-                    g.addEdge(src, targ_uid, "");
+                    long targ_uid = method_entries.get(name);
+                    g.addEdge(src, targ_uid, EdgeKind.CALL, "");
                 }
             }
         }
@@ -227,7 +228,7 @@ public class pDG_Builder {
     void map_units_to_blks() {
         for (Iterator<Block> i = cfg.iterator(); i.hasNext(); ) {
             Block b = i.next();
-            int b_uid = block_uids.get(b.getIndexInMethod());
+            long b_uid = block_uids.get(b.getIndexInMethod());
             for (Iterator<soot.Unit> iu = b.iterator(); iu.hasNext(); ) {
                 soot.Unit u = iu.next();
                 unit_to_blk.put(u, b);
@@ -238,27 +239,27 @@ public class pDG_Builder {
     void build_cfg() {
         // add a path from the entry to each head in the graph
         for (Block head : cfg.getHeads()) {
-            int head_uid = block_uids.get(head.getIndexInMethod());
-            g.addEdge(entry_uid, head_uid, "cfg");
+            long head_uid = block_uids.get(head.getIndexInMethod());
+            g.addEdge(entry_uid, head_uid, EdgeKind.CFG, "cfg");
         }
 
         // add cfg edges
         for (Iterator<Block> i = cfg.iterator(); i.hasNext(); ) {
             Block b = i.next();
-            int uid_i = block_uids.get(b.getIndexInMethod());
+            long uid_i = block_uids.get(b.getIndexInMethod());
             soot.Unit tail = b.getTail();
             for (Block s : b.getSuccs()) {
                 soot.Unit head = s.getHead();
-                int uid_s = block_uids.get(s.getIndexInMethod());
+                long uid_s = block_uids.get(s.getIndexInMethod());
                 if (tail instanceof soot.jimple.IfStmt) {
                     soot.jimple.IfStmt t = (soot.jimple.IfStmt)tail;
                     if (t.getTarget().equals(head)) {
-                        g.addEdge(uid_i, uid_s, "cfg:true");
+                        g.addEdge(uid_i, uid_s, EdgeKind.CFG, "cfg:true");
                     } else {
-                        g.addEdge(uid_i, uid_s, "cfg:false");
+                        g.addEdge(uid_i, uid_s, EdgeKind.CFG, "cfg:false");
                     }
                 } else {
-                    g.addEdge(uid_i, uid_s, "cfg");
+                    g.addEdge(uid_i, uid_s, EdgeKind.CFG, "cfg");
                 }
             }
         }
@@ -278,10 +279,10 @@ public class pDG_Builder {
         // initialize a map : uids -> bool indicating if there is a parent for
         // the block in the cdg. If there isn't it is dependent on the dummy
         // entry node.
-        HashMap<Integer,Boolean> has_parent = new HashMap<Integer,Boolean>();
+        HashMap<Long,Boolean> has_parent = new HashMap<Long,Boolean>();
         for (Iterator<Block> i = cfg.iterator(); i.hasNext(); ) {
             Block y = i.next();
-            int uid_y = block_uids.get(y.getIndexInMethod());
+            long uid_y = block_uids.get(y.getIndexInMethod());
             has_parent.put(uid_y, false);
         }
 
@@ -289,13 +290,13 @@ public class pDG_Builder {
         // block, x, if x appears in y post-domanance frontier.
         for (Iterator<Block> i = cfg.iterator(); i.hasNext(); ) {
             Block y = i.next();
-            int uid_y = block_uids.get(y.getIndexInMethod());
+            long uid_y = block_uids.get(y.getIndexInMethod());
             try {
                 for (Object o : rdf.getDominanceFrontierOf(pdom_tree.getDode(y))) {
                     Block x = ((Block)((DominatorNode)o).getGode());
-                    int uid_x = block_uids.get(x.getIndexInMethod());
+                    long uid_x = block_uids.get(x.getIndexInMethod());
                     if (uid_x != uid_y) {
-                        g.addEdge(uid_x, uid_y, "");
+                        g.addEdge(uid_x, uid_y, EdgeKind.CDG, "");
                         has_parent.put(uid_y, true);
                     }
                 }
@@ -308,9 +309,9 @@ public class pDG_Builder {
         // on the entry to the procedure.
         for (Iterator<Block> i = cfg.iterator(); i.hasNext(); ) {
             Block y = i.next();
-            int uid_y = block_uids.get(y.getIndexInMethod());
+            long uid_y = block_uids.get(y.getIndexInMethod());
             if (!has_parent.get(uid_y)) {
-                g.addEdge(entry_uid, uid_y, "");
+                g.addEdge(entry_uid, uid_y, EdgeKind.CDG, "");
             }
         }
     }
@@ -361,12 +362,15 @@ public class pDG_Builder {
         public SimpleLiveLocals sll = new SimpleLiveLocals(bug);
         public SmartLocalDefs sld = new SmartLocalDefs(bug, sll);
         public SimpleLocalUses slu = new SimpleLocalUses(bug, sld);
-        public HashMap<Integer,HashMap<Integer,List<DefinitionStmt>>> defining_stmts = new HashMap<Integer,HashMap<Integer,List<DefinitionStmt>>>();
+        public HashMap<Long,HashMap<Integer,List<DefinitionStmt>>> defining_stmts = new HashMap<Long,HashMap<Integer,List<DefinitionStmt>>>();
+        // the edge labels, "type:param", by type and param. So each label
+        // is only built once per method rather than once per edge.
+        HashMap<soot.Type,List<String>> labels = new HashMap<soot.Type,List<String>>();
 
         ddg_Builder() throws Error {
             for (Iterator<Block> i = cfg.iterator(); i.hasNext(); ) {
                 Block b = i.next();
-                int uid_b = block_uids.get(b.getIndexInMethod());
+                long uid_b = block_uids.get(b.getIndexInMethod());
                 defining_stmts.put(uid_b, find_def_stmts(b));
             }
         }
@@ -399,6 +403,18 @@ public class pDG_Builder {
             return def_stmts;
         }
 
+        String label(soot.Type type, int param) {
+            List<String> by_param = labels.get(type);
+            if (by_param == null) {
+                by_param = new ArrayList<String>();
+                labels.put(type, by_param);
+            }
+            while (by_param.size() <= param) {
+                by_param.add(String.format("%s:%d", type, by_param.size()));
+            }
+            return by_param.get(param);
+        }
+
         void build() throws Error {
             // System.err.println("building ddg for " + klass.getPackageName() + " " + klass.getName() + " " + method.getName());
 
@@ -410,7 +426,7 @@ public class pDG_Builder {
         }
 
         void find_data_dependencies(Block b) throws Error {
-            int uid_b = block_uids.get(b.getIndexInMethod());
+            long uid_b = block_uids.get(b.getIndexInMethod());
             HashMap<Integer,List<DefinitionStmt>> def_stmts = defining_stmts.get(uid_b);
 
             // For each live-variable at the end of the block, find its defining
@@ -424,10 +440,9 @@ public class pDG_Builder {
                     List<UnitValueBoxPair> uses = slu.getUsesOf(def_stmt);
                     for (UnitValueBoxPair u : uses) {
                         Block ub = unit_to_blk.get(u.unit);
-                        int uid_ub = block_uids.get(ub.getIndexInMethod());
+                        long uid_ub = block_uids.get(ub.getIndexInMethod());
                         int param = get_param_number(u.unit, value);
-                        String label = String.format("%s:%d", value.getType(), param);
-                        g.addEdge(uid_b, uid_ub, label);
+                        g.addEdge(uid_b, uid_ub, EdgeKind.DDG, label(value.getType(), param));
                     }
                 }
             }
@@ -0,0 +1,159 @@
+package edu.cwru.jpdg;
+
+/* Tim Henderson (tadh@case.edu)
+ *
+ * This file is part of jpdg a library to generate Program Dependence Graphs
+ * from JVM bytecode.
+ *
+ * Copyright (c) 2014, Tim Henderson, Case Western Reserve University
+ *   Cleveland, Ohio 44106
+ *   All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc.,
+ *   51 Franklin Street, Fifth Floor,
+ *   Boston, MA  02110-1301
+ *   USA
+ * or retrieve version 2.1 at their website:
+ *   http://www.gnu.org/licenses/lgpl-2.1.html
+ */
+
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import soot.toolkits.graph.BlockGraph;
+import soot.toolkits.graph.UnitBlockGraph;
+
+import edu.cwru.jpdg.graph.Graph;
+import edu.cwru.jpdg.graph.ConcurrentGraph;
+import edu.cwru.jpdg.label.LabelMaker;
+
+/**
+ * Measures how pDG_Builder.build scales when 1 to 64 threads build into one
+ * ConcurrentGraph, against a single thread building into a plain Graph.
+ * The bodies are all loaded before the clock starts (soot is not thread
+ * safe) so only building and publishing is timed. Not a unit test, run it
+ * by hand:
+ *
+ *     java -cp ... edu.cwru.jpdg.bench_ConcurrentGraph <classpath> <dir> [max threads] [batch] [label type]
+ */
+public class bench_ConcurrentGraph {
+
+    static class Method {
+        soot.SootClass c;
+        soot.SootMethod m;
+        soot.Body body;
+        BlockGraph cfg;
+    }
+
+    static List<Method> methods = new ArrayList<Method>();
+    static LabelMaker lm;
+
+    static Map<String,Long> add_entries(Graph g) {
+        Map<String,Long> entries = new HashMap<String,Long>();
+        for (Method x : methods) {
+            String name = pDG_Builder.method_name(x.m);
+            entries.put(name, g.addNode(
+                name, "", x.c.getPackageName(), x.c.getName(), "", x.m.getSignature(), "entry",
+                x.m.getJavaSourceStartLineNumber(), x.m.getJavaSourceStartColumnNumber(),
+                x.m.getJavaSourceStartLineNumber(), x.m.getJavaSourceStartColumnNumber()));
+        }
+        return entries;
+    }
+
+    static void build(Map<String,Long> entries, Graph g, Method x) {
+        try {
+            pDG_Builder.build(null, entries, lm, g, x.c, x.m, x.body, x.cfg);
+        } catch (Exception e) {
+            // counts the same for every run
+        }
+    }
+
+    static long sequential() {
+        Graph g = new Graph();
+        Map<String,Long> entries = add_entries(g);
+        long start = System.nanoTime();
+        for (Method x : methods) {
+            build(entries, g, x);
+        }
+        long nanos = System.nanoTime() - start;
+        System.out.println(String.format("baseline: %d ms, %d nodes %d edges", nanos/1000000, g.nodeCount(), g.edgeCount()));
+        return nanos;
+    }
+
+    static long concurrent(int threads, int batch) throws InterruptedException {
+        final ConcurrentGraph g = new ConcurrentGraph(batch);
+        final Map<String,Long> entries = add_entries(g);
+        g.flush();
+        final AtomicInteger next = new AtomicInteger();
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++) {
+            workers.add(new Thread() {
+                public void run() {
+                    for (int i = next.getAndIncrement(); i < methods.size(); i = next.getAndIncrement()) {
+                        build(entries, g, methods.get(i));
+                        g.commit();
+                    }
+                    g.flush();
+                }
+            });
+        }
+        long start = System.nanoTime();
+        for (Thread t : workers) {
+            t.start();
+        }
+        for (Thread t : workers) {
+            t.join();
+        }
+        g.flushAll();
+        long nanos = System.nanoTime() - start;
+        System.out.print(String.format("%2d threads: %d ms, %d nodes %d edges", threads, nanos/1000000, g.nodeCount(), g.edgeCount()));
+        return nanos;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("usage: bench_ConcurrentGraph <classpath> <dir> [max threads] [batch] [label type]");
+            System.exit(1);
+        }
+        int max = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+        int batch = args.length > 3 ? Integer.parseInt(args[3]) : ConcurrentGraph.DEFAULT_BATCH;
+        lm = JPDG.label_maker(args.length > 4 ? args[4] : "inst");
+        soot.Scene S = JPDG.runSoot(args[0], Arrays.asList(args[1]), new ArrayList<String>());
+        for (soot.SootClass c : S.getApplicationClasses()) {
+            for (soot.SootMethod m : c.getMethods()) {
+                Method x = new Method();
+                x.c = c;
+                x.m = m;
+                try {
+                    x.body = m.retrieveActiveBody();
+                    x.cfg = new UnitBlockGraph(x.body);
+                } catch (RuntimeException e) {
+                    continue;
+                }
+                methods.add(x);
+            }
+        }
+        System.out.println(String.format("%d methods", methods.size()));
+
+        // a round to warm up the jit
+        sequential();
+        long base = sequential();
+        for (int threads = 1; threads <= max; threads *= 2) {
+            long nanos = concurrent(threads, batch);
+            System.out.println(String.format(", speedup %.2f", (double)base/nanos));
+        }
+    }
+}
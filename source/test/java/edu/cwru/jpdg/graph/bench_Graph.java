@@ -0,0 +1,166 @@
+package edu.cwru.jpdg.graph;
+
+/* Tim Henderson (tadh@case.edu)
+ *
+ * This file is part of jpdg a library to generate Program Dependence Graphs
+ * from JVM bytecode.
+ *
+ * Copyright (c) 2014, Tim Henderson, Case Western Reserve University
+ *   Cleveland, Ohio 44106
+ *   All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc.,
+ *   51 Franklin Street, Fifth Floor,
+ *   Boston, MA  02110-1301
+ *   USA
+ * or retrieve version 2.1 at their website:
+ *   http://www.gnu.org/licenses/lgpl-2.1.html
+ */
+
+
+import java.util.*;
+
+/**
+ * Compares the heap used by the nodes of a synthetic graph with Graph
+ * against Node objects in the maps it used to keep them in, and the time
+ * and heap used to build its edges against the boxed maps (type -> src ->
+ * set of targ). Not a unit test, run it by hand:
+ *
+ *     java -cp ... edu.cwru.jpdg.graph.bench_Graph [methods] [nodes/method]
+ */
+public class bench_Graph {
+
+    static long used() {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    static final String[] types = {"", "int:0", "int:1", "ddg"};
+
+    // the edges of node i of a method, the same for both builders
+    static int targets(Random r, int n, int i, int[] out) {
+        int k = 0;
+        if (i + 1 < n) {
+            out[k++] = i + 1;
+        }
+        if (r.nextInt(4) == 0) {
+            out[k++] = r.nextInt(n);
+        }
+        return k;
+    }
+
+    public static void main(String[] args) {
+        int methods = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int per = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        int[] out = new int[2];
+
+        String[] names = new String[methods];
+        for (int m = 0; m < methods; m++) {
+            names[m] = "m" + m;
+        }
+        long[][] uids = new long[methods][per];
+
+        long before = used();
+        long start = System.nanoTime();
+        Graph g = new Graph();
+        for (int m = 0; m < methods; m++) {
+            for (int i = 0; i < per; i++) {
+                uids[m][i] = g.addNode("n" + (i % 50), "", "p", "c", "c.java", names[m], "t", i, -1, i, -1);
+            }
+        }
+        long n_nanos = System.nanoTime() - start;
+        long n_bytes = used() - before;
+
+        // the old layout of the nodes
+        before = used();
+        start = System.nanoTime();
+        HashMap<Long,Node> nodes = new HashMap<Long,Node>();
+        HashMap<Node,Long> rnodes = new HashMap<Node,Long>();
+        HashMap<Long,Integer> labels = new HashMap<Long,Integer>();
+        for (int m = 0; m < methods; m++) {
+            for (int i = 0; i < per; i++) {
+                Node n = new Node(uids[m][i], i % 50, "n" + (i % 50), "", "p", "c", "c.java", names[m], "t", i, -1, i, -1);
+                if (!rnodes.containsKey(n)) {
+                    nodes.put(n.id, n);
+                    rnodes.put(n, n.id);
+                    labels.put(n.id, i % 50);
+                }
+            }
+        }
+        long o_nanos = System.nanoTime() - start;
+        long o_bytes = used() - before;
+        System.out.println(String.format(
+            "nodes:  %d added in %d ms, %d bytes/node (objects: %d ms, %d bytes/node)",
+            g.nodeCount(), n_nanos/1000000, n_bytes/g.nodeCount(), o_nanos/1000000, o_bytes/nodes.size()));
+        nodes = null;
+        rnodes = null;
+        labels = null;
+
+        before = used();
+        start = System.nanoTime();
+        Random r = new Random(1);
+        for (int m = 0; m < methods; m++) {
+            for (int i = 0; i < per; i++) {
+                for (int k = targets(r, per, i, out) - 1; k >= 0; k--) {
+                    g.addEdge(uids[m][i], uids[m][out[k]], types[(i + k) % types.length]);
+                }
+            }
+        }
+        long g_nanos = System.nanoTime() - start;
+        long g_bytes = used() - before;
+        start = System.nanoTime();
+        String s = g.Serialize();
+        long w_nanos = System.nanoTime() - start;
+        System.out.println(String.format(
+            "graph:  %d nodes %d edges, edges added in %d ms (%d bytes, %d in the arrays), written in %d ms",
+            g.nodeCount(), g.edgeCount(), g_nanos/1000000, g_bytes, g.bytes(), w_nanos/1000000));
+
+        // the old layout, over the same uids
+        before = used();
+        start = System.nanoTime();
+        HashMap<String,HashMap<Long,Set<Long>>> edges = new HashMap<String,HashMap<Long,Set<Long>>>();
+        r = new Random(1);
+        int count = 0;
+        for (int m = 0; m < methods; m++) {
+            for (int i = 0; i < per; i++) {
+                for (int k = targets(r, per, i, out) - 1; k >= 0; k--) {
+                    String type = types[(i + k) % types.length];
+                    if (!edges.containsKey(type)) {
+                        edges.put(type, new HashMap<Long,Set<Long>>());
+                    }
+                    HashMap<Long,Set<Long>> E = edges.get(type);
+                    if (!E.containsKey(uids[m][i])) {
+                        E.put(uids[m][i], new HashSet<Long>());
+                    }
+                    if (E.get(uids[m][i]).add(uids[m][out[k]])) {
+                        count++;
+                    }
+                }
+            }
+        }
+        long b_nanos = System.nanoTime() - start;
+        long b_bytes = used() - before;
+        System.out.println(String.format(
+            "boxed:  %d edges, edges added in %d ms (%d bytes)",
+            count, b_nanos/1000000, b_bytes));
+        // keeps both alive until the end
+        if (s.length() == 0 || edges.size() != g.type_kinds.size()) {
+            System.out.println("mismatch");
+        }
+    }
+}
@@ -38,12 +38,709 @@ import org.junit.Ignore;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import java.util.*;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
 @RunWith(JUnit4.class)
 public class test_Graph {
     @Test
     public void testHello() {
         assertEquals("hello", "hello");
     }
+
+    void build_method(Graph g, long entry, String m) {
+        long a = g.addNode("a", "", "x.y", "c", "c.java", m, "t", 1, -1, 2, -1);
+        long b = g.addNode("b", "", "x.y", "c", "c.java", m, "t", 2, -1, 3, -1);
+        long c = g.addNode("c", "", "x.y", "c", "c.java", m, "t", 3, -1, 4, -1);
+        g.addEdge(entry, a, "");
+        g.addEdge(a, b, "int:0");
+        g.addEdge(a, c, "int:1");
+        g.addEdge(b, c, "");
+    }
+
+    // n methods m0 .. m(n-1) of the classes c0 .. c(classes-1) in x.y, each
+    // an entry and the body of build_method. The entries go in entries.
+    Graph methods(int n, int classes, List<Long> entries) {
+        Graph g = new Graph();
+        for (int i = 0; i < n; i++) {
+            long e = g.addNode("m" + i, "", "x.y", "c" + (i % classes), "c.java", "m" + i, "entry", i, -1, i, -1);
+            build_method(g, e, "m" + i);
+            entries.add(e);
+        }
+        return g;
+    }
+
+    // m1 and a method whose strings need escaping, which call each other.
+    // m1 is relabeled. The entries go in entries.
+    Graph odd_graph(String odd, List<Long> entries) {
+        Graph g = new Graph();
+        long e1 = g.addNode("m1", "", "x.y", "c", "c.java", "m1", "entry", 1, -1, 1, -1);
+        long e2 = g.addNode(odd, odd, "x.y", null, "c.java", "m2", "entry", -5, 0, Integer.MAX_VALUE, Integer.MIN_VALUE);
+        build_method(g, e1, "m1");
+        g.addEdge(e1, e2, EdgeKind.CALL, "");
+        g.addEdge(e2, e1, EdgeKind.DDG, odd);
+        g.setLabel(e1, "relabeled");
+        entries.add(e1);
+        entries.add(e2);
+        return g;
+    }
+
+    @Test
+    public void dedup_edges() {
+        Graph g = new Graph();
+        long e = g.addNode("m1", "", "x.y", "c", "c.java", "m1", "entry", 1, -1, 1, -1);
+        build_method(g, e, "m1");
+        build_method(g, e, "m1");
+        assertThat(g.nodeCount(), is(4));
+        assertThat(g.edgeCount(), is(4L));
+        long a = g.addNode("a", "", "x.y", "c", "c.java", "m1", "t", 1, -1, 2, -1);
+        assertThat(g.hasEdge(e, a, ""), is(true));
+        assertThat(g.hasEdge(a, e, ""), is(false));
+        assertThat(g.hasEdge(e, a, "int:0"), is(false));
+        assertThat(g.hasEdge(e, 12345L, ""), is(false));
+    }
+
+    @Test
+    public void mapped() throws IOException {
+        java.io.File dir = java.nio.file.Files.createTempDirectory("jpdg-test").toFile();
+        dir.deleteOnExit();
+        Graph heap = new Graph();
+        Graph mapped = Graph.mapped(dir);
+        for (Graph g : Arrays.asList(heap, mapped)) {
+            long e2 = g.addNode("m2", "", "x.y", "c", "c.java", "m2", "entry", 5, -1, 5, -1);
+            long e1 = g.addNode("m1", "", "x.y", "c", "c.java", "m1", "entry", 1, -1, 1, -1);
+            build_method(g, e1, "m1");
+            build_method(g, e2, "m2");
+            build_method(g, e1, "m1");
+            g.addEdge(e1, e2, "call");
+        }
+        assertThat(mapped.edgeCount(), is(9L));
+        long e1 = mapped.addNode("m1", "", "x.y", "c", "c.java", "m1", "entry", 1, -1, 1, -1);
+        long e2 = mapped.addNode("m2", "", "x.y", "c", "c.java", "m2", "entry", 5, -1, 5, -1);
+        assertThat(mapped.hasEdge(e1, e2, "call"), is(true));
+        assertThat(mapped.hasEdge(e2, e1, "call"), is(false));
+        assertThat(mapped.Serialize(), is(heap.Serialize()));
+        // every edge type shares the one file
+        for (Graph g : Arrays.asList(heap, mapped)) {
+            for (int i = 0; i < 2000; i++) {
+                g.addEdge(e1, e2, "ddg " + i);
+            }
+        }
+        assertThat(mapped.Serialize(), is(heap.Serialize()));
+        assertThat(dir.list().length, is(1));
+        mapped.close();
+        assertThat(dir.list().length, is(0));
+    }
+
+    @Test
+    public void edge_kinds() throws IOException {
+        Graph g = new Graph();
+        long e1 = g.addNode("m1", "", "x.y", "c", "c.java", "m1", "entry", 1, -1, 1, -1);
+        long e2 = g.addNode("m2", "", "x.y", "c", "c.java", "m2", "entry", 5, -1, 5, -1);
+        build_method(g, e1, "m1");
+        g.addEdge(e1, e2, EdgeKind.CALL, "");
+        assertThat(g.hasEdge(e1, e2, EdgeKind.CALL, ""), is(true));
+        assertThat(g.hasEdge(e1, e2, EdgeKind.CDG, ""), is(false));
+        assertThat(g.hasEdge(e1, e2, ""), is(false));
+
+        Graph read = new Graph();
+        read.Read(new ByteArrayInputStream(g.Serialize().getBytes("UTF-8")));
+        assertThat(read.hasEdge(e1, e2, EdgeKind.CALL, ""), is(true));
+        assertThat(read.Serialize(), is(g.Serialize()));
+
+        g.writeKinds(EnumSet.of(EdgeKind.CALL));
+        String out = g.Serialize();
+        assertThat(out, containsString("\"kind\":\"call\""));
+        assertThat(out, not(containsString("\"kind\":\"cdg\"")));
+        assertThat(out, not(containsString("\"kind\":\"ddg\"")));
+    }
+
+    @Test
+    public void freeze() {
+        Graph g = new Graph();
+        long e1 = g.addNode("m1", "", "x.y", "c", "c.java", "m1", "entry", 1, -1, 1, -1);
+        long e2 = g.addNode("m2", "", "x.y", "c", "c.java", "m2", "entry", 5, -1, 5, -1);
+        build_method(g, e1, "m1");
+        g.addEdge(e1, e2, EdgeKind.CALL, "");
+        long a = g.addNode("a", "", "x.y", "c", "c.java", "m1", "t", 1, -1, 2, -1);
+        long b = g.addNode("b", "", "x.y", "c", "c.java", "m1", "t", 2, -1, 3, -1);
+        long c = g.addNode("c", "", "x.y", "c", "c.java", "m1", "t", 3, -1, 4, -1);
+        g.addEdge(a, b, "int:1");
+        FrozenGraph f = g.freeze();
+        g.addEdge(b, a, "int:0");
+
+        assertThat(f.nodeCount(), is(5));
+        assertThat(f.edgeCount(), is(6L));
+        int v1 = f.vertex(e1), v2 = f.vertex(e2), va = f.vertex(a), vb = f.vertex(b), vc = f.vertex(c);
+        assertThat(f.uid(va), is(a));
+        assertThat(f.label(va), is("a"));
+        assertThat(f.node(vc).start_line, is(3));
+        assertThat(f.outDegree(v1), is(2));
+        assertThat(f.outDegree(v1, EdgeKind.CALL), is(1));
+        assertThat(f.kids(v1, EdgeKind.CALL)[0], is(v2));
+        assertThat(f.parents(v2)[0], is(v1));
+        assertThat(f.outDegree(va, EdgeKind.DDG), is(3));
+        assertThat(f.kidLabels(va, EdgeKind.DDG), is(new String[]{"int:0", "int:1", "int:1"}));
+        assertThat(f.inDegree(vc), is(2));
+        assertThat(f.parents(vb), is(new int[]{va, va}));
+        assertThat(f.hasEdge(va, vb, EdgeKind.DDG, "int:1"), is(true));
+        assertThat(f.hasEdge(vb, va, EdgeKind.DDG, "int:0"), is(false));
+    }
+
+    @Test
+    public void concurrent() throws InterruptedException {
+        final int methods = 200;
+        Graph seq = new Graph();
+        final ConcurrentGraph par = new ConcurrentGraph(64);
+        final long[] entries = new long[methods];
+        for (int m = 0; m < methods; m++) {
+            entries[m] = seq.addNode("m" + m, "", "x.y", "c", "c.java", "m" + m, "entry", m, -1, m, -1);
+            par.addNode("m" + m, "", "x.y", "c", "c.java", "m" + m, "entry", m, -1, m, -1);
+        }
+        par.flush();
+        for (int m = 0; m < methods; m++) {
+            build_method(seq, entries[m], "m" + m);
+        }
+        final java.util.concurrent.atomic.AtomicInteger next = new java.util.concurrent.atomic.AtomicInteger();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 8; t++) {
+            threads.add(new Thread() {
+                public void run() {
+                    for (int m = next.getAndIncrement(); m < methods; m = next.getAndIncrement()) {
+                        build_method(par, entries[m], "m" + m);
+                        assertThat(par.label(entries[m]), is("m" + m));
+                        par.commit();
+                    }
+                }
+            });
+        }
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        par.flushAll();
+        assertThat(par.nodeCount(), is(seq.nodeCount()));
+        assertThat(par.Serialize(), is(seq.Serialize()));
+    }
+
+    @Test
+    public void writer_matches_gson() throws IOException {
+        Graph g = new Graph();
+        String odd = "a\"b\\c\td\ne\rf\bg\fh\u0001<i>&j='k' \u00e9\u4e2d\ud83d\ude00\u2028\u2029\ud800";
+        long a = g.addNode(odd, odd, "x.y", null, "c.java", "m", "t", -1, 0, Integer.MAX_VALUE, Integer.MIN_VALUE);
+        long b = g.addNode("b", "", "", "c", "c.java", "m", "t", 2, -1, 3, -1);
+        g.addEdge(a, b, EdgeKind.DDG, odd);
+        g.addEdge(b, a, EdgeKind.CFG, "cfg");
+        String expected =
+            g.node(a).Serialize() + "\n" +
+            g.node(b).Serialize() + "\n" +
+            new Edge(a, b, EdgeKind.DDG, odd, g).Serialize() + "\n" +
+            new Edge(b, a, EdgeKind.CFG, "cfg", g).Serialize() + "\n";
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        g.Write(out);
+        assertThat(out.toByteArray(), is(expected.getBytes("UTF-8")));
+    }
+
+    @Test
+    public void merge_shards() {
+        Graph seq = new Graph();
+        long e1 = seq.addNode("m1", "", "x.y", "c", "c.java", "m1", "entry", 1, -1, 1, -1);
+        long e2 = seq.addNode("m2", "", "x.y", "c", "c.java", "m2", "entry", 5, -1, 5, -1);
+        build_method(seq, e1, "m1");
+        build_method(seq, e2, "m2");
+
+        Graph par = new Graph();
+        par.addNode("m1", "", "x.y", "c", "c.java", "m1", "entry", 1, -1, 1, -1);
+        par.addNode("m2", "", "x.y", "c", "c.java", "m2", "entry", 5, -1, 5, -1);
+        Graph s1 = par.shard();
+        Graph s2 = par.shard();
+        build_method(s2, e2, "m2");
+        build_method(s1, e1, "m1");
+        par.merge(s1);
+        par.merge(s2);
+
+        assertThat(par.Serialize(), is(seq.Serialize()));
+    }
+
+    @Test
+    public void stable_uids() {
+        Graph g1 = new Graph();
+        g1.reserve(Arrays.asList("m1", "m2"));
+        long a1 = g1.addNode("m1", "", "x.y", "c", "c.java", "m1", "entry", 1, -1, 1, -1);
+        long a2 = g1.addNode("m2", "", "x.y", "c", "c.java", "m2", "entry", 5, -1, 5, -1);
+        build_method(g1, a1, "m1");
+        build_method(g1, a2, "m2");
+
+        Graph g2 = new Graph();
+        g2.reserve(Arrays.asList("m2", "m1"));
+        long b2 = g2.addNode("m2", "", "x.y", "c", "c.java", "m2", "entry", 5, -1, 5, -1);
+        build_method(g2, b2, "m2");
+        long b1 = g2.addNode("m1", "", "x.y", "c", "c.java", "m1", "entry", 1, -1, 1, -1);
+        build_method(g2, b1, "m1");
+
+        assertThat(b1, is(a1));
+        assertThat(b2, is(a2));
+        assertThat(g2.Serialize(), is(g1.Serialize()));
+    }
+
+    @Test
+    public void write_shards() throws IOException {
+        Graph seq = new Graph();
+        long e1 = seq.addNode("m1", "", "x.y", "c", "c.java", "m1", "entry", 1, -1, 1, -1);
+        long e2 = seq.addNode("m2", "", "x.y", "c", "c.java", "m2", "entry", 5, -1, 5, -1);
+        build_method(seq, e1, "m1");
+        build_method(seq, e2, "m2");
+
+        Graph entries = new Graph();
+        entries.addNode("m1", "", "x.y", "c", "c.java", "m1", "entry", 1, -1, 1, -1);
+        entries.addNode("m2", "", "x.y", "c", "c.java", "m2", "entry", 5, -1, 5, -1);
+        Graph s1 = entries.shard();
+        Graph s2 = entries.shard();
+        build_method(s1, e1, "m1");
+        build_method(s2, e2, "m2");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        entries.Write(out);
+        entries.WriteShard(s1, out);
+        entries.WriteShard(s2, out);
+
+        Set<String> expected = new HashSet<String>(Arrays.asList(seq.Serialize().split("\n")));
+        Set<String> streamed = new HashSet<String>(Arrays.asList(out.toString("UTF-8").split("\n")));
+        assertThat(streamed, is(expected));
+    }
+
+    @Test
+    public void binary_format() throws IOException {
+        List<Long> entries = new ArrayList<Long>();
+        Graph g = odd_graph("a\"b\u00e9\u4e2d\ud83d\ude00", entries);
+
+        ByteArrayOutputStream bin = new ByteArrayOutputStream();
+        BinaryFormat.write(g, bin);
+        Graph read = BinaryFormat.read(new ByteArrayInputStream(bin.toByteArray()));
+        assertThat(read.Serialize(), is(g.Serialize()));
+        assertThat(read.label(entries.get(0)), is("relabeled"));
+        assertThat(bin.size() < g.Serialize().getBytes("UTF-8").length / 4, is(true));
+    }
+
+    @Test
+    public void block_gzip() throws IOException {
+        List<Long> entries = new ArrayList<Long>();
+        Graph g = methods(50, 1, entries);
+        java.io.File f = java.io.File.createTempFile("jpdg-test", ".veg.gz");
+        f.deleteOnExit();
+        java.io.OutputStream out = new BlockGzipOutputStream(new java.io.FileOutputStream(f), 4, 1024);
+        g.writeGrouped(true);
+        g.Write(out);
+        out.close();
+
+        ByteArrayOutputStream all = new ByteArrayOutputStream();
+        java.io.InputStream in = new java.util.zip.GZIPInputStream(new java.io.FileInputStream(f));
+        byte[] buf = new byte[4096];
+        for (int n; (n = in.read(buf)) > 0; ) {
+            all.write(buf, 0, n);
+        }
+        in.close();
+        assertThat(all.toString("UTF-8"), is(g.Serialize()));
+        g.writeGrouped(false);
+        List<String> grouped = new ArrayList<String>(Arrays.asList(all.toString("UTF-8").split("\n")));
+        List<String> plain = new ArrayList<String>(Arrays.asList(g.Serialize().split("\n")));
+        Collections.sort(grouped);
+        Collections.sort(plain);
+        assertThat(grouped, is(plain));
+
+        List<BlockGzipOutputStream.Block> blocks = BlockGzipOutputStream.index(f);
+        assertThat(blocks.size() > 4, is(true));
+        java.io.BufferedReader r = new java.io.BufferedReader(new java.io.InputStreamReader(BlockGzipOutputStream.open(f, "m7"), "UTF-8"));
+        List<String> lines = new ArrayList<String>();
+        for (String line; (line = r.readLine()) != null; ) {
+            lines.add(line);
+        }
+        assertThat(lines, hasItem(g.node(entries.get(7)).Serialize()));
+        assertThat(lines.size() < g.Serialize().split("\n").length / 4, is(true));
+        // grouped by method, the blocks of m7 follow one another
+        List<Integer> m7 = new ArrayList<Integer>();
+        for (int i = 0; i < blocks.size(); i++) {
+            if (blocks.get(i).overlaps(entries.get(7), entries.get(7) | Graph.LOCAL_MASK)) {
+                m7.add(i);
+            }
+        }
+        assertThat(m7.get(m7.size() - 1) - m7.get(0), is(m7.size() - 1));
+        byte[] labels = "labels\t[\"a:1\"]\n".getBytes("UTF-8");
+        assertThat(BlockGzipOutputStream.key(labels, 0, labels.length), is(Long.MIN_VALUE));
+    }
+
+    @Test
+    public void graph_reader() throws IOException {
+        Graph g = methods(20, 1, new ArrayList<Long>());
+        String odd = "a\"b\\c\td\ne\u00e9\u4e2d\ud83d\ude00\u2028<i>&j='k'";
+        long a = g.addNode(odd, odd, "x.y", null, "c.java", "m", "t", -1, 0, Integer.MAX_VALUE, Integer.MIN_VALUE);
+        long b = g.addNode("b", "", "", "c", "c.java", "m", "t", 2, -1, 3, -1);
+        g.addEdge(a, b, EdgeKind.DDG, odd);
+        g.addEdge(b, a, EdgeKind.CALL, "");
+        java.io.File f = java.io.File.createTempFile("jpdg-test", ".veg");
+        f.deleteOnExit();
+        java.io.OutputStream out = new java.io.FileOutputStream(f);
+        g.Write(out);
+        out.close();
+
+        Graph read = new Graph();
+        GraphReader.read(f, read, 3, 100);
+        assertThat(read.Serialize(), is(g.Serialize()));
+        assertThat(GraphReader.read(f).Serialize(), is(g.Serialize()));
+    }
+
+    @Test
+    public void method_index() throws IOException {
+        List<Long> entries = new ArrayList<Long>();
+        Graph g = methods(10, 3, entries);
+        g.addEdge(entries.get(1), entries.get(2), EdgeKind.CALL, "");
+        java.io.File f = java.io.File.createTempFile("jpdg-test", ".veg");
+        java.io.File idx = new java.io.File(f.getPath() + ".idx");
+        f.deleteOnExit();
+        idx.deleteOnExit();
+        MethodIndex.Builder builder = new MethodIndex.Builder();
+        g.writeIndex(builder);
+        java.io.OutputStream out = new java.io.FileOutputStream(f);
+        g.Write(out);
+        out.close();
+        builder.write(idx);
+        g.writeIndex(null);
+        assertThat(GraphReader.read(f).Serialize(), is(g.Serialize()));
+
+        MethodIndex index = MethodIndex.open(idx);
+        assertThat(index.size(), is(10));
+        assertThat(index.find("x.y").size(), is(10));
+        assertThat(index.find("x.y", "c1").size(), is(3));
+        assertThat(index.find("x.y", "c").size(), is(0));
+        assertThat(index.find("x.y", "c1", "m").size(), is(0));
+        List<MethodIndex.Entry> m1 = index.find("x.y", "c1", "m1");
+        assertThat(m1.size(), is(1));
+        String lines = new String(MethodIndex.read(f, m1.get(0)), "UTF-8");
+        assertThat(lines, startsWith(g.node(entries.get(1)).Serialize() + "\n"));
+        assertThat(lines, containsString("\"kind\":\"call\""));
+        for (String line : lines.split("\n")) {
+            // the id of a vertex or the src of an edge
+            long uid = Long.parseLong(line.replaceFirst("^[^:]*:([0-9]+),.*$", "$1"));
+            assertThat(uid >> Graph.LOCAL_BITS, is(entries.get(1) >> Graph.LOCAL_BITS));
+        }
+    }
+
+    @Test
+    public void partitions() throws IOException {
+        Graph seq = new Graph();
+        Graph entries = new Graph();
+        for (Graph g : Arrays.asList(seq, entries)) {
+            for (int i = 0; i < 6; i++) {
+                g.addNode("m" + i, "", "p" + (i / 3), "c" + i, "c.java", "m" + i, "entry", i, -1, i, -1);
+            }
+        }
+        List<Graph> shards = new ArrayList<Graph>();
+        for (int i = 0; i < 6; i++) {
+            long e = seq.addNode("m" + i, "", "p" + (i / 3), "c" + i, "c.java", "m" + i, "entry", i, -1, i, -1);
+            build_method(seq, e, "m" + i);
+            Graph shard = entries.shard();
+            build_method(shard, e, "m" + i);
+            shards.add(shard);
+        }
+        for (int classes : new int[]{0, 4}) {
+            java.io.File dir = java.nio.file.Files.createTempDirectory("jpdg-test").toFile();
+            PartitionedOutput parts = new PartitionedOutput(dir, entries, classes);
+            parts.writeEntries();
+            for (int i = 0; i < 6; i++) {
+                parts.write("p" + (i / 3), "c" + i, shards.get(i));
+            }
+            parts.close();
+
+            com.google.gson.JsonObject manifest = new com.google.gson.JsonParser().parse(
+                new java.io.InputStreamReader(new java.io.FileInputStream(new java.io.File(dir, PartitionedOutput.MANIFEST)), "UTF-8")).getAsJsonObject();
+            assertThat(manifest.get("complete").getAsBoolean(), is(true));
+            com.google.gson.JsonArray partitions = manifest.getAsJsonArray("partitions");
+            assertThat(partitions.size(), is(3));
+            Graph read = new Graph();
+            long vertices = 0;
+            for (com.google.gson.JsonElement p : partitions) {
+                java.io.File f = new java.io.File(dir, p.getAsJsonObject().get("file").getAsString());
+                assertThat(p.getAsJsonObject().get("bytes").getAsLong(), is(f.length()));
+                vertices += p.getAsJsonObject().get("vertices").getAsLong();
+                GraphReader.read(f, read);
+                f.delete();
+            }
+            assertThat(partitions.get(1).getAsJsonObject().getAsJsonArray("classes").size(), is(classes == 0 ? 3 : 4));
+            assertThat(vertices, is((long)seq.nodeCount()));
+            assertThat(read.Serialize(), is(seq.Serialize()));
+            new java.io.File(dir, PartitionedOutput.MANIFEST).delete();
+            new java.io.File(dir, PartitionedOutput.LABELS).delete();
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void checkpoint() throws IOException {
+        Graph seq = new Graph();
+        List<Graph> entries = Arrays.asList(new Graph(), new Graph());
+        for (Graph g : entries) {
+            for (int i = 0; i < 6; i++) {
+                g.addNode("m" + i, "", "p", "c" + i, "c.java", "m" + i, "entry", i, -1, i, -1);
+            }
+        }
+        List<Long> uids = new ArrayList<Long>();
+        for (int i = 0; i < 6; i++) {
+            long e = seq.addNode("m" + i, "", "p", "c" + i, "c.java", "m" + i, "entry", i, -1, i, -1);
+            build_method(seq, e, "m" + i);
+            uids.add(e);
+        }
+        java.io.File dir = java.nio.file.Files.createTempDirectory("jpdg-test").toFile();
+
+        // a run which dies while writing c2, part way through its line in classes
+        Checkpoint first = new Checkpoint(dir, entries.get(0), checkpoint_run("op"));
+        assertThat(first.resume().size(), is(0));
+        for (int i = 0; i < 3; i++) {
+            Graph shard = entries.get(0).shard();
+            build_method(shard, uids.get(i), "m" + i);
+            first.add("c" + i, shard);
+        }
+        first.veg.flush();
+        first.classes.write("c2\t9".getBytes("UTF-8"));
+        first.records.close();
+        first.classes.close();
+
+        Checkpoint second = new Checkpoint(dir, entries.get(1), checkpoint_run("op"));
+        Set<String> done = second.resume();
+        assertThat(done, is((Set<String>)new HashSet<String>(Arrays.asList("c0", "c1"))));
+        for (int i = 2; i < 6; i++) {
+            Graph shard = entries.get(1).shard();
+            build_method(shard, uids.get(i), "m" + i);
+            second.add("c" + i, shard);
+            entries.get(1).merge(shard);
+        }
+        second.close();
+        assertThat(entries.get(1).Serialize(), is(seq.Serialize()));
+
+        new java.io.File(dir, Checkpoint.RECORDS).delete();
+        new java.io.File(dir, Checkpoint.CLASSES).delete();
+        new java.io.File(dir, Checkpoint.RUN).delete();
+        dir.delete();
+    }
+
+    static String checkpoint_run(String label_type) {
+        return Checkpoint.run(label_type, Arrays.asList("classes"), new ArrayList<String>(), EnumSet.allOf(EdgeKind.class), 0, 1);
+    }
+
+    @Test
+    public void checkpoint_of_another_run() throws IOException {
+        java.io.File dir = java.nio.file.Files.createTempDirectory("jpdg-test").toFile();
+        Checkpoint first = new Checkpoint(dir, new Graph(), checkpoint_run("op"));
+        first.resume();
+        first.start("c0");
+        first.close();
+        assertThat(new Checkpoint(dir, new Graph(), checkpoint_run("op")).resume().size(), is(1));
+        try {
+            new Checkpoint(dir, new Graph(), checkpoint_run("inst")).resume();
+            assertThat("resumed with another label type", false);
+        } catch (IOException e) {
+            assertThat(e.getMessage(), containsString("now label_type\tinst"));
+        }
+        // written before the checkpoint said what run it was
+        new java.io.File(dir, Checkpoint.RUN).delete();
+        try {
+            new Checkpoint(dir, new Graph(), checkpoint_run("op")).resume();
+            assertThat("resumed without a run", false);
+        } catch (IOException e) {
+        }
+        new java.io.File(dir, Checkpoint.RECORDS).delete();
+        new java.io.File(dir, Checkpoint.CLASSES).delete();
+        dir.delete();
+    }
+
+    // a run over the classes p.c0 .. p.c(n-1), whose one method calls the
+    // next one, building only the classes the cache in dir (when given) misses
+    Graph cache_run(java.io.File dir, java.io.File classes, int n, int hits) throws IOException {
+        Graph g = new Graph();
+        Map<String,Long> entries = new HashMap<String,Long>();
+        for (int i = 0; i < n; i++) {
+            entries.put("m" + i, g.addNode("m" + i, "", "p", "p.c" + i, "c.java", "m" + i, "entry", i, -1, i, -1));
+        }
+        MethodCache cache = null;
+        if (dir != null) {
+            cache = new MethodCache(dir, g, "op", Arrays.asList(classes.getPath()));
+        }
+        for (int i = 0; i < n; i++) {
+            Map<String,Integer> lines = null;
+            if (cache != null) {
+                lines = cache.lines("p.c" + i, Arrays.asList("m" + i));
+            }
+            if (cache != null && cache.load("p.c" + i, Arrays.asList("m" + i), entries)) {
+                assertThat(lines, is(Collections.singletonMap("m" + i, 10 + i)));
+                continue;
+            }
+            assertThat(lines, is(nullValue()));
+            if (cache != null) {
+                cache.keep_lines("p.c" + i, Collections.singletonMap("m" + i, 10 + i));
+            }
+            Graph shard = g.shard();
+            build_method(shard, entries.get("m" + i), "m" + i);
+            long a = shard.addNode("a", "", "x.y", "c", "c.java", "m" + i, "t", 1, -1, 2, -1);
+            if (entries.containsKey("m" + (i + 1))) {
+                shard.addEdge(a, entries.get("m" + (i + 1)), EdgeKind.CALL, "");
+            }
+            if (cache != null) {
+                cache.add("p.c" + i, shard);
+            }
+            g.merge(shard);
+        }
+        if (cache != null) {
+            cache.close();
+            assertThat(cache.hits, is(hits));
+        }
+        return g;
+    }
+
+    @Test
+    public void method_cache() throws IOException {
+        java.io.File dir = java.nio.file.Files.createTempDirectory("jpdg-test").toFile();
+        java.io.File classes = new java.io.File(dir, "classes");
+        new java.io.File(classes, "p").mkdirs();
+        for (int i = 0; i < 5; i++) {
+            java.nio.file.Files.write(new java.io.File(classes, "p/c" + i + ".class").toPath(), ("v1 c" + i).getBytes("UTF-8"));
+        }
+        java.io.File cache = new java.io.File(dir, "cache");
+        String built = cache_run(null, null, 5, 0).Serialize();
+        assertThat(built, containsString("\"kind\":\"call\""));
+        assertThat(cache_run(cache, classes, 5, 0).Serialize(), is(built));
+        assertThat(cache_run(cache, classes, 5, 5).Serialize(), is(built));
+
+        java.nio.file.Files.write(new java.io.File(classes, "p/c2.class").toPath(), "v2 c2".getBytes("UTF-8"));
+        assertThat(cache_run(cache, classes, 5, 4).Serialize(), is(built));
+        assertThat(cache_run(cache, classes, 5, 5).Serialize(), is(built));
+
+        // m4 is gone, the cached call of m3 to it must be too
+        assertThat(cache_run(cache, classes, 4, 4).Serialize(), is(cache_run(null, null, 4, 0).Serialize()));
+
+        org.apache.commons.io.FileUtils.deleteDirectory(dir);
+    }
+
+    // the entry of method m of class p.c
+    long watch_entry(Graph g, String p, String c, String m) {
+        return g.addNode(m, "", p, p + "." + c, "c.java", m, "entry", 1, -1, 1, -1);
+    }
+
+    // the body of method m, which calls callee (when not -1). version picks
+    // between two builds of it.
+    void watch_method(Graph g, String p, String c, String m, long entry, long callee, int version) {
+        long a = g.addNode("a" + version, "", p, p + "." + c, "c.java", m, "t", 1, -1, 2, -1);
+        g.addEdge(entry, a, "");
+        for (int i = 0; i < version; i++) {
+            long b = g.addNode("b" + i, "", p, p + "." + c, "c.java", m, "t", 2, -1, 3, -1);
+            g.addEdge(a, b, "int:" + i);
+        }
+        if (callee >= 0) {
+            g.addEdge(a, callee, EdgeKind.CALL, "");
+        }
+    }
+
+    // m0, m1 in p0 and m2 in p1, m1 and m2 call each other
+    Graph watch_graph(int m2_version) {
+        Graph g = new Graph();
+        long m0 = watch_entry(g, "p0", "c0", "m0");
+        long m1 = watch_entry(g, "p0", "c1", "m1");
+        long m2 = watch_entry(g, "p1", "c2", "m2");
+        watch_method(g, "p0", "c0", "m0", m0, -1, 1);
+        watch_method(g, "p0", "c1", "m1", m1, m2, 1);
+        watch_method(g, "p1", "c2", "m2", m2, m1, m2_version);
+        return g;
+    }
+
+    Graph read_partitions(java.io.File dir) throws IOException {
+        com.google.gson.JsonObject manifest = new com.google.gson.JsonParser().parse(
+            new java.io.InputStreamReader(new java.io.FileInputStream(new java.io.File(dir, PartitionedOutput.MANIFEST)), "UTF-8")).getAsJsonObject();
+        assertThat(manifest.get("complete").getAsBoolean(), is(true));
+        Graph read = new Graph();
+        for (com.google.gson.JsonElement p : manifest.getAsJsonArray("partitions")) {
+            GraphReader.read(new java.io.File(dir, p.getAsJsonObject().get("file").getAsString()), read);
+        }
+        return read;
+    }
+
+    @Test
+    public void watch_patch() throws IOException {
+        Graph g = watch_graph(1);
+        long m1 = g.addNode("m1", "", "p0", "p0.c1", "c.java", "m1", "entry", 1, -1, 1, -1);
+        long m2 = g.addNode("m2", "", "p1", "p1.c2", "c.java", "m2", "entry", 1, -1, 1, -1);
+        java.io.File dir = java.nio.file.Files.createTempDirectory("jpdg-test").toFile();
+        PartitionedOutput parts = new PartitionedOutput(dir, g, 0);
+        parts.rewrite(g, Arrays.asList("p0", "p1"));
+        assertThat(read_partitions(dir).Serialize(), is(g.Serialize()));
+        byte[] p0 = java.nio.file.Files.readAllBytes(new java.io.File(dir, "part-00001.veg").toPath());
+
+        // m2 changes: out with it, and in with the new build
+        List<Edge> dangling = new ArrayList<Edge>();
+        Graph patched = g.without(new HashSet<String>(Arrays.asList("m2")), dangling);
+        assertThat(dangling.size(), is(1));
+        assertThat(watch_entry(patched, "p1", "c2", "m2"), is(m2));
+        watch_method(patched, "p1", "c2", "m2", m2, m1, 2);
+        assertThat(patched.restore(dangling).size(), is(0));
+        assertThat(patched.hasEdge(patched.addNode("a1", "", "p0", "p0.c1", "c.java", "m1", "t", 1, -1, 2, -1), m2, EdgeKind.CALL, ""), is(true));
+        assertThat(patched.Serialize(), is(watch_graph(2).Serialize()));
+
+        parts.rewrite(patched, Arrays.asList("p1"));
+        assertThat(java.nio.file.Files.readAllBytes(new java.io.File(dir, "part-00001.veg").toPath()), is(p0));
+        assertThat(read_partitions(dir).Serialize(), is(patched.Serialize()));
+
+        // p1 is gone altogether, and so is the call to it from p0
+        dangling.clear();
+        patched = patched.without(new HashSet<String>(Arrays.asList("m2")), dangling);
+        List<Edge> lost = patched.restore(dangling);
+        assertThat(lost.size(), is(1));
+        assertThat(patched.node(lost.get(0).src).package_name, is("p0"));
+        parts.rewrite(patched, Arrays.asList("p0", "p1"));
+        assertThat(read_partitions(dir).Serialize(), is(patched.Serialize()));
+        org.apache.commons.io.FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void normalized() throws IOException {
+        Graph g = odd_graph("a\"b\u00e9\u4e2d\ud83d\ude00\n", new ArrayList<Long>());
+        String usual = g.Serialize();
+
+        g.writeNormalized(true);
+        String normal = g.Serialize();
+        assertThat(normal, startsWith("labels\t[\"m1\","));
+        assertThat(normal, not(containsString("src_label")));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Normalized.expand(new ByteArrayInputStream(normal.getBytes("UTF-8")), out);
+        assertThat(out.toString("UTF-8"), is(usual));
+    }
+
+    @Test
+    public void parsemis() throws IOException {
+        Graph g = new Graph();
+        long e1 = g.addNode("m1", "", "x.y", "c", "c.java", "m1", "entry", 1, -1, 1, -1);
+        long e2 = g.addNode("m2", "", "x.y", "c", "c.java", "m2", "entry", 5, -1, 5, -1);
+        build_method(g, e1, "m1");
+        g.addEdge(e1, e2, EdgeKind.CALL, "");
+        java.io.StringWriter out = new java.io.StringWriter();
+        java.io.StringWriter ids = new java.io.StringWriter();
+        Parsemis.write(g, out, ids, "method_name", "label", false);
+        String m1 =
+            " {\n" +
+            "n0 [shape=rect, label=\"m1\"];\n" +
+            "n1 [shape=rect, label=\"a\"];\n" +
+            "n2 [shape=rect, label=\"b\"];\n" +
+            "n3 [shape=rect, label=\"c\"];\n" +
+            "n0->n1 [label=\"\"];\n" +
+            "n2->n3 [label=\"\"];\n" +
+            "n1->n2 [label=\"int:0\"];\n" +
+            "n1->n3 [label=\"int:1\"];\n" +
+            "\n}\n";
+        assertThat(out.toString(), containsString(m1));
+        assertThat(out.toString(), containsString(" {\nn0 [shape=rect, label=\"m2\"];\n\n}\n"));
+        assertThat(ids.toString(), containsString("\t" + e1 + " " + (e1 + 1) + " " + (e1 + 2) + " " + (e1 + 3) + "\n"));
+        assertThat(Parsemis.html("a<b\n\"\u00e9"), is(
+            "<tr><td align=\"left\">a&lt;b</td></tr><tr><td align=\"left\">\\\"&#233;</td></tr>"));
+    }
 /*
     String GS =
       "vertex	{\"id\":0,\"label\":\"a\",\"package_name\":\"x.y\",\"class_name\":\"c\",\"method_name\":\"m\",\"type\":\"t\",\"start_line\":1,\"start_column\":-1,\"end_line\":2,\"end_column\":-1}\n" +
@@ -86,5 +783,29 @@ public class test_Graph {
         assertThat(a.Serialize(), is(V));
     }
     */
-}
 
+    @Test
+    public void read_parts() throws IOException {
+        Graph seq = new Graph();
+        long e1 = seq.addNode("m1", "", "x.y", "c", "c.java", "m1", "entry", 1, -1, 1, -1);
+        long e2 = seq.addNode("m2", "", "x.y", "d", "d.java", "m2", "entry", 5, -1, 5, -1);
+        build_method(seq, e1, "m1");
+        build_method(seq, e2, "m2");
+        seq.addEdge(e2 + 3, e1, "");
+
+        Graph p1 = new Graph();
+        p1.addNode("m1", "", "x.y", "c", "c.java", "m1", "entry", 1, -1, 1, -1);
+        p1.addNode("m2", "", "x.y", "d", "d.java", "m2", "entry", 5, -1, 5, -1);
+        build_method(p1, e1, "m1");
+        Graph p2 = new Graph();
+        p2.addNode("m1", "", "x.y", "c", "c.java", "m1", "entry", 1, -1, 1, -1);
+        p2.addNode("m2", "", "x.y", "d", "d.java", "m2", "entry", 5, -1, 5, -1);
+        build_method(p2, e2, "m2");
+        p2.addEdge(e2 + 3, e1, "");
+
+        Graph merged = new Graph();
+        merged.Read(new ByteArrayInputStream(p1.Serialize().getBytes("UTF-8")));
+        merged.Read(new ByteArrayInputStream(p2.Serialize().getBytes("UTF-8")));
+        assertThat(merged.Serialize(), is(seq.Serialize()));
+    }
+}
@@ -79,20 +79,25 @@ public class pDG_test {
         return pDG;
     }
 
+    // the uid of the i'th block of the method
+    long uid(pDG_Builder pDG, int i) {
+        return pDG.block_uids.get(i);
+    }
+
     @Test
     public void test_fib_cfg() throws pDG_Builder.Error {
         pDG_Builder pDG = fib_pDG_Builder("fib");
         pDG.build_cfg();
         Dotty.graphviz("test.pDG.Fib.fib.cfg", Dotty.dotty(pDG.g.Serialize()));
 
-        assertThat(pDG.g.hasEdge(0, 1, "cfg"), is(true));
-        assertThat(pDG.g.hasEdge(1, 2, "cfg"), is(true));
-        assertThat(pDG.g.hasEdge(1, 3, "cfg"), is(true));
-        assertThat(pDG.g.hasEdge(2, 6, "cfg"), is(true));
-        assertThat(pDG.g.hasEdge(3, 4, "cfg"), is(true));
-        assertThat(pDG.g.hasEdge(4, 6, "cfg"), is(true));
-        assertThat(pDG.g.hasEdge(4, 5, "cfg"), is(true));
-        assertThat(pDG.g.hasEdge(5, 4, "cfg"), is(true));
+        assertThat(pDG.g.hasEdge(uid(pDG, 0), uid(pDG, 1), "cfg"), is(true));
+        assertThat(pDG.g.hasEdge(uid(pDG, 1), uid(pDG, 2), "cfg"), is(true));
+        assertThat(pDG.g.hasEdge(uid(pDG, 1), uid(pDG, 3), "cfg"), is(true));
+        assertThat(pDG.g.hasEdge(uid(pDG, 2), uid(pDG, 6), "cfg"), is(true));
+        assertThat(pDG.g.hasEdge(uid(pDG, 3), uid(pDG, 4), "cfg"), is(true));
+        assertThat(pDG.g.hasEdge(uid(pDG, 4), uid(pDG, 6), "cfg"), is(true));
+        assertThat(pDG.g.hasEdge(uid(pDG, 4), uid(pDG, 5), "cfg"), is(true));
+        assertThat(pDG.g.hasEdge(uid(pDG, 5), uid(pDG, 4), "cfg"), is(true));
     }
 
     // @Test
@@ -101,11 +106,11 @@ public class pDG_test {
         pDG.build_cfg();
         Dotty.graphviz("test.pDG.Fib.fib_caller.cfg", Dotty.dotty(pDG.g.Serialize()));
 
-        assertThat(pDG.g.hasEdge(0, 1, "cfg"), is(true));
-        assertThat(pDG.g.hasEdge(1, 2, "cfg"), is(true));
-        assertThat(pDG.g.hasEdge(2, 3, "cfg"), is(true));
-        assertThat(pDG.g.hasEdge(3, 4, "cfg"), is(true));
-        assertThat(pDG.g.hasEdge(4, 5, "cfg"), is(true));
+        assertThat(pDG.g.hasEdge(uid(pDG, 0), uid(pDG, 1), "cfg"), is(true));
+        assertThat(pDG.g.hasEdge(uid(pDG, 1), uid(pDG, 2), "cfg"), is(true));
+        assertThat(pDG.g.hasEdge(uid(pDG, 2), uid(pDG, 3), "cfg"), is(true));
+        assertThat(pDG.g.hasEdge(uid(pDG, 3), uid(pDG, 4), "cfg"), is(true));
+        assertThat(pDG.g.hasEdge(uid(pDG, 4), uid(pDG, 5), "cfg"), is(true));
     }
 
     // @Test
@@ -114,12 +119,12 @@ public class pDG_test {
         pDG.build_cdg();
         Dotty.graphviz("test.pDG.Fib.fib.cdg", Dotty.dotty(pDG.g.Serialize()));
 
-        assertThat(pDG.g.hasEdge(0, 1, ""), is(true));
-        assertThat(pDG.g.hasEdge(1, 2, ""), is(true));
-        assertThat(pDG.g.hasEdge(1, 3, ""), is(true));
-        assertThat(pDG.g.hasEdge(0, 6, ""), is(true));
-        assertThat(pDG.g.hasEdge(1, 4, ""), is(true));
-        assertThat(pDG.g.hasEdge(4, 5, ""), is(true));
+        assertThat(pDG.g.hasEdge(uid(pDG, 0), uid(pDG, 1), ""), is(true));
+        assertThat(pDG.g.hasEdge(uid(pDG, 1), uid(pDG, 2), ""), is(true));
+        assertThat(pDG.g.hasEdge(uid(pDG, 1), uid(pDG, 3), ""), is(true));
+        assertThat(pDG.g.hasEdge(uid(pDG, 0), uid(pDG, 6), ""), is(true));
+        assertThat(pDG.g.hasEdge(uid(pDG, 1), uid(pDG, 4), ""), is(true));
+        assertThat(pDG.g.hasEdge(uid(pDG, 4), uid(pDG, 5), ""), is(true));
     }
 
     @Test
@@ -128,16 +133,16 @@ public class pDG_test {
         pDG.build_ddg();
         Dotty.graphviz("test.pDG.Fib.fib.ddg", Dotty.dotty(pDG.g.Serialize()));
 
-        assertThat(pDG.g.hasEdge(1, 5, "int:0"), is(true));
-        assertThat(pDG.g.hasEdge(1, 6, "int:0"), is(true));
-        assertThat(pDG.g.hasEdge(2, 6, "int:0"), is(true));
-        assertThat(pDG.g.hasEdge(3, 4, "int:0"), is(true));
-        assertThat(pDG.g.hasEdge(5, 4, "int:0"), is(true));
-        assertThat(pDG.g.hasEdge(5, 6, "int:0"), is(true));
-        assertThat(pDG.g.hasEdge(1, 4, "int:1"), is(true));
-        assertThat(pDG.g.hasEdge(1, 5, "int:1"), is(true));
-        assertThat(pDG.g.hasEdge(3, 5, "int:1"), is(true));
-        assertThat(pDG.g.hasEdge(1, 5, "int:2"), is(true));
+        assertThat(pDG.g.hasEdge(uid(pDG, 1), uid(pDG, 5), "int:0"), is(true));
+        assertThat(pDG.g.hasEdge(uid(pDG, 1), uid(pDG, 6), "int:0"), is(true));
+        assertThat(pDG.g.hasEdge(uid(pDG, 2), uid(pDG, 6), "int:0"), is(true));
+        assertThat(pDG.g.hasEdge(uid(pDG, 3), uid(pDG, 4), "int:0"), is(true));
+        assertThat(pDG.g.hasEdge(uid(pDG, 5), uid(pDG, 4), "int:0"), is(true));
+        assertThat(pDG.g.hasEdge(uid(pDG, 5), uid(pDG, 6), "int:0"), is(true));
+        assertThat(pDG.g.hasEdge(uid(pDG, 1), uid(pDG, 4), "int:1"), is(true));
+        assertThat(pDG.g.hasEdge(uid(pDG, 1), uid(pDG, 5), "int:1"), is(true));
+        assertThat(pDG.g.hasEdge(uid(pDG, 3), uid(pDG, 5), "int:1"), is(true));
+        assertThat(pDG.g.hasEdge(uid(pDG, 1), uid(pDG, 5), "int:2"), is(true));
     }
 
     @Test
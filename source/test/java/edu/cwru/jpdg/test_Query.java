@@ -0,0 +1,203 @@
+package edu.cwru.jpdg;
+
+/* Tim Henderson (tadh@case.edu)
+ *
+ * This file is part of jpdg a library to generate Program Dependence Graphs
+ * from JVM bytecode.
+ *
+ * Copyright (c) 2014, Tim Henderson, Case Western Reserve University
+ *   Cleveland, Ohio 44106
+ *   All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc.,
+ *   51 Franklin Street, Fifth Floor,
+ *   Boston, MA  02110-1301
+ *   USA
+ * or retrieve version 2.1 at their website:
+ *   http://www.gnu.org/licenses/lgpl-2.1.html
+ */
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import org.junit.Test;
+
+import java.util.*;
+import java.io.File;
+
+public class test_Query {
+
+    static final String DIR = "/tmp/jpdg-test-query";
+
+    // h and k start on adjacent lines, which the packs tag differently from
+    // soot's default
+    static final String SRC =
+        "package test.query;\n" +
+        "public abstract class Q {\n" +
+        "    public int h() { return 7; }\n" +
+        "    public int k() { return h() + 1; }\n" +
+        "\n" +
+        "    public int f(int x) {\n" +
+        "        int s = 0;\n" +
+        "        for (int i = 0; i < x; i++) {\n" +
+        "            s += i;\n" +
+        "        }\n" +
+        "        return s;\n" +
+        "    }\n" +
+        "    public abstract int a();\n" +
+        "}\n";
+
+    static final String[] METHODS = {
+        "<test.query.Q: void <init>()>",
+        "<test.query.Q: int h()>",
+        "<test.query.Q: int k()>",
+        "<test.query.Q: int f(int)>",
+    };
+
+    static String build() {
+        return new File(DIR, "build").getPath();
+    }
+
+    static Query query(long pdg_bytes, long body_units) {
+        Javac.javac(DIR, "Q", SRC);
+        return new Query(build() + File.pathSeparator + System.getenv().get("JAVA_JARS"), "op", pdg_bytes, body_units);
+    }
+
+    static void assertError(Query q, String signature, String message) {
+        try {
+            q.method(signature);
+            assertThat("no error for " + signature, false);
+        } catch (pDG_Builder.Error e) {
+            assertThat(e.getMessage(), startsWith(message));
+        }
+    }
+
+    @Test
+    public void lru() {
+        final List<String> evicted = new ArrayList<String>();
+        Lru<String,String> lru = new Lru<String,String>(10) {
+            protected long weigh(String v) {
+                return v.length();
+            }
+            protected void evicted(String k, String v) {
+                evicted.add(k);
+            }
+        };
+        lru.put("a", "aaaa");
+        lru.put("b", "bbbb");
+        assertThat(lru.get("a"), is("aaaa"));
+        assertThat(lru.get("c"), is(nullValue()));
+        // b is the least recently used, so it goes to make room for c
+        lru.put("c", "cccc");
+        assertThat(evicted, is(Arrays.asList("b")));
+        assertThat(lru.contains("a"), is(true));
+        assertThat(lru.contains("b"), is(false));
+        assertThat(lru.weight(), is(8L));
+        // heavier than the limit, kept out without dropping the others
+        lru.put("d", "ddddddddddd");
+        assertThat(lru.contains("d"), is(false));
+        assertThat(lru.size(), is(2));
+        // replacing a value reweighs it
+        lru.put("a", "a");
+        assertThat(lru.weight(), is(5L));
+        Map<String,Object> stats = lru.stats();
+        assertThat(stats.get("hits"), is((Object)1L));
+        assertThat(stats.get("misses"), is((Object)1L));
+        assertThat(stats.get("evictions"), is((Object)2L));
+        assertThat(evicted, is(Arrays.asList("b", "d", "a")));
+    }
+
+    @Test
+    public void lru_weighs_on_put() {
+        Lru<String,StringBuilder> lru = new Lru<String,StringBuilder>(10) {
+            protected long weigh(StringBuilder v) {
+                return v.length();
+            }
+        };
+        StringBuilder a = new StringBuilder("aaaa");
+        lru.put("a", a);
+        // a grows in the cache, it still takes away the 4 it added
+        a.append("aaaaaa");
+        lru.put("b", new StringBuilder("bbbbbbbb"));
+        assertThat(lru.contains("a"), is(false));
+        assertThat(lru.weight(), is(8L));
+        lru.put("b", new StringBuilder("b"));
+        assertThat(lru.weight(), is(1L));
+    }
+
+    @Test
+    public void method_errors() throws Exception {
+        Query q = query(Query.PDG_BYTES, Query.BODY_UNITS);
+        assertError(q, "test.query.Q.f", "not a method signature");
+        assertError(q, "<test.query.Missing: int f(int)>", "class not on the classpath");
+        assertError(q, "<test.query.Q: int g(int)>", "no such method");
+        assertError(q, "<test.query.Q: int a()>", "method has no body");
+        assertThat(q.method("<test.query.Q: int f(int)>").getName(), is("f"));
+    }
+
+    @Test
+    public void lines_of_a_full_build() throws Exception {
+        Query q = query(Query.PDG_BYTES, Query.BODY_UNITS);
+        List<String> entries = new ArrayList<String>();
+        for (String signature : METHODS) {
+            for (String line : q.pdg(signature).Serialize().split("\n")) {
+                if (line.contains("\"entry\"")) {
+                    entries.add(line);
+                }
+            }
+        }
+        assertThat(entries.size(), is(METHODS.length));
+
+        List<String> dirs = Arrays.asList(build());
+        soot.Scene S = JPDG.runSoot(build() + File.pathSeparator + System.getenv().get("JAVA_JARS"), dirs, new ArrayList<String>());
+        List<String> full = Arrays.asList(JPDG.builder(S, new ArrayList<String>(), "op").run().Serialize().split("\n"));
+        for (String entry : entries) {
+            assertThat(full, hasItem(entry));
+        }
+    }
+
+    @Test
+    public void body_cache() throws Exception {
+        Query q = query(Query.PDG_BYTES, Query.BODY_UNITS);
+        soot.SootMethod m = q.method("<test.query.Q: int f(int)>");
+        soot.Body body = q.body(m);
+        assertThat(body, is(sameInstance(m.getActiveBody())));
+        assertThat(q.body(m), is(sameInstance(body)));
+        // released behind the cache's back, the cached body is stale
+        m.releaseActiveBody();
+        soot.Body other = q.body(m);
+        assertThat(other, is(not(sameInstance(body))));
+        assertThat(other.getMethod().getActiveBody(), is(sameInstance(other)));
+        assertThat(q.body(other.getMethod()), is(sameInstance(other)));
+    }
+
+    @Test
+    public void evicted_bodies_are_released() throws Exception {
+        // too small for any body or pDG
+        Query q = query(1, 1);
+        soot.SootMethod m = q.method("<test.query.Q: int f(int)>");
+        assertThat(m.hasActiveBody(), is(false));
+        soot.Body body = q.body(m);
+        assertThat(body.getMethod().hasActiveBody(), is(false));
+        assertThat(q.bodies.size(), is(0));
+        // built again, by a new copy of the class, rather than cached
+        soot.Body again = q.body(q.method("<test.query.Q: int f(int)>"));
+        assertThat(again, is(not(sameInstance(body))));
+        assertThat(again.getMethod(), is(not(sameInstance(m))));
+        // the entry keeps its line
+        assertThat(new String(q.veg(METHODS[3]), "UTF-8"), is(new String(q.veg(METHODS[3]), "UTF-8")));
+        assertThat(q.pdgs.size(), is(0));
+    }
+}
@@ -0,0 +1,130 @@
+package edu.cwru.jpdg;
+
+/* Tim Henderson (tadh@case.edu)
+ *
+ * This file is part of jpdg a library to generate Program Dependence Graphs
+ * from JVM bytecode.
+ *
+ * Copyright (c) 2014, Tim Henderson, Case Western Reserve University
+ *   Cleveland, Ohio 44106
+ *   All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc.,
+ *   51 Franklin Street, Fifth Floor,
+ *   Boston, MA  02110-1301
+ *   USA
+ * or retrieve version 2.1 at their website:
+ *   http://www.gnu.org/licenses/lgpl-2.1.html
+ */
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import org.junit.Test;
+
+import java.util.*;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+
+import org.apache.commons.codec.binary.Base64;
+
+public class test_Server {
+
+    static final String DIR = "/tmp/jpdg-test-server";
+
+    static final String SRC =
+        "package test.server;\n" +
+        "public class S {\n" +
+        "    public int f(int x) {\n" +
+        "        return x > 0 ? x + 1 : 0;\n" +
+        "    }\n" +
+        "}\n";
+
+    static String classpath() {
+        return new File(DIR, "build").getPath() + File.pathSeparator + System.getenv().get("JAVA_JARS");
+    }
+
+    // the responses of server to the requests, each {command, payload}
+    static List<String[]> talk(Server server, String[]... requests) throws IOException {
+        StringBuilder in = new StringBuilder();
+        for (String[] request : requests) {
+            in.append(request[0]).append(" ");
+            in.append(new String(Base64.encodeBase64(request[1].getBytes(Server.UTF8)), Server.UTF8)).append("\n");
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        server.connection(new ByteArrayInputStream(in.toString().getBytes(Server.UTF8)), out);
+        List<String[]> responses = new ArrayList<String[]>();
+        BufferedReader r = new BufferedReader(new StringReader(new String(out.toByteArray(), Server.UTF8)));
+        String line;
+        while ((line = r.readLine()) != null) {
+            String[] parts = line.split(" ", 2);
+            responses.add(new String[]{parts[0], new String(Base64.decodeBase64(parts[1].getBytes(Server.UTF8)), Server.UTF8)});
+        }
+        return responses;
+    }
+
+    static String[] job(String output) {
+        return new String[]{"JOB", String.format("[\"-c\", \"%s\", \"-d\", \"%s\", \"-l\", \"op\", \"-o\", \"%s\"]", classpath(), new File(DIR, "build").getPath(), output)};
+    }
+
+    @Test
+    public void job_done() throws Exception {
+        Javac.javac(DIR, "S", SRC);
+        File out = new File(DIR, "out.veg");
+        Server server = new Server(0, null);
+        List<String[]> responses = talk(server, job(out.getPath()));
+        assertThat(responses.get(responses.size() - 1)[0], is("DONE"));
+        assertThat(server.job_ms.size(), is(1));
+        assertThat(out.length(), greaterThan(0L));
+    }
+
+    @Test
+    public void failed_write_is_an_error() throws Exception {
+        Javac.javac(DIR, "S", SRC);
+        File out = new File(new File(DIR, "missing"), "out.veg");
+        Server server = new Server(0, null);
+        List<String[]> responses = talk(server, job(out.getPath()));
+        assertThat(responses.get(responses.size() - 1)[0], is("ERROR"));
+        assertThat(server.job_ms.size(), is(0));
+    }
+
+    @Test
+    public void pdg() throws Exception {
+        Query q = test_Query.query(Query.PDG_BYTES, Query.BODY_UNITS);
+        String signature = test_Query.METHODS[3];
+        Server server = new Server(0, q);
+        List<String[]> responses = talk(server,
+            new String[]{"PDG", signature},
+            new String[]{"PDG", "method " + signature},
+            new String[]{"PDG", "<test.query.Q: int g(int)>"},
+            job(new File(DIR, "out.veg").getPath()));
+        assertThat(responses.size(), is(4));
+        String veg = new String(q.veg(signature), Server.UTF8);
+        assertThat(veg, containsString("\"entry\""));
+        assertThat(responses.get(0), is(new String[]{"PDG", veg}));
+        assertThat(responses.get(1), is(new String[]{"PDG", veg}));
+        assertThat(responses.get(2)[0], is("ERROR"));
+        assertThat(responses.get(2)[1], startsWith("no such method"));
+        // a job would reset the query's soot
+        assertThat(responses.get(3)[0], is("ERROR"));
+        // the three PDGs and the veg above
+        assertThat(q.stats().get("queries"), is((Object)4L));
+        assertThat(q.stats().get("errors"), is((Object)1L));
+    }
+}
@@ -0,0 +1,127 @@
+package edu.cwru.jpdg;
+
+/* Tim Henderson (tadh@case.edu)
+ *
+ * This file is part of jpdg a library to generate Program Dependence Graphs
+ * from JVM bytecode.
+ *
+ * Copyright (c) 2014, Tim Henderson, Case Western Reserve University
+ *   Cleveland, Ohio 44106
+ *   All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc.,
+ *   51 Franklin Street, Fifth Floor,
+ *   Boston, MA  02110-1301
+ *   USA
+ * or retrieve version 2.1 at their website:
+ *   http://www.gnu.org/licenses/lgpl-2.1.html
+ */
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import org.junit.Test;
+
+import java.util.*;
+import java.io.File;
+
+import edu.cwru.jpdg.graph.GraphReader;
+
+public class test_Watch {
+
+    static final String DIR = "/tmp/jpdg-test-watch";
+
+    static final String V1 =
+        "package test.watch;\n" +
+        "public class W {\n" +
+        "    public int f(int x) {\n" +
+        "        int s = 0;\n" +
+        "        for (int i = 0; i < x; i++) {\n" +
+        "            s += i;\n" +
+        "        }\n" +
+        "        return s;\n" +
+        "    }\n" +
+        "    public int g(int y) { return y > 3 ? f(y) : 0; }\n" +
+        "}\n";
+
+    // f moves down and changes, h and k are new. k starts on the line
+    // after h, which the packs tag differently from soot's default.
+    static final String V2 =
+        "package test.watch;\n" +
+        "public class W {\n" +
+        "    public int h() { return 7; }\n" +
+        "    public int k() { return h() + 1; }\n" +
+        "    public int f(int x) {\n" +
+        "        int s = 1;\n" +
+        "        for (int i = 0; i < x; i++) {\n" +
+        "            if (i % 2 == 0) s += i;\n" +
+        "        }\n" +
+        "        return s;\n" +
+        "    }\n" +
+        "    public int g(int y) { return y > 3 ? f(y) : k(); }\n" +
+        "}\n";
+
+    static List<String> dirs() {
+        return Arrays.asList(new File(DIR, "build").getPath());
+    }
+
+    static soot.Scene soot() {
+        String cp = dirs().get(0) + File.pathSeparator + System.getenv().get("JAVA_JARS");
+        return JPDG.runSoot(cp, dirs(), new ArrayList<String>());
+    }
+
+    @Test
+    public void rebuild_matches_clean_build() throws Exception {
+        Javac.javac(DIR, "W", V1);
+        soot.Scene S = soot();
+        PDG_Builder builder = JPDG.builder(S, new ArrayList<String>(), "op");
+        File out = File.createTempFile("jpdg-test-watch", ".veg");
+        out.deleteOnExit();
+        Watch w = new Watch(S, builder, dirs(), out.getPath(), false);
+        String before = builder.run().Serialize();
+
+        Javac.javac(DIR, "W", V2);
+        w.update(new TreeSet<String>(Arrays.asList("test.watch.W")));
+        String watched = GraphReader.read(out).Serialize();
+        assertThat(watched, is(not(before)));
+
+        String clean = JPDG.builder(soot(), new ArrayList<String>(), "op").run().Serialize();
+        assertThat(watched, is(clean));
+    }
+
+    @Test
+    public void failed_write_keeps_output() throws Exception {
+        Javac.javac(DIR, "W", V1);
+        soot.Scene S = soot();
+        PDG_Builder builder = JPDG.builder(S, new ArrayList<String>(), "op");
+        File out = File.createTempFile("jpdg-test-watch", ".veg");
+        out.deleteOnExit();
+        Watch w = new Watch(S, builder, dirs(), out.getPath(), false);
+        JPDG.writeGraph(builder.run(), out.getPath());
+        String before = GraphReader.read(out).Serialize();
+
+        // the temporary file can not be written
+        File tmp = new File(out.getParentFile(), "." + out.getName());
+        assertThat(tmp.mkdir(), is(true));
+        Javac.javac(DIR, "W", V2);
+        try {
+            w.update(new TreeSet<String>(Arrays.asList("test.watch.W")));
+            assertThat("update did not fail", false);
+        } catch (java.io.IOException e) {
+        }
+        assertThat(tmp.exists(), is(false));
+        assertThat(GraphReader.read(out).Serialize(), is(before));
+    }
+}